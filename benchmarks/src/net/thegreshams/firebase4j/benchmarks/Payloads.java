@@ -0,0 +1,60 @@
+package net.thegreshams.firebase4j.benchmarks;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Deterministic JSON-like trees shaped like typical Firebase data: a list of records keyed by push-id-like keys,
+ * each with a few scalar fields and a small nested map.
+ */
+public final class Payloads {
+
+    /**
+     * number of records in each payload size
+     */
+    public static final int SMALL = 1;
+    public static final int MEDIUM = 100;
+    public static final int LARGE = 10_000;
+
+    private Payloads() {
+    }
+
+    public static int records(String size) {
+        switch (size) {
+            case "small":
+                return SMALL;
+            case "medium":
+                return MEDIUM;
+            case "large":
+                return LARGE;
+            default:
+                throw new IllegalArgumentException("unknown payload size: " + size);
+        }
+    }
+
+    public static Map<String, Object> tree(int records) {
+        Map<String, Object> result = new LinkedHashMap<>();
+        for (int i = 0; i < records; i++) {
+            Map<String, Object> address = new LinkedHashMap<>();
+            address.put("city", "City " + (i % 97));
+            address.put("zip", String.format("%05d", i % 100_000));
+
+            Map<String, Object> record = new LinkedHashMap<>();
+            record.put("name", "user " + i);
+            record.put("age", 18 + i % 60);
+            record.put("score", i * 0.5);
+            record.put("active", i % 3 != 0);
+            record.put("address", address);
+            result.put(key(i), record);
+        }
+        return result;
+    }
+
+    /**
+     * @return a 20 character, push-id-like key
+     */
+    public static String key(int i) {
+        return String.format("-N%018d", i);
+    }
+
+}
@@ -0,0 +1,51 @@
+package net.thegreshams.firebase4j.service;
+
+import net.thegreshams.firebase4j.benchmarks.Payloads;
+import net.thegreshams.firebase4j.error.FirebaseException;
+import net.thegreshams.firebase4j.model.FirebasePath;
+import net.thegreshams.firebase4j.model.FirebaseResponse;
+import net.thegreshams.firebase4j.util.JacksonUtility;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicStatusLine;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link Firebase#processResponse} turning an already received response into a {@link FirebaseResponse}: reading
+ * the body, decoding it and parsing it.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ProcessResponseBenchmark {
+
+    @Param({"small", "medium", "large"})
+    public String size;
+
+    private Firebase firebase;
+    private BasicHttpResponse response;
+
+    @Setup
+    public void setUp() throws Throwable {
+        firebase = new Firebase("http://localhost", 0);
+        byte[] body = JacksonUtility.GET_JSON_STRING_FROM_MAP(Payloads.tree(Payloads.records(size))).getBytes(StandardCharsets.UTF_8);
+        response = new BasicHttpResponse(new BasicStatusLine(HttpVersion.HTTP_1_1, 200, "OK"));
+        // repeatable: every getContent() is a fresh stream over the same bytes
+        response.setEntity(new ByteArrayEntity(body, ContentType.APPLICATION_JSON));
+    }
+
+    @Benchmark
+    public FirebaseResponse processResponse() throws FirebaseException {
+        RequestContext context = new RequestContext(Firebase.FirebaseRestMethod.GET, FirebasePath.ROOT, false);
+        return firebase.processResponse(Firebase.FirebaseRestMethod.GET, response, context);
+    }
+
+}
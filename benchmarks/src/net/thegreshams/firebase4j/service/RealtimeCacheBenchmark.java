@@ -0,0 +1,76 @@
+package net.thegreshams.firebase4j.service;
+
+import net.thegreshams.firebase4j.benchmarks.Payloads;
+import net.thegreshams.firebase4j.model.FirebasePath;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The {@link RealtimeDatabase} cache: writing leaves and subtrees the way stream events do, and reading them back
+ * the way listeners are resolved.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RealtimeCacheBenchmark {
+
+    private static final int RECORDS = Payloads.LARGE;
+
+    private RealtimeDatabase database;
+    private FirebasePath[] leaves;
+    private FirebasePath[] records;
+    private FirebasePath[] copies;
+    private Map<String, Object> record;
+    private int next;
+
+    @Setup
+    public void setUp() throws Throwable {
+        database = new RealtimeDatabase("http://localhost", 0);
+        Map<String, Object> tree = Payloads.tree(RECORDS);
+        database.putToCache(FirebasePath.of("users"), tree);
+        leaves = new FirebasePath[RECORDS];
+        records = new FirebasePath[RECORDS];
+        copies = new FirebasePath[RECORDS];
+        for (int i = 0; i < RECORDS; i++) {
+            records[i] = FirebasePath.of("users").child(Payloads.key(i));
+            leaves[i] = records[i].child("address/city");
+            copies[i] = FirebasePath.of("copies").child(Payloads.key(i));
+        }
+        // not taken from the cached tree, so putLeaf never writes into it
+        @SuppressWarnings("unchecked")
+        Map<String, Object> first = (Map<String, Object>) Payloads.tree(1).get(Payloads.key(0));
+        record = first;
+    }
+
+    private int next() {
+        int i = next;
+        next = i + 1 == RECORDS ? 0 : i + 1;
+        return i;
+    }
+
+    @Benchmark
+    public void putLeaf() {
+        database.putToCache(leaves[next()], "Somewhere");
+    }
+
+    @Benchmark
+    public void putSubtree() {
+        database.putToCache(copies[next()], record);
+    }
+
+    @Benchmark
+    public Object getLeaf() {
+        return database.getFromCache(leaves[next()]);
+    }
+
+    @Benchmark
+    public Object getSubtree() {
+        return database.getFromCache(records[next()]);
+    }
+
+}
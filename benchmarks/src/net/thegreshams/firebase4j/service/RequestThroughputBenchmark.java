@@ -0,0 +1,97 @@
+package net.thegreshams.firebase4j.service;
+
+import com.sun.net.httpserver.HttpServer;
+import net.thegreshams.firebase4j.benchmarks.Payloads;
+import net.thegreshams.firebase4j.error.FirebaseException;
+import net.thegreshams.firebase4j.error.JacksonUtilityException;
+import net.thegreshams.firebase4j.model.FirebaseResponse;
+import net.thegreshams.firebase4j.util.JacksonUtility;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end requests of a {@link Firebase} against an in-process stub server that answers every request with the
+ * same payload, so what is measured is the client (and loopback) rather than Firebase. Run with '-t' to add
+ * concurrent clients.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 3)
+@Measurement(iterations = 5, time = 3)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RequestThroughputBenchmark {
+
+    @Param({"small", "medium"})
+    public String size;
+
+    private HttpServer server;
+    private ExecutorService serverExecutor;
+    private Firebase firebase;
+    private Map<String, Object> data;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Throwable {
+        data = Payloads.tree(Payloads.records(size));
+        byte[] body = JacksonUtility.GET_JSON_STRING_FROM_MAP(data).getBytes(StandardCharsets.UTF_8);
+
+        // otherwise the body of every response waits ~40ms for the client's delayed ack of the headers
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 128);
+        server.createContext("/", exchange -> {
+            try (InputStream in = exchange.getRequestBody()) {
+                in.transferTo(Discard.INSTANCE);
+            }
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+        });
+        serverExecutor = Executors.newCachedThreadPool();
+        server.setExecutor(serverExecutor);
+        server.start();
+
+        firebase = new Firebase("http://127.0.0.1:" + server.getAddress().getPort(), 0);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        server.stop(0);
+        serverExecutor.shutdownNow();
+    }
+
+    @Benchmark
+    public FirebaseResponse get() throws FirebaseException {
+        return firebase.get("users");
+    }
+
+    @Benchmark
+    public FirebaseResponse put() throws FirebaseException, JacksonUtilityException {
+        return firebase.put("users", data);
+    }
+
+    /**
+     * Discards the request bodies the stub server reads.
+     */
+    private static final class Discard extends OutputStream {
+        private static final Discard INSTANCE = new Discard();
+
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+
+}
@@ -0,0 +1,48 @@
+package net.thegreshams.firebase4j.service;
+
+import net.thegreshams.firebase4j.benchmarks.Payloads;
+import net.thegreshams.firebase4j.util.JacksonUtility;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link RealtimeDatabase} decoding a put event, as read off the stream, into its name and parsed data.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SseDecodingBenchmark {
+
+    @Param({"small", "medium"})
+    public String size;
+
+    private byte[] event;
+
+    @Setup
+    public void setUp() throws Throwable {
+        Map<String, Object> data = new LinkedHashMap<>();
+        data.put("path", "/users");
+        data.put("data", Payloads.tree(Payloads.records(size)));
+        String raw = "event: put\ndata: " + JacksonUtility.GET_JSON_STRING_FROM_MAP(data) + "\n\n";
+        event = raw.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public String[] decode() {
+        return RealtimeDatabase.decodeEvent(event, event.length);
+    }
+
+    @Benchmark
+    public Map<String, Object> decodeAndParse() throws IOException {
+        return RealtimeDatabase.parseEventData(RealtimeDatabase.decodeEvent(event, event.length)[1]);
+    }
+
+}
@@ -0,0 +1,61 @@
+package net.thegreshams.firebase4j.service;
+
+import net.thegreshams.firebase4j.model.FirebasePath;
+import org.apache.http.NameValuePair;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building the url of a request: from a relative path string (parsed on every call), from a pre-parsed
+ * {@link FirebasePath}, with and without queries.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class UrlBuildingBenchmark {
+
+    @Param({"users", "users/-N000000000000000042/profile/name"})
+    public String path;
+
+    private Firebase firebase;
+    private FirebasePath parsed;
+    private NameValuePair[] noQueries;
+    private NameValuePair[] queries;
+
+    @Setup
+    public void setUp() throws Throwable {
+        firebase = new Firebase("https://example.firebaseio.com", "secret-token", 0);
+        parsed = FirebasePath.of(path);
+        noQueries = new NameValuePair[0];
+        queries = new NameValuePair[]{
+                Firebase.query("orderBy", "\"age\""),
+                Firebase.query("startAt", "18"),
+                Firebase.query("limitToFirst", "100")
+        };
+    }
+
+    @Benchmark
+    public String fromRelativePath() {
+        return firebase.buildFullUrlFromRelativePath(path, noQueries);
+    }
+
+    @Benchmark
+    public String fromRelativePathWithQueries() {
+        return firebase.buildFullUrlFromRelativePath(path, queries);
+    }
+
+    @Benchmark
+    public String fromParsedPath() {
+        return firebase.buildFullUrl(parsed, noQueries);
+    }
+
+    @Benchmark
+    public FirebasePath parsePath() {
+        return FirebasePath.of(path);
+    }
+
+}
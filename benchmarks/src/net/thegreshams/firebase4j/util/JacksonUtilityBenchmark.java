@@ -0,0 +1,43 @@
+package net.thegreshams.firebase4j.util;
+
+import net.thegreshams.firebase4j.benchmarks.Payloads;
+import net.thegreshams.firebase4j.error.JacksonUtilityException;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link JacksonUtility} serializing request bodies and parsing response bodies.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class JacksonUtilityBenchmark {
+
+    @Param({"small", "medium", "large"})
+    public String size;
+
+    private Map<String, Object> data;
+    private String json;
+
+    @Setup
+    public void setUp() throws JacksonUtilityException {
+        data = Payloads.tree(Payloads.records(size));
+        json = JacksonUtility.GET_JSON_STRING_FROM_MAP(data);
+    }
+
+    @Benchmark
+    public String serialize() throws JacksonUtilityException {
+        return JacksonUtility.GET_JSON_STRING_FROM_MAP(data);
+    }
+
+    @Benchmark
+    public Map<String, Object> parse() throws JacksonUtilityException {
+        return JacksonUtility.GET_JSON_STRING_AS_MAP(json);
+    }
+
+}
@@ -0,0 +1,459 @@
+package net.thegreshams.firebase4j.demo;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import net.thegreshams.firebase4j.emulator.FirebaseEmulator;
+import net.thegreshams.firebase4j.error.FirebaseException;
+import net.thegreshams.firebase4j.metrics.InMemoryFirebaseMetrics;
+import net.thegreshams.firebase4j.metrics.LatencyHistogram;
+import net.thegreshams.firebase4j.model.FirebasePath;
+import net.thegreshams.firebase4j.model.FirebaseResponse;
+import net.thegreshams.firebase4j.service.Firebase;
+import net.thegreshams.firebase4j.service.RealtimeDatabase;
+
+/**
+ * Drives a configurable mix of reads, writes, batched (multi-path) writes and listeners against a Firebase, or
+ * against a local {@link FirebaseEmulator}, and reports throughput, latency percentiles, errors and GC/allocation
+ * figures; use it to size client settings before a deploy.
+ * <p>
+ * Arguments are 'name=value' pairs, like the {@link Demo}'s:
+ * <pre>
+ *   baseUrl=https://x.firebaseio.com   the database to load (or emulator=true)
+ *   emulator=true                      run against an in-process emulator instead
+ *   latency=5-20                       emulator only: injected latency per request, in ms
+ *   token=...                          auth token sent with every request
+ *   path=loadtest                      where the generated data lives (it is overwritten!)
+ *   mix=read:70,write:20,batch:10      relative weights of the operations
+ *   rate=0                             target operations/s over all threads; 0 = as fast as possible
+ *   concurrency=8                      number of threads issuing operations
+ *   connections=concurrency            size of the client's connection pool
+ *   duration=30s                       how long to run, after the warmup ('s' or 'm'; plain numbers are seconds)
+ *   warmup=5s                          run this long before measuring
+ *   keys=1000                          number of distinct records read and written
+ *   payload=256                        approximate size of a record, in bytes
+ *   batchSize=10                       records per batched write
+ *   listeners=0                        number of records listened to (with a RealtimeDatabase)
+ *   report=5s                          interval of the progress lines
+ * </pre>
+ * With a target rate, latencies are measured from when each operation was due rather than when it started, so a
+ * client that falls behind shows it in the percentiles instead of hiding it (ie: no coordinated omission).
+ */
+public class LoadGenerator {
+
+	private enum Operation { READ, WRITE, BATCH }
+
+
+
+///////////////////////////////////////////////////////////////////////////////
+//
+// PROPERTIES & CONSTRUCTORS
+//
+///////////////////////////////////////////////////////////////////////////////
+
+	private final Map<String, String> settings;
+	private final FirebasePath root;
+	private final int concurrency;
+	private final long rate;
+	private final int keys;
+	private final int payloadSize;
+	private final int batchSize;
+	private final Operation[] wheel; // the mix, as 100 slots
+
+	private final Map<Operation, LatencyHistogram> latencies = new LinkedHashMap<Operation, LatencyHistogram>();
+	private final Map<Operation, LongAdder> errors = new LinkedHashMap<Operation, LongAdder>();
+	private final LongAdder listenerEvents = new LongAdder();
+	private final LongAdder listenerErrors = new LongAdder();
+	private final LongAdder intervalOps = new LongAdder();
+	private final AtomicLong tickets = new AtomicLong();
+	private final LongAdder workerAllocatedBytes = new LongAdder();
+	private volatile boolean running = true;
+	private volatile boolean measuring = false;
+	private long startNanos;
+
+	public LoadGenerator( Map<String, String> settings ) {
+		this.settings = settings;
+		this.root = FirebasePath.of( setting("path", "loadtest") );
+		this.concurrency = Integer.parseInt( setting("concurrency", "8") );
+		this.rate = Long.parseLong( setting("rate", "0") );
+		this.keys = Integer.parseInt( setting("keys", "1000") );
+		this.payloadSize = Integer.parseInt( setting("payload", "256") );
+		this.batchSize = Integer.parseInt( setting("batchSize", "10") );
+		this.wheel = parseMix( setting("mix", "read:70,write:20,batch:10") );
+		for( Operation op : Operation.values() ) {
+			this.latencies.put( op, new LatencyHistogram() );
+			this.errors.put( op, new LongAdder() );
+		}
+	}
+
+
+
+///////////////////////////////////////////////////////////////////////////////
+//
+// PUBLIC API
+//
+///////////////////////////////////////////////////////////////////////////////
+
+	public static void main( String[] args ) throws Throwable {
+
+		Map<String, String> settings = new LinkedHashMap<String, String>();
+		for( String s : args ) {
+			if( s == null || s.trim().isEmpty() ) continue;
+			String[] split = s.trim().split( "=", 2 );
+			if( split.length != 2 ) {
+				throw new IllegalArgumentException( "Program-arguments must be 'name=value'; was: '" + s + "'" );
+			}
+			settings.put( split[0], split[1] );
+		}
+
+		FirebaseEmulator emulator = null;
+		if( Boolean.parseBoolean(settings.get("emulator")) ) {
+			// this process only runs the emulator; without it, every response would wait for a delayed ack
+			if( System.getProperty("sun.net.httpserver.nodelay") == null ) {
+				System.setProperty( "sun.net.httpserver.nodelay", "true" );
+			}
+			emulator = new FirebaseEmulator();
+			String latency = settings.get( "latency" );
+			if( latency != null ) {
+				String[] bounds = latency.split( "-" );
+				emulator.setLatency( Long.parseLong(bounds[0]), Long.parseLong(bounds[bounds.length - 1]) );
+			}
+			settings.put( "baseUrl", emulator.start().getBaseUrl() );
+		}
+		if( settings.get("baseUrl") == null || settings.get("baseUrl").trim().isEmpty() ) {
+			throw new IllegalArgumentException( "Program-argument 'baseUrl' (or 'emulator=true') not found but required" );
+		}
+
+		try {
+			new LoadGenerator( settings ).run();
+		} finally {
+			if( emulator != null ) {
+				emulator.close();
+			}
+		}
+	}
+
+	public void run() throws Throwable {
+
+		String baseUrl = setting( "baseUrl", null );
+		String token = settings.get( "token" );
+		Firebase firebase = token == null ? new Firebase( baseUrl, 0 ) : new Firebase( baseUrl, token, 0 );
+		RealtimeDatabase listeners = null;
+		try {
+			firebase.setMaxConnections( Integer.parseInt(setting("connections", String.valueOf(this.concurrency))) );
+			// records are grouped as '/<path>/items/**'
+			InMemoryFirebaseMetrics metrics = new InMemoryFirebaseMetrics( this.root.depth() + 1 );
+			firebase.setMetrics( metrics );
+
+			System.out.println( "seeding " + this.keys + " records under " + this.root );
+			Map<String, Object> seed = new LinkedHashMap<String, Object>();
+			for( int i = 0; i < this.keys; i++ ) {
+				seed.put( key(i), this.record() );
+			}
+			firebase.putAt( this.root.child("items"), seed );
+
+			int listenerCount = Math.min( this.keys, Integer.parseInt(setting("listeners", "0")) );
+			listeners = this.startListeners( baseUrl, token, metrics, listenerCount );
+
+			long warmupNanos = parseDuration( setting("warmup", "5s") );
+			long durationNanos = parseDuration( setting("duration", "30s") );
+			long reportNanos = parseDuration( setting("report", "5s") );
+
+			List<Thread> workers = new ArrayList<Thread>();
+			this.startNanos = System.nanoTime();
+			for( int i = 0; i < this.concurrency; i++ ) {
+				Thread worker = new Thread( () -> this.work(firebase), "load-" + i );
+				worker.setDaemon( true );
+				workers.add( worker );
+				worker.start();
+			}
+
+			System.out.println( "warming up for " + TimeUnit.NANOSECONDS.toSeconds(warmupNanos) + "s" );
+			Thread.sleep( TimeUnit.NANOSECONDS.toMillis(warmupNanos) );
+			this.resetMeasurements( metrics );
+			GcSnapshot gcBefore = new GcSnapshot();
+			this.measuring = true;
+			long measureStart = System.nanoTime();
+
+			System.out.println( "measuring for " + TimeUnit.NANOSECONDS.toSeconds(durationNanos) + "s" );
+			long end = measureStart + durationNanos;
+			long lastReport = measureStart;
+			while( end - System.nanoTime() > TimeUnit.MILLISECONDS.toNanos(1) ) {
+				Thread.sleep( Math.max(1, TimeUnit.NANOSECONDS.toMillis(Math.min(reportNanos, end - System.nanoTime()))) );
+				long now = System.nanoTime();
+				double seconds = (now - lastReport) / 1e9;
+				System.out.println( String.format("  %5.0fs  %8.0f ops/s  errors=%d  listener-events=%d",
+						(now - measureStart) / 1e9, this.intervalOps.sumThenReset() / seconds, this.totalErrors(), this.listenerEvents.sum()) );
+				lastReport = now;
+			}
+			this.measuring = false;
+			long measuredNanos = System.nanoTime() - measureStart;
+			this.running = false;
+			for( Thread worker : workers ) {
+				worker.join( 10_000 );
+			}
+			GcSnapshot gcAfter = new GcSnapshot();
+
+			// the listeners stop before the report
+			listeners.close();
+			listeners = null;
+
+			this.report( measuredNanos, gcBefore, gcAfter, metrics );
+		} finally {
+			// stops the streams, the pooled connections and the executors, like the emulator is in main()
+			if( listeners != null ) {
+				listeners.close();
+			}
+			firebase.close();
+		}
+	}
+
+
+
+///////////////////////////////////////////////////////////////////////////////
+//
+// PRIVATE API
+//
+///////////////////////////////////////////////////////////////////////////////
+
+	private void work( Firebase firebase ) {
+
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		long threadId = Thread.currentThread().getId();
+		long allocatedAtStart = -1;
+		long intervalNanos = this.rate > 0 ? 1_000_000_000L / this.rate : 0;
+
+		while( this.running ) {
+
+			if( this.measuring && allocatedAtStart < 0 ) {
+				allocatedAtStart = allocatedBytes( threads, threadId );
+			}
+
+			long due = System.nanoTime();
+			if( intervalNanos > 0 ) {
+				// open loop: operation n is due at start + n * interval, whether or not the previous ones were late
+				due = this.startNanos + this.tickets.getAndIncrement() * intervalNanos;
+				long wait = due - System.nanoTime();
+				if( wait > 0 ) {
+					sleepNanos( wait );
+				}
+				if( !this.running ) break;
+			}
+
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			Operation op = this.wheel[random.nextInt( this.wheel.length )];
+			boolean failed;
+			try {
+				FirebaseResponse response = this.execute( firebase, op, random );
+				failed = response.getCode() >= 400;
+			} catch( Throwable t ) {
+				failed = true;
+			}
+
+			if( this.measuring ) {
+				this.latencies.get( op ).recordNanos( System.nanoTime() - due );
+				if( failed ) {
+					this.errors.get( op ).increment();
+				}
+				this.intervalOps.increment();
+			}
+		}
+
+		if( allocatedAtStart >= 0 ) {
+			this.workerAllocatedBytes.add( allocatedBytes(threads, threadId) - allocatedAtStart );
+		}
+	}
+
+	private FirebaseResponse execute( Firebase firebase, Operation op, ThreadLocalRandom random ) throws Throwable {
+		FirebasePath items = this.root.child( "items" );
+		switch( op ) {
+			case READ:
+				return firebase.getAt( items.child(key(random.nextInt(this.keys))) );
+			case WRITE:
+				return firebase.putAt( items.child(key(random.nextInt(this.keys))), this.record() );
+			case BATCH:
+				Map<String, Object> batch = new LinkedHashMap<String, Object>();
+				for( int i = 0; i < this.batchSize; i++ ) {
+					batch.put( key(random.nextInt(this.keys)), this.record() );
+				}
+				return firebase.patchAt( items, batch );
+			default:
+				throw new IllegalStateException( "unknown operation: " + op );
+		}
+	}
+
+	/**
+	 * Listens to the first records, each on its own stream.
+	 */
+	private RealtimeDatabase startListeners( String baseUrl, String token, InMemoryFirebaseMetrics metrics, int count ) throws FirebaseException {
+		RealtimeDatabase result = token == null ? new RealtimeDatabase( baseUrl, 0 ) : new RealtimeDatabase( baseUrl, token, 0 );
+		result.setMetrics( metrics );
+		result.setMaxConnections( Math.max(1, count) ); // every stream holds its connection
+		if( count > 0 ) {
+			System.out.println( "starting " + count + " listeners" );
+		}
+		for( int i = 0; i < count; i++ ) {
+			result.onValueAt( this.root.child("items").child(key(i)) )
+					.except( e -> this.listenerErrors.increment() )
+					.then( value -> this.listenerEvents.increment() );
+		}
+		return result;
+	}
+
+	private void resetMeasurements( InMemoryFirebaseMetrics metrics ) {
+		for( Operation op : Operation.values() ) {
+			this.latencies.get( op ).reset();
+			this.errors.get( op ).reset();
+		}
+		this.intervalOps.reset();
+		this.listenerEvents.reset();
+		this.listenerErrors.reset();
+		metrics.reset();
+	}
+
+	private void report( long measuredNanos, GcSnapshot before, GcSnapshot after, InMemoryFirebaseMetrics metrics ) {
+
+		double seconds = measuredNanos / 1e9;
+		long totalOps = 0;
+		StringBuilder result = new StringBuilder( "\nresults over " ).append( String.format("%.1fs", seconds) ).append( ":\n" );
+		for( Operation op : Operation.values() ) {
+			LatencyHistogram latency = this.latencies.get( op );
+			if( latency.getCount() == 0 ) continue;
+			totalOps += latency.getCount();
+			result.append( String.format("  %-6s %8.0f ops/s  errors=%-6d ", op.name().toLowerCase(), latency.getCount() / seconds, this.errors.get(op).sum()) )
+					.append( latency ).append( '\n' );
+		}
+		result.append( String.format("  total  %8.0f ops/s  errors=%d\n", totalOps / seconds, this.totalErrors()) );
+		result.append( String.format("  listeners: %d events (%.0f/s), %d errors\n", this.listenerEvents.sum(), this.listenerEvents.sum() / seconds, this.listenerErrors.sum()) );
+
+		long allocated = this.workerAllocatedBytes.sum();
+		result.append( "\ngc & allocation:\n" );
+		result.append( String.format("  collections=%d  gc-time=%dms (%.1f%% of the run)\n",
+				after.count - before.count, after.timeMillis - before.timeMillis, 100.0 * (after.timeMillis - before.timeMillis) / (seconds * 1000)) );
+		if( allocated > 0 ) {
+			result.append( String.format("  allocated by the load threads: %.1f MB/s, %.1f KB/op\n",
+					allocated / seconds / (1 << 20), totalOps == 0 ? 0.0 : allocated / (double) totalOps / 1024) );
+		}
+		result.append( String.format("  heap used: %.1f MB\n", after.heapUsed / (double) (1 << 20)) );
+
+		result.append( "\nclient metrics:\n" ).append( metrics.dump() );
+		System.out.println( result );
+	}
+
+	private long totalErrors() {
+		long result = 0;
+		for( LongAdder e : this.errors.values() ) {
+			result += e.sum();
+		}
+		return result;
+	}
+
+	private Map<String, Object> record() {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		char[] data = new char[Math.max( 0, this.payloadSize - 48 )];
+		for( int i = 0; i < data.length; i++ ) {
+			data[i] = (char) ('a' + random.nextInt(26));
+		}
+		Map<String, Object> result = new LinkedHashMap<String, Object>();
+		result.put( "ts", System.currentTimeMillis() );
+		result.put( "n", random.nextInt() );
+		result.put( "data", new String(data) );
+		return result;
+	}
+
+	private String setting( String name, String defaultValue ) {
+		String value = this.settings.get( name );
+		return value == null ? defaultValue : value.trim();
+	}
+
+	private static String key( int i ) {
+		return "k" + i;
+	}
+
+	private static Operation[] parseMix( String mix ) {
+		Map<Operation, Integer> weights = new LinkedHashMap<Operation, Integer>();
+		int total = 0;
+		for( String part : mix.split(",") ) {
+			String[] split = part.trim().split( ":" );
+			int weight = Integer.parseInt( split[1].trim() );
+			weights.put( Operation.valueOf(split[0].trim().toUpperCase()), weight );
+			total += weight;
+		}
+		if( total <= 0 ) {
+			throw new IllegalArgumentException( "the mix needs at least one positive weight; was: '" + mix + "'" );
+		}
+		List<Operation> slots = new ArrayList<Operation>();
+		for( Map.Entry<Operation, Integer> e : weights.entrySet() ) {
+			for( int i = 0; i < Math.round(100.0 * e.getValue() / total); i++ ) {
+				slots.add( e.getKey() );
+			}
+		}
+		return slots.toArray( new Operation[0] );
+	}
+
+	private static long parseDuration( String value ) {
+		value = value.trim().toLowerCase();
+		if( value.endsWith("ms") ) {
+			return TimeUnit.MILLISECONDS.toNanos( Long.parseLong(value.substring(0, value.length() - 2)) );
+		}
+		if( value.endsWith("m") ) {
+			return TimeUnit.MINUTES.toNanos( Long.parseLong(value.substring(0, value.length() - 1)) );
+		}
+		if( value.endsWith("s") ) {
+			value = value.substring( 0, value.length() - 1 );
+		}
+		return TimeUnit.SECONDS.toNanos( Long.parseLong(value) );
+	}
+
+	private static void sleepNanos( long nanos ) {
+		try {
+			TimeUnit.NANOSECONDS.sleep( nanos );
+		} catch( InterruptedException e ) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Bytes allocated by the thread, if the JVM can tell; 0 otherwise.
+	 */
+	private static long allocatedBytes( ThreadMXBean threads, long threadId ) {
+		if( threads instanceof com.sun.management.ThreadMXBean ) {
+			com.sun.management.ThreadMXBean sun = (com.sun.management.ThreadMXBean) threads;
+			if( sun.isThreadAllocatedMemorySupported() && sun.isThreadAllocatedMemoryEnabled() ) {
+				return sun.getThreadAllocatedBytes( threadId );
+			}
+		}
+		return 0;
+	}
+
+
+
+///////////////////////////////////////////////////////////////////////////////
+//
+// INTERNAL CLASSES
+//
+///////////////////////////////////////////////////////////////////////////////
+
+	private static class GcSnapshot {
+		private long count = 0;
+		private long timeMillis = 0;
+		private final long heapUsed = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+
+		private GcSnapshot() {
+			for( GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans() ) {
+				this.count += Math.max( 0, gc.getCollectionCount() );
+				this.timeMillis += Math.max( 0, gc.getCollectionTime() );
+			}
+		}
+	}
+
+}
@@ -0,0 +1,651 @@
+package net.thegreshams.firebase4j.emulator;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import net.thegreshams.firebase4j.error.FirebaseException;
+import net.thegreshams.firebase4j.model.FirebasePath;
+import net.thegreshams.firebase4j.model.FirebaseQuery;
+import net.thegreshams.firebase4j.util.PushIdGenerator;
+import org.apache.log4j.Logger;
+import org.codehaus.jackson.map.ObjectMapper;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in-process stand-in for the Firebase Realtime Database REST API, for tests and load tests that must not hit
+ * the real service.
+ * <p>
+ * It keeps one JSON tree in memory and serves it over http on the loopback interface:
+ * <ul>
+ * <li>GET, PUT, PATCH (multi-path), POST (with push-ids) and DELETE, with or without the '.json' suffix;</li>
+ * <li>'shallow', 'print=silent', and 'orderBy' ($key, $value or a child path) with 'startAt', 'endAt', 'equalTo',
+ * 'limitToFirst' and 'limitToLast';</li>
+ * <li>ETags: 'X-Firebase-ETag: true' returns the ETag of the data, 'if-match' makes PUT/PATCH/DELETE conditional
+ * (412 on mismatch) and 'If-None-Match' makes a GET answer 304 when the data did not change;</li>
+ * <li>'Accept: text/event-stream' GETs stream 'put'/'patch' events as the tree changes, plus 'keep-alive' events;
+ * streams with queries get a 'put' of the whole (re-evaluated) query result instead.</li>
+ * </ul>
+ * Latency and failures can be injected ({@link #setLatency(long, long)}, {@link #setFailureRate(double, int)},
+ * {@link #failNext(int, int)}, {@link #setSecureToken(String)}, {@link #cancelStreams()}, ...). Arrays are stored
+ * as objects keyed by index, and nothing is persisted.
+ * <p>
+ * The JDK's http server writes the headers and the body of a response separately, so unless the JVM runs with
+ * {@code -Dsun.net.httpserver.nodelay=true} Nagle's algorithm holds every body back until the client's delayed ack
+ * of the headers (~40ms). That setting applies to every http server of the JVM, so it is left to whoever runs the
+ * emulator (ie: a load test's entry point) rather than set here.
+ */
+public class FirebaseEmulator implements Closeable {
+
+    private static final Logger LOGGER = Logger.getRootLogger();
+    private static final String JSON_SUFFIX = ".json";
+    private static final byte[] CLOSE = new byte[0];
+    private static final byte[] DROP = new byte[0];
+
+
+///////////////////////////////////////////////////////////////////////////////
+//
+// PROPERTIES & CONSTRUCTORS
+//
+///////////////////////////////////////////////////////////////////////////////
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final List<Stream> streams = new CopyOnWriteArrayList<>();
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicInteger failuresLeft = new AtomicInteger();
+    /**
+     * the whole tree: null, a scalar or a map; guarded by this
+     */
+    private Object root = null;
+    private final PushIdGenerator pushIds = new PushIdGenerator();
+
+    private volatile long minLatencyMillis = 0;
+    private volatile long maxLatencyMillis = 0;
+    private volatile double failureRate = 0;
+    private volatile int failureStatus = 503;
+    private volatile int nextFailureStatus = 503;
+    private volatile String secureToken = null;
+    private volatile long keepAliveMillis = 30_000;
+
+    /**
+     * Binds to an ephemeral port on the loopback interface; call {@link #start()} to serve.
+     */
+    public FirebaseEmulator() throws FirebaseException {
+        this(0);
+    }
+
+    /**
+     * @param port -- 0 for an ephemeral port
+     */
+    public FirebaseEmulator(int port) throws FirebaseException {
+        try {
+            server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 256);
+        } catch (IOException e) {
+            String msg = "unable to bind the emulator to port " + port;
+            LOGGER.error(msg);
+            throw new FirebaseException(msg, e);
+        }
+        AtomicInteger threads = new AtomicInteger();
+        executor = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "firebase-emulator-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+    }
+
+
+///////////////////////////////////////////////////////////////////////////////
+//
+// PUBLIC API
+//
+///////////////////////////////////////////////////////////////////////////////
+
+    public FirebaseEmulator start() {
+        server.start();
+        LOGGER.info("emulator serving at " + getBaseUrl());
+        return this;
+    }
+
+    /**
+     * @return the url to create a {@link net.thegreshams.firebase4j.service.Firebase} with
+     */
+    public String getBaseUrl() {
+        return "http://127.0.0.1:" + getPort();
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * @return a copy of the data at the path; null if there is none
+     */
+    public synchronized Object getData(String path) {
+        return copy(get(FirebasePath.of(path)));
+    }
+
+    /**
+     * Replaces the data at the path, as a PUT would (listeners are notified).
+     */
+    public synchronized void setData(String path, Object data) {
+        FirebasePath p = FirebasePath.of(path);
+        set(p, normalize(data));
+        notifyPut(p);
+    }
+
+    /**
+     * Delays every request by a random time between the bounds (streams only when they connect).
+     */
+    public void setLatency(long minMillis, long maxMillis) {
+        this.minLatencyMillis = Math.max(0, minMillis);
+        this.maxLatencyMillis = Math.max(this.minLatencyMillis, maxMillis);
+    }
+
+    /**
+     * Fails the given fraction of requests, chosen at random, with the status code.
+     *
+     * @param rate -- between 0 (the default) and 1
+     */
+    public void setFailureRate(double rate, int statusCode) {
+        this.failureRate = Math.min(1, Math.max(0, rate));
+        this.failureStatus = statusCode;
+    }
+
+    /**
+     * Fails the next requests with the status code.
+     */
+    public void failNext(int count, int statusCode) {
+        this.nextFailureStatus = statusCode;
+        this.failuresLeft.set(Math.max(0, count));
+    }
+
+    /**
+     * Requires requests to carry the token (as 'access_token' or 'auth'); others get a 401.
+     *
+     * @param token -- null (the default) to accept every request
+     */
+    public void setSecureToken(String token) {
+        this.secureToken = token;
+    }
+
+    public void setKeepAliveInterval(long millis) {
+        this.keepAliveMillis = Math.max(1, millis);
+    }
+
+    /**
+     * Ends every open stream with a 'cancel' event.
+     */
+    public void cancelStreams() {
+        endStreams("event: cancel\ndata: null\n\n".getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Ends every open stream with an 'auth_revoked' event.
+     */
+    public void revokeAuth() {
+        endStreams("event: auth_revoked\ndata: \"credential is no longer valid\"\n\n".getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Closes every open stream without a word, like a dropped connection.
+     */
+    public void dropStreams() {
+        endStreams(DROP);
+    }
+
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    public int getStreamCount() {
+        return streams.size();
+    }
+
+    @Override
+    public void close() {
+        endStreams(CLOSE);
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+
+///////////////////////////////////////////////////////////////////////////////
+//
+// PRIVATE API
+//
+///////////////////////////////////////////////////////////////////////////////
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            requestCount.incrementAndGet();
+            delay();
+
+            String rawPath = exchange.getRequestURI().getPath();
+            if (rawPath.endsWith(JSON_SUFFIX)) {
+                rawPath = rawPath.substring(0, rawPath.length() - JSON_SUFFIX.length());
+            }
+            FirebasePath path = FirebasePath.of(rawPath);
+            Map<String, String> params = parseQuery(exchange.getRequestURI().getRawQuery());
+
+            if (failuresLeft.getAndUpdate(n -> Math.max(0, n - 1)) > 0) {
+                sendError(exchange, nextFailureStatus, "injected failure");
+                return;
+            }
+            if (failureRate > 0 && ThreadLocalRandom.current().nextDouble() < failureRate) {
+                sendError(exchange, failureStatus, "injected failure");
+                return;
+            }
+            String token = secureToken;
+            if (token != null && !token.equals(params.get("access_token")) && !token.equals(params.get("auth"))) {
+                sendError(exchange, 401, "Permission denied");
+                return;
+            }
+
+            String method = exchange.getRequestMethod();
+            String override = exchange.getRequestHeaders().getFirst("X-HTTP-Method-Override");
+            if (override != null && "POST".equals(method)) {
+                method = override.toUpperCase();
+            }
+            switch (method) {
+                case "GET":
+                    String accept = exchange.getRequestHeaders().getFirst("Accept");
+                    if (accept != null && accept.contains("text/event-stream")) {
+                        stream(exchange, path, params);
+                    } else {
+                        handleGet(exchange, path, params);
+                    }
+                    break;
+                case "PUT":
+                case "PATCH":
+                case "POST":
+                case "DELETE":
+                    handleWrite(exchange, method, path, params);
+                    break;
+                default:
+                    sendError(exchange, 405, "Method not allowed");
+            }
+        } catch (IllegalArgumentException e) {
+            sendError(exchange, 400, e.getMessage());
+        } catch (Throwable t) {
+            LOGGER.error("emulator failed to handle " + exchange.getRequestMethod() + " " + exchange.getRequestURI(), t);
+            sendError(exchange, 500, String.valueOf(t));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void handleGet(HttpExchange exchange, FirebasePath path, Map<String, String> params) throws IOException {
+        byte[] body;
+        synchronized (this) {
+            body = toJson(query(get(path), params));
+        }
+        String etag = etagOf(body);
+        if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+            exchange.getResponseHeaders().set("ETag", etag);
+            exchange.sendResponseHeaders(304, -1);
+            return;
+        }
+        if ("true".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("X-Firebase-ETag"))) {
+            exchange.getResponseHeaders().set("ETag", etag);
+        }
+        send(exchange, 200, body);
+    }
+
+    private void handleWrite(HttpExchange exchange, String method, FirebasePath path, Map<String, String> params) throws IOException {
+        Object data = null;
+        if (!"DELETE".equals(method)) {
+            try (InputStream in = exchange.getRequestBody()) {
+                byte[] bytes = in.readAllBytes();
+                data = mapper.readValue(bytes, Object.class);
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Invalid data; couldn't parse JSON object, array, or value.");
+            }
+        }
+        if ("PATCH".equals(method) && !(data instanceof Map)) {
+            throw new IllegalArgumentException("Invalid data; couldn't parse JSON object. Are you sending a JSON object with valid key names?");
+        }
+
+        Object response;
+        String etag;
+        synchronized (this) {
+            String ifMatch = exchange.getRequestHeaders().getFirst("if-match");
+            if (ifMatch != null) {
+                byte[] current = toJson(get(path));
+                if (!ifMatch.equals(etagOf(current))) {
+                    exchange.getResponseHeaders().set("ETag", etagOf(current));
+                    send(exchange, 412, current);
+                    return;
+                }
+            }
+            switch (method) {
+                case "PUT":
+                    response = normalize(data);
+                    set(path, copy(response));
+                    notifyPut(path);
+                    break;
+                case "PATCH":
+                    Map<String, Object> children = new LinkedHashMap<>();
+                    for (Map.Entry<?, ?> e : ((Map<?, ?>) data).entrySet()) {
+                        FirebasePath child = path.child(String.valueOf(e.getKey()));
+                        if (child.equals(path)) {
+                            throw new IllegalArgumentException("Invalid data; empty key in patch");
+                        }
+                        Object value = normalize(e.getValue());
+                        set(child, value);
+                        children.put(path.relativize(child).toString().substring(1), copy(value));
+                    }
+                    notifyPatch(path, children);
+                    response = data;
+                    break;
+                case "POST":
+                    String key = pushIds.next();
+                    FirebasePath pushed = path.child(key);
+                    set(pushed, normalize(data));
+                    notifyPut(pushed);
+                    response = Collections.singletonMap("name", key);
+                    break;
+                default:
+                    set(path, null);
+                    notifyPut(path);
+                    response = null;
+            }
+            etag = etagOf(toJson(get(path)));
+        }
+        if ("true".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("X-Firebase-ETag"))) {
+            exchange.getResponseHeaders().set("ETag", etag);
+        }
+        if ("silent".equals(params.get("print"))) {
+            exchange.sendResponseHeaders(204, -1);
+            return;
+        }
+        send(exchange, 200, toJson(response));
+    }
+
+    private void stream(HttpExchange exchange, FirebasePath path, Map<String, String> params) throws IOException {
+        Stream stream = new Stream(path, hasQuery(params) ? params : null);
+        synchronized (this) {
+            // validate the query before answering
+            Object initial = query(get(path), stream.params);
+            stream.queue.add(event("put", FirebasePath.ROOT, initial));
+            streams.add(stream);
+        }
+        Headers headers = exchange.getResponseHeaders();
+        headers.set("Content-Type", "text/event-stream");
+        headers.set("Cache-Control", "no-cache");
+        try {
+            exchange.sendResponseHeaders(200, 0);
+            OutputStream out = exchange.getResponseBody();
+            while (true) {
+                byte[] event = stream.queue.poll(keepAliveMillis, TimeUnit.MILLISECONDS);
+                if (event == CLOSE || event == DROP) {
+                    break;
+                }
+                if (event == null) {
+                    event = "event: keep-alive\ndata: null\n\n".getBytes(StandardCharsets.UTF_8);
+                }
+                out.write(event);
+                out.flush();
+                if (event == stream.last) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.info("stream of " + path + " closed by the client");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            streams.remove(stream);
+        }
+    }
+
+    private void endStreams(byte[] lastEvent) {
+        for (Stream stream : streams) {
+            streams.remove(stream);
+            stream.last = lastEvent;
+            stream.queue.add(lastEvent);
+        }
+    }
+
+    /**
+     * Tells every stream that overlaps the path about the new data at the path; called with this held.
+     */
+    private void notifyPut(FirebasePath path) {
+        for (Stream stream : streams) {
+            if (!stream.path.overlaps(path)) {
+                continue;
+            }
+            if (stream.params != null) {
+                stream.queue.add(event("put", FirebasePath.ROOT, query(get(stream.path), stream.params)));
+            } else if (stream.path.contains(path)) {
+                stream.queue.add(event("put", stream.path.relativize(path), get(path)));
+            } else {
+                stream.queue.add(event("put", FirebasePath.ROOT, get(stream.path)));
+            }
+        }
+    }
+
+    private void notifyPatch(FirebasePath path, Map<String, Object> children) {
+        for (Stream stream : streams) {
+            if (stream.params == null && stream.path.contains(path)) {
+                stream.queue.add(event("patch", stream.path.relativize(path), children));
+                continue;
+            }
+            for (String key : children.keySet()) {
+                if (stream.path.overlaps(path.child(key))) {
+                    Object data = stream.params != null ? query(get(stream.path), stream.params) : get(stream.path);
+                    stream.queue.add(event("put", FirebasePath.ROOT, data));
+                    break;
+                }
+            }
+        }
+    }
+
+    private byte[] event(String name, FirebasePath path, Object data) {
+        Map<String, Object> payload = new LinkedHashMap<>();
+        payload.put("path", path.toString());
+        payload.put("data", data);
+        return ("event: " + name + "\ndata: " + new String(toJson(payload), StandardCharsets.UTF_8) + "\n\n")
+                .getBytes(StandardCharsets.UTF_8);
+    }
+
+    private Object get(FirebasePath path) {
+        Object node = root;
+        for (String segment : path.segments()) {
+            if (!(node instanceof Map)) {
+                return null;
+            }
+            node = ((Map<?, ?>) node).get(segment);
+        }
+        return node;
+    }
+
+    /**
+     * Writes the (normalized) value at the path; null removes it, along with the parents it leaves empty.
+     */
+    @SuppressWarnings("unchecked")
+    private void set(FirebasePath path, Object value) {
+        if (path.isRoot()) {
+            root = value;
+            return;
+        }
+        if (value == null) {
+            Object parent = get(path.parent());
+            if (parent instanceof Map) {
+                ((Map<String, Object>) parent).remove(path.getKey());
+                if (((Map<?, ?>) parent).isEmpty()) {
+                    set(path.parent(), null);
+                }
+            }
+            return;
+        }
+        if (!(root instanceof Map)) {
+            root = new LinkedHashMap<String, Object>();
+        }
+        Map<String, Object> node = (Map<String, Object>) root;
+        String[] segments = path.segments();
+        for (int i = 0; i < segments.length - 1; i++) {
+            Object child = node.get(segments[i]);
+            if (!(child instanceof Map)) {
+                child = new LinkedHashMap<String, Object>();
+                node.put(segments[i], child);
+            }
+            node = (Map<String, Object>) child;
+        }
+        node.put(path.getKey(), value);
+    }
+
+    /**
+     * Copies the value into the tree's own representation: maps with null/empty children dropped, lists as maps
+     * keyed by index, and empty maps as null.
+     */
+    private static Object normalize(Object value) {
+        Map<String, Object> result;
+        if (value instanceof Map) {
+            result = new LinkedHashMap<>();
+            for (Map.Entry<?, ?> e : ((Map<?, ?>) value).entrySet()) {
+                Object child = normalize(e.getValue());
+                if (child != null) {
+                    result.put(String.valueOf(e.getKey()), child);
+                }
+            }
+        } else if (value instanceof List) {
+            result = new LinkedHashMap<>();
+            List<?> list = (List<?>) value;
+            for (int i = 0; i < list.size(); i++) {
+                Object child = normalize(list.get(i));
+                if (child != null) {
+                    result.put(String.valueOf(i), child);
+                }
+            }
+        } else {
+            return value;
+        }
+        return result.isEmpty() ? null : result;
+    }
+
+    private static Object copy(Object value) {
+        return value instanceof Map ? normalize(value) : value;
+    }
+
+    private static boolean hasQuery(Map<String, String> params) {
+        return FirebaseQuery.isQuery(params);
+    }
+
+    /**
+     * Applies the ordering, filtering and shallow parameters to the node.
+     */
+    private Object query(Object node, Map<String, String> params) {
+        if (params == null || !hasQuery(params)) {
+            return node;
+        }
+        return FirebaseQuery.parse(params).apply(node);
+    }
+
+    private static Map<String, String> parseQuery(String rawQuery) {
+        Map<String, String> result = new HashMap<>();
+        if (rawQuery == null || rawQuery.isEmpty()) {
+            return result;
+        }
+        for (String pair : rawQuery.split("&")) {
+            int eq = pair.indexOf('=');
+            String name = URLDecoder.decode(eq < 0 ? pair : pair.substring(0, eq), StandardCharsets.UTF_8);
+            String value = eq < 0 ? "" : URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8);
+            result.put(name, value);
+        }
+        return result;
+    }
+
+    private byte[] toJson(Object value) {
+        try {
+            return mapper.writeValueAsBytes(value);
+        } catch (IOException e) {
+            throw new IllegalStateException("unable to serialize " + value, e);
+        }
+    }
+
+    private static String etagOf(byte[] json) {
+        try {
+            return Base64.getEncoder().encodeToString(MessageDigest.getInstance("SHA-1").digest(json));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void delay() throws InterruptedException {
+        long min = minLatencyMillis, max = maxLatencyMillis;
+        if (max > 0) {
+            Thread.sleep(min == max ? min : ThreadLocalRandom.current().nextLong(min, max + 1));
+        }
+    }
+
+    private void send(HttpExchange exchange, int status, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private void sendError(HttpExchange exchange, int status, String message) {
+        try {
+            send(exchange, status, toJson(Collections.singletonMap("error", message)));
+        } catch (IOException e) {
+            LOGGER.info("unable to send the error response: " + e);
+        }
+    }
+
+
+///////////////////////////////////////////////////////////////////////////////
+//
+// INTERNAL CLASSES
+//
+///////////////////////////////////////////////////////////////////////////////
+
+    private static class Stream {
+        private final FirebasePath path;
+        /**
+         * null unless the stream has ordering/filtering parameters
+         */
+        private final Map<String, String> params;
+        private final BlockingQueue<byte[]> queue = new LinkedBlockingQueue<>();
+        /**
+         * the event that ends the stream, once it is being ended
+         */
+        private volatile byte[] last = null;
+
+        private Stream(FirebasePath path, Map<String, String> params) {
+            this.path = path;
+            this.params = params;
+        }
+    }
+
+}
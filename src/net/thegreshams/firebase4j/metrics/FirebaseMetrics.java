@@ -0,0 +1,87 @@
+package net.thegreshams.firebase4j.metrics;
+
+import net.thegreshams.firebase4j.model.FirebasePath;
+import net.thegreshams.firebase4j.service.Firebase.FirebaseRestMethod;
+
+/**
+ * Receives measurements from a {@link net.thegreshams.firebase4j.service.Firebase} (and the streams of a
+ * {@link net.thegreshams.firebase4j.service.RealtimeDatabase}).
+ * <p>
+ * Every method has an empty default, so implementations only override what they record. Methods are called
+ * synchronously on the thread doing the work, from many threads at once; implementations must be thread-safe and
+ * should not block. {@link InMemoryFirebaseMetrics} is a ready-made implementation.
+ */
+public interface FirebaseMetrics {
+
+	/**
+	 * Records nothing; the default of every client.
+	 */
+	FirebaseMetrics NONE = new FirebaseMetrics() {
+	};
+
+
+	/**
+	 * A request got a response (successful or not).
+	 *
+	 * @param method -- the REST method
+	 * @param path -- the requested path
+	 * @param statusCode -- the HTTP status code of the response
+	 * @param latencyNanos -- from just before the request was sent until its response was parsed
+	 * @param bytesOut -- size of the request body; 0 if there was none
+	 * @param bytesIn -- size of the response body
+	 */
+	default void onRequest( FirebaseRestMethod method, FirebasePath path, int statusCode, long latencyNanos, long bytesOut, long bytesIn ) {
+	}
+
+	/**
+	 * A request failed without a (usable) response, ie: the endpoint was unreachable or the body could not be read.
+	 */
+	default void onRequestFailed( FirebaseRestMethod method, FirebasePath path, long latencyNanos, Throwable cause ) {
+	}
+
+	/**
+	 * A request was not sent because an identical one was already in flight; the caller got that request's
+	 * response (see {@link net.thegreshams.firebase4j.service.Firebase#setCoalesceReads(boolean)}).
+	 */
+	default void onRequestCoalesced( FirebaseRestMethod method, FirebasePath path ) {
+	}
+
+	/**
+	 * A request was held back by the client's rate limiter before it was sent (see
+	 * {@link net.thegreshams.firebase4j.service.Firebase#setRateLimiter}).
+	 *
+	 * @param waitNanos -- time spent waiting for a permit
+	 */
+	default void onRequestThrottled( FirebaseRestMethod method, FirebasePath path, long waitNanos ) {
+	}
+
+	/**
+	 * A connection was leased from the pool.
+	 *
+	 * @param waitNanos -- time spent waiting for the lease (ie: for a free connection)
+	 */
+	default void onConnectionLeased( long waitNanos ) {
+	}
+
+	/**
+	 * A put/patch event of a stream was applied and delivered.
+	 *
+	 * @param path -- the path the listener is registered on
+	 * @param event -- 'put' or 'patch'
+	 * @param bytes -- size of the event as received
+	 * @param dispatchNanos -- from receiving the event until the listener was called (parsing and cache update)
+	 * @param callbackNanos -- time spent in the listener
+	 */
+	default void onStreamEvent( FirebasePath path, String event, int bytes, long dispatchNanos, long callbackNanos ) {
+	}
+
+	/**
+	 * A stream stopped because of an error.
+	 *
+	 * @param path -- the path the listener is registered on
+	 * @param error -- what went wrong, ie: {@link net.thegreshams.firebase4j.service.RealtimeDatabase.ErrorCode}
+	 */
+	default void onStreamError( FirebasePath path, Object error ) {
+	}
+
+}
@@ -0,0 +1,33 @@
+package net.thegreshams.firebase4j.metrics;
+
+/**
+ * Receives a phase-by-phase breakdown of every request of a {@link net.thegreshams.firebase4j.service.Firebase}
+ * and of every event of the streams of a {@link net.thegreshams.firebase4j.service.RealtimeDatabase}.
+ * <p>
+ * Where {@link FirebaseMetrics} answers 'how slow', a tracer answers 'slow where': connection lease, connect (and
+ * TLS handshake), sending, waiting for the first byte, downloading, parsing. While the tracer is {@link #NONE} (the
+ * default) no timestamps are taken and no traces are built. Methods are called synchronously on the thread that did
+ * the work, from many threads at once; implementations must be thread-safe and should not block.
+ */
+public interface FirebaseTracer {
+
+	/**
+	 * Traces nothing; the default of every client.
+	 */
+	FirebaseTracer NONE = new FirebaseTracer() {
+	};
+
+
+	/**
+	 * A request finished, successfully or not.
+	 */
+	default void onRequest( RequestTrace trace ) {
+	}
+
+	/**
+	 * A put/patch event of a stream was applied and delivered.
+	 */
+	default void onStreamEvent( StreamEventTrace trace ) {
+	}
+
+}
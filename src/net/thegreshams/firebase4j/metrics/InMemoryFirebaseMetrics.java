@@ -0,0 +1,240 @@
+package net.thegreshams.firebase4j.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import net.thegreshams.firebase4j.model.FirebasePath;
+import net.thegreshams.firebase4j.service.Firebase.FirebaseRestMethod;
+
+/**
+ * A {@link FirebaseMetrics} that keeps everything in memory and can dump it as a plain-text report.
+ * <p>
+ * Requests are grouped by method and path template; the template is the path cut to {@code templateDepth}
+ * segments, with segments that look like generated ids (push-ids, numbers, UUIDs) replaced by '*', so that
+ * '/users/-NxH3kq8v7TqzXk2aB1c/name' and '/users/-NxH3m0aQ8pWd0sLkCc9/name' share '/users/&#42;/name'.
+ */
+public class InMemoryFirebaseMetrics implements FirebaseMetrics {
+
+	public static final int DEFAULT_TEMPLATE_DEPTH = 3;
+
+
+
+///////////////////////////////////////////////////////////////////////////////
+//
+// PROPERTIES & CONSTRUCTORS
+//
+///////////////////////////////////////////////////////////////////////////////
+
+	private final int templateDepth;
+	private final long createdNanos = System.nanoTime();
+	private final ConcurrentHashMap<String, RequestStats> requests = new ConcurrentHashMap<String, RequestStats>();
+	private final ConcurrentHashMap<String, StreamStats> streams = new ConcurrentHashMap<String, StreamStats>();
+	private final LatencyHistogram leaseWait = new LatencyHistogram();
+	private final LatencyHistogram throttleWait = new LatencyHistogram();
+
+	public InMemoryFirebaseMetrics() {
+		this( DEFAULT_TEMPLATE_DEPTH );
+	}
+
+	/**
+	 * @param templateDepth -- number of path segments requests are grouped by
+	 */
+	public InMemoryFirebaseMetrics( int templateDepth ) {
+		this.templateDepth = templateDepth;
+	}
+
+
+
+///////////////////////////////////////////////////////////////////////////////
+//
+// PUBLIC API
+//
+///////////////////////////////////////////////////////////////////////////////
+
+	@Override
+	public void onRequest( FirebaseRestMethod method, FirebasePath path, int statusCode, long latencyNanos, long bytesOut, long bytesIn ) {
+		RequestStats stats = this.requestStats( method, path );
+		stats.latency.recordNanos( latencyNanos );
+		stats.bytesOut.add( bytesOut );
+		stats.bytesIn.add( bytesIn );
+		stats.statusCodes.computeIfAbsent( statusCode, c -> new LongAdder() ).increment();
+	}
+
+	@Override
+	public void onRequestFailed( FirebaseRestMethod method, FirebasePath path, long latencyNanos, Throwable cause ) {
+		RequestStats stats = this.requestStats( method, path );
+		stats.latency.recordNanos( latencyNanos );
+		stats.failures.increment();
+	}
+
+	@Override
+	public void onRequestCoalesced( FirebaseRestMethod method, FirebasePath path ) {
+		this.requestStats( method, path ).coalesced.increment();
+	}
+
+	@Override
+	public void onRequestThrottled( FirebaseRestMethod method, FirebasePath path, long waitNanos ) {
+		this.requestStats( method, path ).throttled.increment();
+		this.throttleWait.recordNanos( waitNanos );
+	}
+
+	@Override
+	public void onConnectionLeased( long waitNanos ) {
+		this.leaseWait.recordNanos( waitNanos );
+	}
+
+	@Override
+	public void onStreamEvent( FirebasePath path, String event, int bytes, long dispatchNanos, long callbackNanos ) {
+		StreamStats stats = this.streamStats( path );
+		stats.events.increment();
+		stats.bytes.add( bytes );
+		stats.dispatch.recordNanos( dispatchNanos );
+		stats.callback.recordNanos( callbackNanos );
+	}
+
+	@Override
+	public void onStreamError( FirebasePath path, Object error ) {
+		this.streamStats( path ).errors.increment();
+	}
+
+	/**
+	 * @return the latency histogram of the requests grouped under the method and template, or null if there were none
+	 */
+	public LatencyHistogram getLatency( FirebaseRestMethod method, String pathTemplate ) {
+		RequestStats stats = this.requests.get( method + " " + pathTemplate );
+		return stats == null ? null : stats.latency;
+	}
+
+	public LatencyHistogram getLeaseWait() {
+		return this.leaseWait;
+	}
+
+	/**
+	 * Returns the template requests on the path are grouped under.
+	 */
+	public String templateOf( FirebasePath path ) {
+		String[] segments = path.segments();
+		StringBuilder builder = new StringBuilder();
+		for( int i = 0; i < Math.min(segments.length, this.templateDepth); i++ ) {
+			builder.append( '/' ).append( looksGenerated(segments[i]) ? "*" : segments[i] );
+		}
+		if( segments.length > this.templateDepth ) {
+			builder.append( "/**" );
+		}
+		return builder.length() == 0 ? "/" : builder.toString();
+	}
+
+	public void reset() {
+		this.requests.clear();
+		this.streams.clear();
+		this.leaseWait.reset();
+		this.throttleWait.reset();
+	}
+
+	/**
+	 * @return a plain-text report of everything recorded so far
+	 */
+	public String dump() {
+		StringBuilder result = new StringBuilder();
+		double seconds = Math.max( 1e-9, (System.nanoTime() - this.createdNanos) / 1e9 );
+
+		result.append( "requests:\n" );
+		for( Map.Entry<String, RequestStats> e : new TreeMap<String, RequestStats>(this.requests).entrySet() ) {
+			RequestStats s = e.getValue();
+			result.append( "  " ).append( e.getKey() ).append( ": " ).append( s.latency )
+					.append( " failures=" ).append( s.failures.sum() )
+					.append( " coalesced=" ).append( s.coalesced.sum() )
+					.append( " throttled=" ).append( s.throttled.sum() )
+					.append( " status=" ).append( new TreeMap<Integer, LongAdder>(s.statusCodes) )
+					.append( " out=" ).append( s.bytesOut.sum() ).append( "B" )
+					.append( " in=" ).append( s.bytesIn.sum() ).append( "B\n" );
+		}
+		result.append( "connection lease wait: " ).append( this.leaseWait ).append( '\n' );
+		result.append( "rate limiter wait: " ).append( this.throttleWait ).append( '\n' );
+
+		result.append( "streams:\n" );
+		for( Map.Entry<String, StreamStats> e : new TreeMap<String, StreamStats>(this.streams).entrySet() ) {
+			StreamStats s = e.getValue();
+			result.append( "  " ).append( e.getKey() ).append( ": " )
+					.append( String.format("%.1f events/s", s.events.sum() / seconds) )
+					.append( " errors=" ).append( s.errors.sum() )
+					.append( " in=" ).append( s.bytes.sum() ).append( "B\n" )
+					.append( "    dispatch: " ).append( s.dispatch ).append( '\n' )
+					.append( "    callback: " ).append( s.callback ).append( '\n' );
+		}
+		return result.toString();
+	}
+
+	@Override
+	public String toString() {
+		return this.dump();
+	}
+
+
+
+///////////////////////////////////////////////////////////////////////////////
+//
+// PRIVATE API
+//
+///////////////////////////////////////////////////////////////////////////////
+
+	private RequestStats requestStats( FirebaseRestMethod method, FirebasePath path ) {
+		String key = method + " " + this.templateOf( path == null ? FirebasePath.ROOT : path );
+		RequestStats stats = this.requests.get( key );
+		return stats != null ? stats : this.requests.computeIfAbsent( key, k -> new RequestStats() );
+	}
+
+	private StreamStats streamStats( FirebasePath path ) {
+		String key = String.valueOf( path );
+		StreamStats stats = this.streams.get( key );
+		return stats != null ? stats : this.streams.computeIfAbsent( key, k -> new StreamStats() );
+	}
+
+	/**
+	 * push-ids (20 chars starting with '-'), all-digit segments and UUIDs
+	 */
+	private static boolean looksGenerated( String segment ) {
+		int length = segment.length();
+		if( length == 20 && segment.charAt(0) == '-' ) {
+			return true;
+		}
+		if( length == 36 && segment.charAt(8) == '-' && segment.charAt(13) == '-' ) {
+			return true;
+		}
+		for( int i = 0; i < length; i++ ) {
+			if( !Character.isDigit(segment.charAt(i)) ) {
+				return false;
+			}
+		}
+		return length > 0;
+	}
+
+
+
+///////////////////////////////////////////////////////////////////////////////
+//
+// INTERNAL CLASSES
+//
+///////////////////////////////////////////////////////////////////////////////
+
+	private static class RequestStats {
+		private final LatencyHistogram latency = new LatencyHistogram();
+		private final LongAdder failures = new LongAdder();
+		private final LongAdder coalesced = new LongAdder();
+		private final LongAdder throttled = new LongAdder();
+		private final LongAdder bytesOut = new LongAdder();
+		private final LongAdder bytesIn = new LongAdder();
+		private final ConcurrentHashMap<Integer, LongAdder> statusCodes = new ConcurrentHashMap<Integer, LongAdder>();
+	}
+
+	private static class StreamStats {
+		private final LongAdder events = new LongAdder();
+		private final LongAdder errors = new LongAdder();
+		private final LongAdder bytes = new LongAdder();
+		private final LatencyHistogram dispatch = new LatencyHistogram();
+		private final LatencyHistogram callback = new LatencyHistogram();
+	}
+
+}
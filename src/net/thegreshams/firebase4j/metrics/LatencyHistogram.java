@@ -0,0 +1,135 @@
+package net.thegreshams.firebase4j.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free, fixed-size histogram of durations with HDR-style log-linear buckets.
+ * <p>
+ * Values are recorded in microseconds. Each power of two is split into {@value #SUB_BUCKETS} linear sub-buckets, so
+ * every reported percentile is within ~3% of the true value, from 1us up to ~12 days; larger values are clamped.
+ * Recording is a single atomic increment, so it is cheap enough to do on every request.
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS 	= 5;
+	private static final int SUB_BUCKETS 		= 1 << SUB_BUCKET_BITS;
+	private static final int MAX_MAGNITUDE 		= 40;
+	private static final long MAX_VALUE 		= (1L << MAX_MAGNITUDE) - 1;
+
+
+
+///////////////////////////////////////////////////////////////////////////////
+//
+// PROPERTIES & CONSTRUCTORS
+//
+///////////////////////////////////////////////////////////////////////////////
+
+	private final AtomicLongArray counts = new AtomicLongArray( (MAX_MAGNITUDE - SUB_BUCKET_BITS + 1) * SUB_BUCKETS );
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+
+
+///////////////////////////////////////////////////////////////////////////////
+//
+// PUBLIC API
+//
+///////////////////////////////////////////////////////////////////////////////
+
+	public void recordNanos( long nanos ) {
+		this.record( TimeUnit.NANOSECONDS.toMicros(nanos) );
+	}
+
+	/**
+	 * @param micros -- negative values are recorded as 0
+	 */
+	public void record( long micros ) {
+		long value = Math.min( Math.max(0, micros), MAX_VALUE );
+		this.counts.incrementAndGet( index(value) );
+		this.count.incrementAndGet();
+		this.sum.addAndGet( value );
+		long m;
+		while( value > (m = this.max.get()) && !this.max.compareAndSet(m, value) ) {
+			// retry
+		}
+	}
+
+	public long getCount() {
+		return this.count.get();
+	}
+
+	public long getMaxMicros() {
+		return this.max.get();
+	}
+
+	public double getMeanMicros() {
+		long n = this.count.get();
+		return n == 0 ? 0 : (double) this.sum.get() / n;
+	}
+
+	/**
+	 * @param percentile -- between 0 and 100
+	 * @return the (approximate) value at the percentile, in microseconds; 0 if nothing was recorded
+	 */
+	public long getPercentileMicros( double percentile ) {
+		long n = this.count.get();
+		if( n == 0 ) {
+			return 0;
+		}
+		long rank = Math.max( 1, (long) Math.ceil(n * Math.min(100, Math.max(0, percentile)) / 100) );
+		long seen = 0;
+		for( int i = 0; i < this.counts.length(); i++ ) {
+			seen += this.counts.get( i );
+			if( seen >= rank ) {
+				return Math.min( highestValueOf(i), this.max.get() );
+			}
+		}
+		return this.max.get();
+	}
+
+	public void reset() {
+		for( int i = 0; i < this.counts.length(); i++ ) {
+			this.counts.set( i, 0 );
+		}
+		this.count.set( 0 );
+		this.sum.set( 0 );
+		this.max.set( 0 );
+	}
+
+	@Override
+	public String toString() {
+		return String.format( "n=%d mean=%.0fus p50=%dus p90=%dus p99=%dus p99.9=%dus max=%dus",
+				getCount(), getMeanMicros(), getPercentileMicros(50), getPercentileMicros(90),
+				getPercentileMicros(99), getPercentileMicros(99.9), getMaxMicros() );
+	}
+
+
+
+///////////////////////////////////////////////////////////////////////////////
+//
+// PRIVATE API
+//
+///////////////////////////////////////////////////////////////////////////////
+
+	private static int index( long value ) {
+		int magnitude = 63 - Long.numberOfLeadingZeros( value | 1 );
+		if( magnitude < SUB_BUCKET_BITS ) {
+			return (int) value;
+		}
+		int shift = magnitude - SUB_BUCKET_BITS;
+		return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+	}
+
+	private static long highestValueOf( int index ) {
+		if( index < SUB_BUCKETS ) {
+			return index;
+		}
+		int shift = index / SUB_BUCKETS - 1;
+		long sub = index % SUB_BUCKETS;
+		return ((SUB_BUCKETS + sub + 1) << shift) - 1;
+	}
+
+}
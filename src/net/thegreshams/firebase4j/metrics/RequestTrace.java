@@ -0,0 +1,155 @@
+package net.thegreshams.firebase4j.metrics;
+
+import net.thegreshams.firebase4j.model.FirebasePath;
+import net.thegreshams.firebase4j.service.Firebase.FirebaseRestMethod;
+
+/**
+ * The timeline of one request, as handed to {@link FirebaseTracer#onRequest(RequestTrace)}.
+ * <p>
+ * The pipeline marks the end of each {@link Phase} as it gets there; a phase lasts from the end of the last phase
+ * before it that was reached (or from the start of the request) until its own end. Phases that were not reached
+ * (ie: {@link Phase#CONNECT} when a pooled connection was reused, or everything after a failure) report -1.
+ */
+public final class RequestTrace {
+
+	public enum Phase {
+		/** waiting for a connection from the pool */
+		LEASE,
+		/** opening a new connection, including the TLS handshake */
+		CONNECT,
+		/** writing the request line, headers and body */
+		SEND,
+		/** waiting for the response headers (ie: server time-to-first-byte) */
+		WAIT,
+		/** reading the response body */
+		DOWNLOAD,
+		/** parsing the response body as JSON */
+		PARSE
+	}
+
+	private static final Phase[] PHASES = Phase.values();
+
+
+
+///////////////////////////////////////////////////////////////////////////////
+//
+// PROPERTIES & CONSTRUCTORS
+//
+///////////////////////////////////////////////////////////////////////////////
+
+	private final FirebaseRestMethod method;
+	private final FirebasePath path;
+	private final long startNanos;
+	private final long[] ends = new long[PHASES.length];
+	private int statusCode = -1;
+	private Throwable failure;
+
+	public RequestTrace( FirebaseRestMethod method, FirebasePath path, long startNanos ) {
+		this.method = method;
+		this.path = path;
+		this.startNanos = startNanos;
+	}
+
+
+
+///////////////////////////////////////////////////////////////////////////////
+//
+// PUBLIC API
+//
+///////////////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Marks the end of the phase at the current time, unless it was already marked.
+	 */
+	public void end( Phase phase ) {
+		if( this.ends[phase.ordinal()] == 0 ) {
+			this.ends[phase.ordinal()] = System.nanoTime();
+		}
+	}
+
+	public boolean hasEnded( Phase phase ) {
+		return this.ends[phase.ordinal()] != 0;
+	}
+
+	/**
+	 * @return how long the phase took, or -1 if it was not reached
+	 */
+	public long getNanos( Phase phase ) {
+		long end = this.ends[phase.ordinal()];
+		if( end == 0 ) {
+			return -1;
+		}
+		long begin = this.startNanos;
+		for( int i = phase.ordinal() - 1; i >= 0; i-- ) {
+			if( this.ends[i] != 0 ) {
+				begin = this.ends[i];
+				break;
+			}
+		}
+		return end - begin;
+	}
+
+	/**
+	 * @return from the start of the request until the last phase that was reached
+	 */
+	public long getTotalNanos() {
+		for( int i = PHASES.length - 1; i >= 0; i-- ) {
+			if( this.ends[i] != 0 ) {
+				return this.ends[i] - this.startNanos;
+			}
+		}
+		return 0;
+	}
+
+	public FirebaseRestMethod getMethod() {
+		return this.method;
+	}
+
+	public FirebasePath getPath() {
+		return this.path;
+	}
+
+	public long getStartNanos() {
+		return this.startNanos;
+	}
+
+	/**
+	 * @return the HTTP status code, or -1 if no response was received
+	 */
+	public int getStatusCode() {
+		return this.statusCode;
+	}
+
+	public void setStatusCode( int statusCode ) {
+		this.statusCode = statusCode;
+	}
+
+	/**
+	 * @return why the request failed, or null if it did not
+	 */
+	public Throwable getFailure() {
+		return this.failure;
+	}
+
+	public void setFailure( Throwable failure ) {
+		this.failure = failure;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder result = new StringBuilder();
+		result.append( this.method ).append( ' ' ).append( this.path ).append( ' ' ).append( this.statusCode );
+		for( Phase phase : PHASES ) {
+			long nanos = this.getNanos( phase );
+			if( nanos >= 0 ) {
+				result.append( ' ' ).append( phase.name().toLowerCase() ).append( '=' ).append( nanos / 1000 ).append( "us" );
+			}
+		}
+		result.append( " total=" ).append( this.getTotalNanos() / 1000 ).append( "us" );
+		if( this.failure != null ) {
+			result.append( " failure=" ).append( this.failure );
+		}
+		return result.toString();
+	}
+
+}
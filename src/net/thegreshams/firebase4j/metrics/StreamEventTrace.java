@@ -0,0 +1,79 @@
+package net.thegreshams.firebase4j.metrics;
+
+import net.thegreshams.firebase4j.model.FirebasePath;
+
+/**
+ * The timeline of one stream event, as handed to {@link FirebaseTracer#onStreamEvent(StreamEventTrace)}; it starts
+ * when the event's bytes were received.
+ */
+public final class StreamEventTrace {
+
+	private final FirebasePath path;
+	private final String event;
+	private final int bytes;
+	private final long receivedNanos;
+	private final long parsedNanos;
+	private final long appliedNanos;
+	private final long deliveredNanos;
+
+	/**
+	 * @param path -- the path the listener is registered on
+	 * @param event -- 'put' or 'patch'
+	 * @param bytes -- size of the event as received
+	 * @param receivedNanos -- when the event was read off the stream
+	 * @param parsedNanos -- when its JSON was parsed
+	 * @param appliedNanos -- when it was applied to the cache
+	 * @param deliveredNanos -- when the listener returned
+	 */
+	public StreamEventTrace( FirebasePath path, String event, int bytes, long receivedNanos, long parsedNanos, long appliedNanos, long deliveredNanos ) {
+		this.path = path;
+		this.event = event;
+		this.bytes = bytes;
+		this.receivedNanos = receivedNanos;
+		this.parsedNanos = parsedNanos;
+		this.appliedNanos = appliedNanos;
+		this.deliveredNanos = deliveredNanos;
+	}
+
+	public FirebasePath getPath() {
+		return this.path;
+	}
+
+	public String getEvent() {
+		return this.event;
+	}
+
+	public int getBytes() {
+		return this.bytes;
+	}
+
+	public long getReceivedNanos() {
+		return this.receivedNanos;
+	}
+
+	public long getParseNanos() {
+		return this.parsedNanos - this.receivedNanos;
+	}
+
+	public long getCacheApplyNanos() {
+		return this.appliedNanos - this.parsedNanos;
+	}
+
+	public long getCallbackNanos() {
+		return this.deliveredNanos - this.appliedNanos;
+	}
+
+	public long getTotalNanos() {
+		return this.deliveredNanos - this.receivedNanos;
+	}
+
+	@Override
+	public String toString() {
+		return this.event + " " + this.path + " " + this.bytes + "B"
+				+ " parse=" + this.getParseNanos() / 1000 + "us"
+				+ " cache=" + this.getCacheApplyNanos() / 1000 + "us"
+				+ " callback=" + this.getCallbackNanos() / 1000 + "us"
+				+ " total=" + this.getTotalNanos() / 1000 + "us";
+	}
+
+}
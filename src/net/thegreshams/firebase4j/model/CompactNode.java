@@ -0,0 +1,447 @@
+package net.thegreshams.firebase4j.model;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A JSON object that takes a fraction of the heap of a parsed {@link java.util.HashMap}, for large trees that are
+ * kept in memory (ie: the cache of a {@link net.thegreshams.firebase4j.service.RealtimeDatabase}).
+ * <p>
+ * The children are held in arrays sorted by key, instead of one entry object each: keys are interned, and nodes with
+ * the same few keys (ie: records like {age, name}) share one key array. Integers, longs, doubles and booleans are
+ * kept unboxed, and are boxed again (as the same type) when read. Lookups are binary searches, and adding or
+ * removing a child shifts the ones after it, so it suits trees that are read far more often than they are grown.
+ * <p>
+ * Iterates in the keys' natural order. Not thread-safe, and its iterators are not fail-fast.
+ */
+public final class CompactNode extends AbstractMap<String, Object> {
+
+	/**
+	 * nodes with more keys than this get key arrays of their own
+	 */
+	private static final int MAX_SHARED_KEYS = 16;
+	private static final int MAX_SHAPES = 10_000;
+	private static final ConcurrentHashMap<Shape, String[]> SHAPES = new ConcurrentHashMap<Shape, String[]>();
+	private static final String[] NO_KEYS = new String[0];
+	private static final Object[] NO_VALUES = new Object[0];
+
+	// stand in for an unboxed value in the slots of values; the value itself is in the same slot of primitives
+	private static final Object INT = new Object();
+	private static final Object LONG = new Object();
+	private static final Object DOUBLE = new Object();
+	private static final Object BOOLEAN = new Object();
+
+
+
+///////////////////////////////////////////////////////////////////////////////
+//
+// PROPERTIES & CONSTRUCTORS
+//
+///////////////////////////////////////////////////////////////////////////////
+
+	private String[] keys;
+	private boolean sharedKeys; // keys is shared with other nodes, so it is copied before it is changed
+	private Object[] values;
+	private long[] primitives; // null until the first unboxed value
+	private int size;
+
+	public CompactNode() {
+		this.keys = NO_KEYS;
+		this.values = NO_VALUES;
+	}
+
+	private CompactNode( String[] keys, boolean sharedKeys ) {
+		this.keys = keys;
+		this.sharedKeys = sharedKeys;
+		this.values = new Object[keys.length];
+		this.size = keys.length;
+	}
+
+	/**
+	 * Converts a parsed JSON value, replacing every map in it with a CompactNode (lists are copied, with their
+	 * elements converted).
+	 *
+	 * @return the converted value; strings, numbers, booleans, nulls and CompactNodes are returned as they are
+	 */
+	public static Object compact( Object value ) {
+		if( value instanceof CompactNode ) {
+			return value;
+		}
+		if( value instanceof Map ) {
+			Map<?, ?> map = (Map<?, ?>) value;
+			String[] keys = new String[map.size()];
+			int i = 0;
+			for( Object key : map.keySet() ) {
+				keys[i++] = FirebasePath.intern( String.valueOf(key) );
+			}
+			Arrays.sort( keys );
+			String[] shared = share( keys );
+			CompactNode node = new CompactNode( shared != null ? shared : keys, shared != null );
+			for( i = 0; i < keys.length; i++ ) {
+				node.set( i, compact(map.get(keys[i])) );
+			}
+			return node;
+		}
+		if( value instanceof List ) {
+			List<?> list = (List<?>) value;
+			List<Object> result = new ArrayList<Object>( list.size() );
+			for( Object e : list ) {
+				result.add( compact(e) );
+			}
+			return result;
+		}
+		return value;
+	}
+
+
+
+///////////////////////////////////////////////////////////////////////////////
+//
+// PUBLIC API
+//
+///////////////////////////////////////////////////////////////////////////////
+
+	@Override
+	public int size() {
+		return this.size;
+	}
+
+	@Override
+	public boolean containsKey( Object key ) {
+		return this.indexOf( key ) >= 0;
+	}
+
+	@Override
+	public Object get( Object key ) {
+		int i = this.indexOf( key );
+		return i >= 0 ? this.valueAt( i ) : null;
+	}
+
+	@Override
+	public Object put( String key, Object value ) {
+		if( key == null ) {
+			throw new NullPointerException( "key cannot be null" );
+		}
+		int i = this.indexOf( key );
+		if( i >= 0 ) {
+			Object previous = this.valueAt( i );
+			this.set( i, value );
+			return previous;
+		}
+		this.insert( -i - 1, FirebasePath.intern(key) );
+		this.set( -i - 1, value );
+		return null;
+	}
+
+	@Override
+	public Object remove( Object key ) {
+		int i = this.indexOf( key );
+		if( i < 0 ) {
+			return null;
+		}
+		Object previous = this.valueAt( i );
+		this.removeAt( i );
+		return previous;
+	}
+
+	@Override
+	public void clear() {
+		this.keys = NO_KEYS;
+		this.sharedKeys = false;
+		this.values = NO_VALUES;
+		this.primitives = null;
+		this.size = 0;
+	}
+
+	@Override
+	public Set<Map.Entry<String, Object>> entrySet() {
+		return new EntrySet();
+	}
+
+	/**
+	 * Copies the node and everything below it, so that the copy shares no nodes or lists with it. The copy is
+	 * compact too, and shares the node's key array when that array is shared already.
+	 */
+	public CompactNode copy() {
+		CompactNode result = new CompactNode();
+		result.keys = this.sharedKeys ? this.keys : Arrays.copyOf( this.keys, this.size );
+		result.sharedKeys = this.sharedKeys;
+		result.values = new Object[result.keys.length];
+		for( int i = 0; i < this.size; i++ ) {
+			result.values[i] = copyValue( this.values[i] );
+		}
+		if( this.primitives != null ) {
+			result.primitives = Arrays.copyOf( this.primitives, result.keys.length );
+		}
+		result.size = this.size;
+		return result;
+	}
+
+	/**
+	 * @return the rough heap footprint of the node and everything below it (64-bit JVM with compressed oops)
+	 */
+	public long estimateSize() {
+		long result = 40;
+		for( int i = 0; i < this.size; i++ ) {
+			result += entrySize( this.values[i] );
+		}
+		return result;
+	}
+
+	/**
+	 * @return the rough heap footprint of one child of a CompactNode: its slots, plus the value unless it is kept
+	 * unboxed
+	 */
+	public static long entrySize( Object value ) {
+		long slots = 16;
+		if( value == null || value == INT || value == LONG || value == DOUBLE || value == BOOLEAN
+				|| value instanceof Boolean || value instanceof Integer || value instanceof Long || value instanceof Double ) {
+			return slots;
+		}
+		if( value instanceof CompactNode ) {
+			return slots + ((CompactNode) value).estimateSize();
+		}
+		if( value instanceof String ) {
+			return slots + 40 + ((String) value).length();
+		}
+		if( value instanceof List ) {
+			List<?> list = (List<?>) value;
+			long result = slots + 40 + 4L * list.size();
+			for( Object e : list ) {
+				result += entrySize( e ) - 12;
+			}
+			return result;
+		}
+		return slots + 24;
+	}
+
+
+
+///////////////////////////////////////////////////////////////////////////////
+//
+// PRIVATE API
+//
+///////////////////////////////////////////////////////////////////////////////
+
+	/**
+	 * @return the index of the key, or (-(insertion point) - 1) if there is no such key
+	 */
+	private int indexOf( Object key ) {
+		if( !(key instanceof String) ) {
+			return -1;
+		}
+		return Arrays.binarySearch( this.keys, 0, this.size, key );
+	}
+
+	private Object valueAt( int i ) {
+		Object value = this.values[i];
+		if( value == INT ) return Integer.valueOf( (int) this.primitives[i] );
+		if( value == LONG ) return Long.valueOf( this.primitives[i] );
+		if( value == DOUBLE ) return Double.valueOf( Double.longBitsToDouble(this.primitives[i]) );
+		if( value == BOOLEAN ) return Boolean.valueOf( this.primitives[i] != 0 );
+		return value;
+	}
+
+	private void set( int i, Object value ) {
+		Object kind = value instanceof Integer ? INT : value instanceof Long ? LONG : value instanceof Double ? DOUBLE
+				: value instanceof Boolean ? BOOLEAN : null;
+		if( kind == null ) {
+			this.values[i] = value;
+			return;
+		}
+		if( this.primitives == null ) {
+			this.primitives = new long[this.values.length];
+		}
+		this.values[i] = kind;
+		this.primitives[i] = kind == DOUBLE ? Double.doubleToRawLongBits( (Double) value )
+				: kind == BOOLEAN ? ((Boolean) value ? 1 : 0) : ((Number) value).longValue();
+	}
+
+	private void insert( int at, String key ) {
+		if( this.size == this.values.length ) {
+			int capacity = Math.max( 4, this.size + (this.size >> 1) );
+			this.values = Arrays.copyOf( this.values, capacity );
+			if( this.primitives != null ) this.primitives = Arrays.copyOf( this.primitives, capacity );
+			this.keys = Arrays.copyOf( this.keys, capacity );
+			this.sharedKeys = false;
+		} else if( this.sharedKeys ) {
+			this.keys = this.keys.clone();
+			this.sharedKeys = false;
+		}
+		System.arraycopy( this.keys, at, this.keys, at + 1, this.size - at );
+		System.arraycopy( this.values, at, this.values, at + 1, this.size - at );
+		if( this.primitives != null ) System.arraycopy( this.primitives, at, this.primitives, at + 1, this.size - at );
+		this.keys[at] = key;
+		this.values[at] = null;
+		this.size++;
+	}
+
+	private void removeAt( int at ) {
+		if( this.sharedKeys ) {
+			this.keys = this.keys.clone();
+			this.sharedKeys = false;
+		}
+		int moved = this.size - at - 1;
+		System.arraycopy( this.keys, at + 1, this.keys, at, moved );
+		System.arraycopy( this.values, at + 1, this.values, at, moved );
+		if( this.primitives != null ) System.arraycopy( this.primitives, at + 1, this.primitives, at, moved );
+		this.size--;
+		this.keys[this.size] = null;
+		this.values[this.size] = null;
+	}
+
+	/**
+	 * @return the value copied like {@link #copy()} copies a node; strings, nulls and the stand-ins for unboxed values
+	 * are returned as they are
+	 */
+	private static Object copyValue( Object value ) {
+		if( value instanceof CompactNode ) {
+			return ((CompactNode) value).copy();
+		}
+		if( value instanceof List ) {
+			List<?> list = (List<?>) value;
+			List<Object> result = new ArrayList<Object>( list.size() );
+			for( Object e : list ) {
+				result.add( copyValue(e) );
+			}
+			return result;
+		}
+		return value;
+	}
+
+	/**
+	 * @return the shared key array equal to the (sorted, interned) keys, registering them if there is room; null if
+	 * they are not to be shared
+	 */
+	private static String[] share( String[] keys ) {
+		if( keys.length == 0 || keys.length > MAX_SHARED_KEYS ) {
+			return null;
+		}
+		Shape shape = new Shape( keys );
+		String[] existing = SHAPES.get( shape );
+		if( existing != null || SHAPES.size() >= MAX_SHAPES ) {
+			return existing;
+		}
+		existing = SHAPES.putIfAbsent( shape, keys );
+		return existing == null ? keys : existing;
+	}
+
+	/**
+	 * A set of keys, compared by content.
+	 */
+	private static final class Shape {
+		private final String[] keys;
+		private final int hash;
+
+		private Shape( String[] keys ) {
+			this.keys = keys;
+			this.hash = Arrays.hashCode( keys );
+		}
+
+		@Override
+		public boolean equals( Object o ) {
+			return o instanceof Shape && Arrays.equals( this.keys, ((Shape) o).keys );
+		}
+
+		@Override
+		public int hashCode() {
+			return this.hash;
+		}
+	}
+
+	private final class EntrySet extends AbstractSet<Map.Entry<String, Object>> {
+
+		@Override
+		public int size() {
+			return CompactNode.this.size;
+		}
+
+		@Override
+		public Iterator<Map.Entry<String, Object>> iterator() {
+			return new Iterator<Map.Entry<String, Object>>() {
+				private int next = 0;
+				private int last = -1;
+
+				@Override
+				public boolean hasNext() {
+					return this.next < CompactNode.this.size;
+				}
+
+				@Override
+				public Map.Entry<String, Object> next() {
+					if( !this.hasNext() ) {
+						throw new NoSuchElementException();
+					}
+					this.last = this.next++;
+					return new Child( this.last );
+				}
+
+				@Override
+				public void remove() {
+					if( this.last < 0 ) {
+						throw new IllegalStateException();
+					}
+					CompactNode.this.removeAt( this.last );
+					this.next = this.last;
+					this.last = -1;
+				}
+			};
+		}
+	}
+
+	/**
+	 * An entry that reads and writes through to its slot.
+	 */
+	private final class Child implements Map.Entry<String, Object> {
+		private final int index;
+
+		private Child( int index ) {
+			this.index = index;
+		}
+
+		@Override
+		public String getKey() {
+			return CompactNode.this.keys[this.index];
+		}
+
+		@Override
+		public Object getValue() {
+			return CompactNode.this.valueAt( this.index );
+		}
+
+		@Override
+		public Object setValue( Object value ) {
+			Object previous = CompactNode.this.valueAt( this.index );
+			CompactNode.this.set( this.index, value );
+			return previous;
+		}
+
+		@Override
+		public boolean equals( Object o ) {
+			if( !(o instanceof Map.Entry) ) return false;
+			Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+			Object value = this.getValue();
+			return this.getKey().equals( e.getKey() ) && (value == null ? e.getValue() == null : value.equals(e.getValue()));
+		}
+
+		@Override
+		public int hashCode() {
+			Object value = this.getValue();
+			return this.getKey().hashCode() ^ (value == null ? 0 : value.hashCode());
+		}
+
+		@Override
+		public String toString() {
+			return this.getKey() + "=" + this.getValue();
+		}
+	}
+
+}
@@ -0,0 +1,315 @@
+package net.thegreshams.firebase4j.model;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An immutable, pre-parsed path into a Firebase database (ie: '/users/alice/name').
+ * <p>
+ * A path is a chain of segments, each one pointing at its parent, so {@link #child(String)} and {@link #parent()}
+ * are O(1) and paths that share a prefix share its nodes. Segments are interned, the hash is computed once when
+ * the path is built, and the URL-encoded form is computed on first use and then kept. Empty segments are ignored,
+ * so 'a/b', '/a/b/' and 'a//b' are all the same path.
+ */
+public final class FirebasePath implements Comparable<FirebasePath> {
+
+	public static final FirebasePath ROOT = new FirebasePath( null, null );
+
+	private static final int MAX_INTERNED_SEGMENTS = 100_000;
+	private static final ConcurrentHashMap<String, String> SEGMENTS = new ConcurrentHashMap<String, String>();
+	private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+
+
+///////////////////////////////////////////////////////////////////////////////
+//
+// PROPERTIES & CONSTRUCTORS
+//
+///////////////////////////////////////////////////////////////////////////////
+
+	private final FirebasePath parent;
+	private final String segment;
+	private final int depth;
+	private final int hash;
+	private String string; // lazily computed; benign race, like String.hash
+	private String urlPath;
+
+	private FirebasePath( FirebasePath parent, String segment ) {
+		this.parent = parent;
+		this.segment = segment;
+		this.depth = parent == null ? 0 : parent.depth + 1;
+		this.hash = parent == null ? 0 : 31 * parent.hash + segment.hashCode();
+	}
+
+	/**
+	 * Parses a path; leading, trailing and repeated slashes are ignored.
+	 *
+	 * @param path -- if null/empty (or only slashes), refers to the root
+	 * @return the parsed path; never null
+	 */
+	public static FirebasePath of( String path ) {
+		return path == null ? ROOT : ROOT.child( path.trim() );
+	}
+
+
+
+///////////////////////////////////////////////////////////////////////////////
+//
+// PUBLIC API
+//
+///////////////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Returns the path of a descendant of this path.
+	 *
+	 * @param relativePath -- one segment, or several separated by '/'; if null/empty, refers to this path
+	 * @return the descendant's path
+	 */
+	public FirebasePath child( String relativePath ) {
+		if( relativePath == null ) {
+			return this;
+		}
+		FirebasePath result = this;
+		int length = relativePath.length();
+		int start = 0;
+		while( start < length ) {
+			int end = relativePath.indexOf( '/', start );
+			if( end < 0 ) {
+				end = length;
+			}
+			if( end > start ) {
+				result = new FirebasePath( result, intern(relativePath.substring(start, end)) );
+			}
+			start = end + 1;
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the path of a descendant of this path.
+	 *
+	 * @param relativePath -- a path relative to this one
+	 * @return the descendant's path
+	 */
+	public FirebasePath child( FirebasePath relativePath ) {
+		if( relativePath == null || relativePath.isRoot() ) {
+			return this;
+		}
+		return new FirebasePath( this.child(relativePath.parent), relativePath.segment );
+	}
+
+	/**
+	 * @return the parent path, or null if this is the root
+	 */
+	public FirebasePath parent() {
+		return this.parent;
+	}
+
+	/**
+	 * @return the last segment (ie: the key of the node), or null if this is the root
+	 */
+	public String getKey() {
+		return this.segment;
+	}
+
+	/**
+	 * @return the number of segments; 0 for the root
+	 */
+	public int depth() {
+		return this.depth;
+	}
+
+	public boolean isRoot() {
+		return this.parent == null;
+	}
+
+	/**
+	 * Returns the segments of this path, from the root down.
+	 *
+	 * @return a new array; empty for the root
+	 */
+	public String[] segments() {
+		String[] result = new String[this.depth];
+		for( FirebasePath p = this; p.parent != null; p = p.parent ) {
+			result[p.depth - 1] = p.segment;
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the ancestor of this path (or this path itself) with the given depth.
+	 */
+	public FirebasePath ancestor( int depth ) {
+		if( depth < 0 || depth > this.depth ) {
+			throw new IllegalArgumentException( "depth must be in [0, " + this.depth + "]; was: " + depth );
+		}
+		FirebasePath p = this;
+		while( p.depth > depth ) {
+			p = p.parent;
+		}
+		return p;
+	}
+
+	/**
+	 * @return true if the other path is this path or one of its descendants
+	 */
+	public boolean contains( FirebasePath other ) {
+		if( other == null || other.depth < this.depth ) {
+			return false;
+		}
+		return this.equals( other.ancestor(this.depth) );
+	}
+
+	/**
+	 * @return true if either path contains the other
+	 */
+	public boolean overlaps( FirebasePath other ) {
+		return this.contains( other ) || ( other != null && other.contains(this) );
+	}
+
+	/**
+	 * Returns the part of the other path below this one (ie: '/a' relativize '/a/b/c' is 'b/c').
+	 *
+	 * @throws IllegalArgumentException if this path does not contain the other
+	 */
+	public FirebasePath relativize( FirebasePath other ) {
+		if( !this.contains(other) ) {
+			throw new IllegalArgumentException( other + " is not below " + this );
+		}
+		String[] segments = other.segments();
+		FirebasePath result = ROOT;
+		for( int i = this.depth; i < segments.length; i++ ) {
+			result = new FirebasePath( result, segments[i] );
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the path in the form it is appended to a base-url: every segment percent-encoded (escapes it already
+	 * holds are left alone) and prefixed with '/'; the empty string for the root.
+	 */
+	public String toUrlPath() {
+		String result = this.urlPath;
+		if( result == null ) {
+			if( this.parent == null ) {
+				result = "";
+			} else {
+				StringBuilder builder = new StringBuilder( this.parent.toUrlPath() );
+				builder.append( '/' );
+				encodeSegment( this.segment, builder );
+				result = builder.toString();
+			}
+			this.urlPath = result;
+		}
+		return result;
+	}
+
+	@Override
+	public String toString() {
+		String result = this.string;
+		if( result == null ) {
+			if( this.parent == null ) {
+				result = "/";
+			} else if( this.parent.parent == null ) {
+				result = "/" + this.segment;
+			} else {
+				result = this.parent.toString() + "/" + this.segment;
+			}
+			this.string = result;
+		}
+		return result;
+	}
+
+	@Override
+	public int hashCode() {
+		return this.hash;
+	}
+
+	@Override
+	public boolean equals( Object o ) {
+		if( this == o ) {
+			return true;
+		}
+		if( !(o instanceof FirebasePath) ) {
+			return false;
+		}
+		FirebasePath a = this, b = (FirebasePath) o;
+		if( a.hash != b.hash || a.depth != b.depth ) {
+			return false;
+		}
+		while( a != b ) {
+			// segments are usually interned, in which case equals() is just a reference check
+			if( !a.segment.equals(b.segment) ) {
+				return false;
+			}
+			a = a.parent;
+			b = b.parent;
+		}
+		return true;
+	}
+
+	@Override
+	public int compareTo( FirebasePath o ) {
+		String[] mine = this.segments(), theirs = o.segments();
+		for( int i = 0; i < Math.min(mine.length, theirs.length); i++ ) {
+			int c = mine[i].compareTo( theirs[i] );
+			if( c != 0 ) {
+				return c;
+			}
+		}
+		return Integer.compare( mine.length, theirs.length );
+	}
+
+
+
+///////////////////////////////////////////////////////////////////////////////
+//
+// PRIVATE API
+//
+///////////////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Shares one instance per distinct segment (and {@link CompactNode} key); once the table is full (ie: paths
+	 * keyed by push-ids) new segments are no longer interned so the table cannot grow without bounds.
+	 */
+	static String intern( String segment ) {
+		String existing = SEGMENTS.get( segment );
+		if( existing != null || SEGMENTS.size() >= MAX_INTERNED_SEGMENTS ) {
+			return existing == null ? segment : existing;
+		}
+		existing = SEGMENTS.putIfAbsent( segment, segment );
+		return existing == null ? segment : existing;
+	}
+
+	/**
+	 * Percent-encodes everything except the RFC 3986 unreserved characters and the sub-delimiters that are legal
+	 * in a path segment. Valid '%XX' escapes are kept as they are: paths used to be appended to the url verbatim,
+	 * so callers pass already-encoded ones (ie: 'users/a%20b'), which must not be encoded a second time.
+	 */
+	private static void encodeSegment( String segment, StringBuilder builder ) {
+		for( int i = 0; i < segment.length(); i++ ) {
+			char c = segment.charAt( i );
+			if( (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+					|| "-._~!$&'()*+,;=:@".indexOf(c) >= 0 ) {
+				builder.append( c );
+				continue;
+			}
+			if( c == '%' && i + 2 < segment.length() && isHex( segment.charAt(i + 1) ) && isHex( segment.charAt(i + 2) ) ) {
+				builder.append( segment, i, i + 3 );
+				i += 2;
+				continue;
+			}
+			// encode the whole (possibly surrogate-paired) code point
+			int end = Character.isHighSurrogate( c ) && i + 1 < segment.length() ? i + 2 : i + 1;
+			for( byte b : segment.substring(i, end).getBytes(StandardCharsets.UTF_8) ) {
+				builder.append( '%' ).append( HEX[(b >> 4) & 0x0F] ).append( HEX[b & 0x0F] );
+			}
+			i = end - 1;
+		}
+	}
+
+	private static boolean isHex( char c ) {
+		return (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F');
+	}
+
+}
@@ -0,0 +1,281 @@
+package net.thegreshams.firebase4j.model;
+
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.codehaus.jackson.map.ObjectMapper;
+
+/**
+ * The parsed query-parameters of a REST request that shape the data it returns ('orderBy', 'startAt', 'endAt',
+ * 'equalTo', 'limitToFirst', 'limitToLast' and 'shallow'), along with Firebase's rules for ordering and filtering
+ * the children of a node by them.
+ */
+public final class FirebaseQuery {
+
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+	private static final String[] PARAMETERS = { "orderBy", "startAt", "endAt", "equalTo", "limitToFirst", "limitToLast", "shallow" };
+
+
+
+///////////////////////////////////////////////////////////////////////////////
+//
+// PROPERTIES & CONSTRUCTORS
+//
+///////////////////////////////////////////////////////////////////////////////
+
+	private final String orderBy;
+	private final String[] orderPath; // segments of a child order; null when ordering by $key or $value
+	private final Object startAt;
+	private final Object endAt;
+	private final int limitToFirst;
+	private final int limitToLast;
+	private final boolean shallow;
+
+	private FirebaseQuery( String orderBy, Object startAt, Object endAt, int limitToFirst, int limitToLast, boolean shallow ) {
+		this.orderBy = orderBy;
+		this.orderPath = orderBy == null || "$key".equals( orderBy ) || "$value".equals( orderBy )
+				? null : FirebasePath.of( orderBy ).segments();
+		this.startAt = startAt;
+		this.endAt = endAt;
+		this.limitToFirst = limitToFirst;
+		this.limitToLast = limitToLast;
+		this.shallow = shallow;
+	}
+
+	/**
+	 * Parses the query-parameters of a request, as they would be sent (ie: orderBy="\"score\"", limitToLast="10").
+	 * Other parameters are ignored.
+	 *
+	 * @throws IllegalArgumentException if the parameters are malformed or don't go together, the way Firebase would
+	 *                                  reject them
+	 */
+	public static FirebaseQuery parse( Map<String, String> params ) {
+		String orderBy = params.containsKey( "orderBy" ) ? parseJsonString( params.get("orderBy"), "orderBy" ) : null;
+		boolean filtered = params.containsKey( "startAt" ) || params.containsKey( "endAt" ) || params.containsKey( "equalTo" )
+				|| params.containsKey( "limitToFirst" ) || params.containsKey( "limitToLast" );
+		if( filtered && orderBy == null ) {
+			throw new IllegalArgumentException( "orderBy must be defined when other query parameters are defined" );
+		}
+		if( orderBy != null && params.containsKey("shallow") ) {
+			throw new IllegalArgumentException( "Mixing 'shallow' and querying parameters is not supported" );
+		}
+
+		Object startAt = params.containsKey( "startAt" ) ? parseJson( params.get("startAt"), "startAt" ) : null;
+		Object endAt = params.containsKey( "endAt" ) ? parseJson( params.get("endAt"), "endAt" ) : null;
+		if( params.containsKey("equalTo") ) {
+			startAt = endAt = parseJson( params.get("equalTo"), "equalTo" );
+		}
+		if( "$key".equals(orderBy) && ((startAt != null && !(startAt instanceof String)) || (endAt != null && !(endAt instanceof String))) ) {
+			throw new IllegalArgumentException( "Query parameters for orderBy \"$key\" must be strings" );
+		}
+		int limitToFirst = params.containsKey( "limitToFirst" ) ? parseLimit( params.get("limitToFirst") ) : 0;
+		int limitToLast = params.containsKey( "limitToLast" ) ? parseLimit( params.get("limitToLast") ) : 0;
+		return new FirebaseQuery( orderBy, startAt, endAt, limitToFirst, limitToLast, "true".equals(params.get("shallow")) );
+	}
+
+	/**
+	 * @return true if any of the parameters shapes the data of the response
+	 */
+	public static boolean isQuery( Map<String, String> params ) {
+		for( String name : PARAMETERS ) {
+			if( params.containsKey(name) ) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+
+
+///////////////////////////////////////////////////////////////////////////////
+//
+// PUBLIC API
+//
+///////////////////////////////////////////////////////////////////////////////
+
+	/**
+	 * @return '$key', '$value', a child path, or null if the children aren't ordered
+	 */
+	public String getOrderBy() {
+		return this.orderBy;
+	}
+
+	/**
+	 * @return how many children are kept from the start of the order; 0 if there is no such limit
+	 */
+	public int getLimitToFirst() {
+		return this.limitToFirst;
+	}
+
+	/**
+	 * @return how many children are kept from the end of the order; 0 if there is no such limit
+	 */
+	public int getLimitToLast() {
+		return this.limitToLast;
+	}
+
+	public boolean isShallow() {
+		return this.shallow;
+	}
+
+	/**
+	 * Compares two children in the order of the query (by key if it has none), ties broken by key.
+	 */
+	public int compare( String keyA, Object valueA, String keyB, Object valueB ) {
+		int c = this.orderBy == null || "$key".equals( this.orderBy ) ? 0 : compareValues( this.orderValue(valueA), this.orderValue(valueB) );
+		return c != 0 ? c : compareKeys( keyA, keyB );
+	}
+
+	/**
+	 * @return true if the child lies within the query's startAt/endAt/equalTo bounds
+	 */
+	public boolean matches( String key, Object value ) {
+		if( this.startAt != null && this.compareToBound(key, value, this.startAt) < 0 ) {
+			return false;
+		}
+		return this.endAt == null || this.compareToBound( key, value, this.endAt ) <= 0;
+	}
+
+	/**
+	 * Orders, filters and limits the children of the node, or makes it shallow, as Firebase would.
+	 *
+	 * @return the resulting node; children come in the query's order
+	 */
+	public Object apply( Object node ) {
+		if( !(node instanceof Map) ) {
+			return node;
+		}
+		if( this.shallow ) {
+			Map<String, Object> result = new LinkedHashMap<String, Object>();
+			for( Map.Entry<?, ?> e : ((Map<?, ?>) node).entrySet() ) {
+				result.put( String.valueOf(e.getKey()), e.getValue() instanceof Map ? Boolean.TRUE : e.getValue() );
+			}
+			return result;
+		}
+		if( this.orderBy == null ) {
+			return node;
+		}
+
+		List<Map.Entry<String, Object>> matches = new ArrayList<Map.Entry<String, Object>>();
+		for( Map.Entry<?, ?> e : ((Map<?, ?>) node).entrySet() ) {
+			String key = String.valueOf( e.getKey() );
+			if( this.matches(key, e.getValue()) ) {
+				matches.add( new AbstractMap.SimpleEntry<String, Object>(key, e.getValue()) );
+			}
+		}
+		matches.sort( (a, b) -> this.compare(a.getKey(), a.getValue(), b.getKey(), b.getValue()) );
+		if( this.limitToFirst > 0 ) {
+			matches = matches.subList( 0, Math.min(matches.size(), this.limitToFirst) );
+		}
+		if( this.limitToLast > 0 ) {
+			matches = matches.subList( Math.max(0, matches.size() - this.limitToLast), matches.size() );
+		}
+		Map<String, Object> result = new LinkedHashMap<String, Object>();
+		for( Map.Entry<String, Object> child : matches ) {
+			result.put( child.getKey(), child.getValue() );
+		}
+		return result;
+	}
+
+	/**
+	 * Firebase's key order: keys that are 32-bit integers first, numerically, then the others lexicographically.
+	 */
+	public static int compareKeys( String a, String b ) {
+		Integer x = asInt( a ), y = asInt( b );
+		if( x != null && y != null ) return x.compareTo( y );
+		if( x != null ) return -1;
+		if( y != null ) return 1;
+		return a.compareTo( b );
+	}
+
+	/**
+	 * Firebase's value order: null, false, true, numbers, strings, objects.
+	 */
+	public static int compareValues( Object a, Object b ) {
+		int c = Integer.compare( rank(a), rank(b) );
+		if( c != 0 ) return c;
+		if( a instanceof Number ) return Double.compare( ((Number) a).doubleValue(), ((Number) b).doubleValue() );
+		if( a instanceof String ) return ((String) a).compareTo( (String) b );
+		return 0;
+	}
+
+	@Override
+	public String toString() {
+		return FirebaseQuery.class.getSimpleName() + "[ (orderBy:" + this.orderBy + ") (startAt:" + this.startAt
+				+ ") (endAt:" + this.endAt + ") (limitToFirst:" + this.limitToFirst + ") (limitToLast:" + this.limitToLast
+				+ ") (shallow:" + this.shallow + ") ]";
+	}
+
+
+
+///////////////////////////////////////////////////////////////////////////////
+//
+// PRIVATE API
+//
+///////////////////////////////////////////////////////////////////////////////
+
+	private Object orderValue( Object value ) {
+		if( this.orderPath == null ) {
+			return value; // $value
+		}
+		for( String segment : this.orderPath ) {
+			value = value instanceof Map ? ((Map<?, ?>) value).get( segment ) : null;
+		}
+		return value;
+	}
+
+	private int compareToBound( String key, Object value, Object bound ) {
+		return "$key".equals( this.orderBy ) ? compareKeys( key, (String) bound ) : compareValues( this.orderValue(value), bound );
+	}
+
+	private static Integer asInt( String key ) {
+		if( key.isEmpty() || key.length() > 11 || (key.length() > 1 && key.charAt(0) == '0') ) {
+			return null;
+		}
+		try {
+			return Integer.valueOf( key );
+		} catch( NumberFormatException e ) {
+			return null;
+		}
+	}
+
+	private static int rank( Object value ) {
+		if( value == null ) return 0;
+		if( Boolean.FALSE.equals(value) ) return 1;
+		if( Boolean.TRUE.equals(value) ) return 2;
+		if( value instanceof Number ) return 3;
+		if( value instanceof String ) return 4;
+		return 5;
+	}
+
+	private static int parseLimit( String value ) {
+		try {
+			int limit = Integer.parseInt( value );
+			if( limit > 0 ) return limit;
+		} catch( NumberFormatException e ) {
+			// reported below
+		}
+		throw new IllegalArgumentException( "limit must be a positive integer; was: " + value );
+	}
+
+	private static Object parseJson( String value, String name ) {
+		try {
+			return MAPPER.readValue( value, Object.class );
+		} catch( IOException e ) {
+			throw new IllegalArgumentException( name + " must be a valid JSON value; was: " + value );
+		}
+	}
+
+	private static String parseJsonString( String value, String name ) {
+		Object parsed = parseJson( value, name );
+		if( !(parsed instanceof String) ) {
+			throw new IllegalArgumentException( name + " must be a string; was: " + value );
+		}
+		return (String) parsed;
+	}
+
+}
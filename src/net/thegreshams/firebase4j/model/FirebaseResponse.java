@@ -1,6 +1,8 @@
 package net.thegreshams.firebase4j.model;
 
+import java.util.ArrayList;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.apache.log4j.Logger;
@@ -21,8 +23,18 @@ public class FirebaseResponse {
 	private final int code;
 	private final Map<String, Object> body;
 	private final String rawBody;
+	private final boolean fromCache;
+	private final long asOf;
 	
 	public FirebaseResponse( boolean success, int code, Map<String, Object> body, String rawBody ) {
+		this( success, code, body, rawBody, false, System.currentTimeMillis() );
+	}
+	
+	/**
+	 * @param fromCache -- true if the data was read from a local mirror rather than received from the server
+	 * @param asOf -- when the data was last known to be current, in milliseconds since the epoch
+	 */
+	public FirebaseResponse( boolean success, int code, Map<String, Object> body, String rawBody, boolean fromCache, long asOf ) {
 		
 		this.success = success;
 		this.code = code;
@@ -38,6 +50,9 @@ public class FirebaseResponse {
 			rawBody = new String();
 		}
 		this.rawBody = rawBody.trim();
+		
+		this.fromCache = fromCache;
+		this.asOf = asOf;
 	}
 	
 	
@@ -85,6 +100,68 @@ public class FirebaseResponse {
 		return this.rawBody;
 	}
 	
+	/**
+	 * Returns whether the data was read from a local mirror (ie: the cache of a
+	 * {@link net.thegreshams.firebase4j.service.RealtimeDatabase}) instead of being requested from the server
+	 * 
+	 * @return true if no request was made for this response
+	 */
+	public boolean isFromCache() {
+		return this.fromCache;
+	}
+	
+	/**
+	 * Returns when the data was last known to be current: when it was received, or, for data read from a mirror,
+	 * when the mirror last heard from the server
+	 * 
+	 * @return milliseconds since the epoch
+	 */
+	public long getAsOf() {
+		return this.asOf;
+	}
+	
+	/**
+	 * Returns how long ago the data was last known to be current (see {@link #getAsOf()})
+	 * 
+	 * @return milliseconds
+	 */
+	public long getAge() {
+		return Math.max( 0, System.currentTimeMillis() - this.asOf );
+	}
+	
+	/**
+	 * Returns a response equal to this one whose body shares no maps or lists with this one, so either can be
+	 * modified without affecting the other. A body of {@link CompactNode}s is copied as CompactNodes.
+	 */
+	@SuppressWarnings("unchecked")
+	public FirebaseResponse copy() {
+		Map<String, Object> body = this.body instanceof CompactNode ? ((CompactNode) this.body).copy() : (Map<String, Object>) deepCopy( this.body );
+		return new FirebaseResponse( this.success, this.code, body, this.rawBody, this.fromCache, this.asOf );
+	}
+	
+	/**
+	 * Copies a parsed JSON value, so that the copy shares no maps or lists with it.
+	 */
+	public static Object deepCopy( Object value ) {
+		if( value instanceof Map ) {
+			Map<?, ?> map = (Map<?, ?>) value;
+			Map<Object, Object> result = new LinkedHashMap<Object, Object>( Math.max(16, (int) (map.size() / 0.75f) + 1) );
+			for( Map.Entry<?, ?> e : map.entrySet() ) {
+				result.put( e.getKey(), deepCopy(e.getValue()) );
+			}
+			return result;
+		}
+		if( value instanceof List ) {
+			List<?> list = (List<?>) value;
+			List<Object> result = new ArrayList<Object>( list.size() );
+			for( Object e : list ) {
+				result.add( deepCopy(e) );
+			}
+			return result;
+		}
+		return value; // strings, numbers and booleans are immutable
+	}
+	
 	@Override
 	public String toString() {
 		
@@ -95,6 +172,7 @@ public class FirebaseResponse {
 				.append( "(Code:" ).append( this.code ).append( ") " )
 				.append( "(Body:" ).append( this.body ).append( ") " )
 				.append( "(Raw-body:" ).append( this.rawBody ).append( ") " )
+				.append( "(From-cache:" ).append( this.fromCache ).append( ") " )
 				.append( "]" );
 		
 		return result.toString();
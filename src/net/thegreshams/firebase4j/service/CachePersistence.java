@@ -0,0 +1,363 @@
+package net.thegreshams.firebase4j.service;
+
+import net.thegreshams.firebase4j.error.FirebaseException;
+import net.thegreshams.firebase4j.util.BinaryTreeCodec;
+import org.apache.log4j.Logger;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * On-disk persistence for the {@link RealtimeDatabase} cache: a binary snapshot of the whole tree plus an
+ * append-only journal of every event applied since the snapshot was taken.
+ * <p>
+ * On startup the snapshot is memory-mapped and decoded, then the journal is replayed on top of it. Once the
+ * journal holds more than {@code compactionThreshold} records the tree is written out as a new snapshot and the
+ * journal is truncated. Journal records are handed to the OS on every append but only fsync'ed on compaction and
+ * on {@link #close()}; a torn record at the end of the journal (ie: after a crash) is detected by its checksum and
+ * dropped.
+ * <p>
+ * {@link #compactInBackground(Map)} writes the snapshot on a thread of its own: the journal is set aside as the
+ * previous journal when the tree is handed over, appends go to a new one meanwhile, and the previous journal is
+ * deleted once the snapshot is in place. A previous journal left by a compaction that didn't finish is replayed
+ * before the current one, and folded back into it, on the next {@link #load}.
+ */
+public class CachePersistence implements Closeable {
+
+    public static final String SNAPSHOT_FILE_NAME = "cache.snapshot";
+    public static final String JOURNAL_FILE_NAME = "cache.journal";
+    public static final String PREVIOUS_JOURNAL_FILE_NAME = "cache.journal.prev";
+    public static final int DEFAULT_COMPACTION_THRESHOLD = 10_000;
+    private static final Logger LOGGER = Logger.getRootLogger();
+    private static final int SNAPSHOT_MAGIC = 0x46344A53; // 'F4JS'
+    private static final byte SNAPSHOT_VERSION = 1;
+
+
+///////////////////////////////////////////////////////////////////////////////
+//
+// PROPERTIES & CONSTRUCTORS
+//
+///////////////////////////////////////////////////////////////////////////////
+
+    private final File snapshotFile;
+    private final File journalFile;
+    private final File previousJournalFile;
+    private final int compactionThreshold;
+    private FileChannel journal;
+    private int journalRecords = 0;
+    /**
+     * writes the snapshot of a background compaction; null when none is running
+     */
+    private Thread compaction = null;
+
+    public CachePersistence(File directory) throws FirebaseException {
+        this(directory, DEFAULT_COMPACTION_THRESHOLD);
+    }
+
+    /**
+     * @param directory           -- where the snapshot and journal are kept; created if it doesn't exist
+     * @param compactionThreshold -- number of journal records after which a new snapshot is written
+     * @throws FirebaseException if the directory cannot be created
+     */
+    public CachePersistence(File directory, int compactionThreshold) throws FirebaseException {
+        if (directory == null) {
+            String msg = "directory cannot be null";
+            LOGGER.error(msg);
+            throw new FirebaseException(msg);
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            String msg = "unable to create persistence directory: " + directory;
+            LOGGER.error(msg);
+            throw new FirebaseException(msg);
+        }
+        if (compactionThreshold <= 0) {
+            String msg = "compactionThreshold must be positive; was: " + compactionThreshold;
+            LOGGER.error(msg);
+            throw new FirebaseException(msg);
+        }
+        this.snapshotFile = new File(directory, SNAPSHOT_FILE_NAME);
+        this.journalFile = new File(directory, JOURNAL_FILE_NAME);
+        this.previousJournalFile = new File(directory, PREVIOUS_JOURNAL_FILE_NAME);
+        this.compactionThreshold = compactionThreshold;
+    }
+
+
+///////////////////////////////////////////////////////////////////////////////
+//
+// PUBLIC API
+//
+///////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Decodes the snapshot (if there is one), then replays the journal on top of it and opens the journal for
+     * appending. Must be called once before {@link #append(String, Object)}.
+     *
+     * @param restore -- called first, with the tree stored in the snapshot (empty if there is no snapshot yet)
+     * @param apply   -- then called with (path, data) for every journal record, in the order they were appended
+     * @throws FirebaseException if the snapshot is unreadable
+     */
+    public synchronized void load(Consumer<Map<String, Object>> restore, BiConsumer<String, Object> apply) throws FirebaseException {
+        restore.accept(readSnapshot());
+        journalRecords = 0;
+        long previousLength = replayJournal(previousJournalFile, apply);
+        long validLength = replayJournal(journalFile, apply);
+        try {
+            if (previousJournalFile.isFile()) {
+                // a compaction didn't finish; its snapshot may be missing what the previous journal holds
+                validLength = foldPreviousJournal(previousLength, validLength);
+            }
+            journal = FileChannel.open(journalFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            // drop whatever torn record might be left at the end
+            journal.truncate(validLength);
+            journal.position(validLength);
+        } catch (IOException e) {
+            String msg = "unable to open journal: " + journalFile;
+            LOGGER.error(msg);
+            throw new FirebaseException(msg, e);
+        }
+        LOGGER.info("restored cache from " + snapshotFile.getParent() + " (" + journalRecords + " journal records)");
+    }
+
+    /**
+     * Appends one applied event to the journal.
+     *
+     * @param path -- the cache path the data was written to
+     * @param data -- the data written
+     * @throws IOException if the record could not be written
+     */
+    public synchronized void append(String path, Object data) throws IOException {
+        if (journal == null) throw new IOException("journal is not open; load() must be called first");
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        BinaryTreeCodec.writeString(out, path);
+        BinaryTreeCodec.encode(out, data);
+        out.flush();
+        byte[] payload = bytes.toByteArray();
+
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer record = ByteBuffer.allocate(payload.length + 12);
+        record.putInt(payload.length).put(payload).putLong(crc.getValue()).flip();
+        while (record.hasRemaining()) {
+            journal.write(record);
+        }
+        journalRecords++;
+    }
+
+    /**
+     * @return true once the journal passed the compaction threshold, unless a compaction is already running
+     */
+    public synchronized boolean needsCompaction() {
+        return compaction == null && journalRecords >= compactionThreshold;
+    }
+
+    /**
+     * Writes the tree as the new snapshot and truncates the journal. The snapshot is written to a temporary file
+     * and atomically moved into place, so a crash midway leaves the previous snapshot and journal intact.
+     *
+     * @param tree -- the complete cache; must not be modified while this runs
+     * @throws IOException if the snapshot could not be written
+     */
+    public synchronized void compact(Map<String, Object> tree) throws IOException {
+        awaitCompaction();
+        setJournalAside();
+        writeSnapshot(tree);
+    }
+
+    /**
+     * Like {@link #compact(Map)}, but only sets the journal aside before returning; the snapshot is encoded and
+     * synced on a background thread while appends go on. Failures are logged, and leave the previous journal for
+     * the next load to replay.
+     *
+     * @param tree -- a copy of the complete cache, that nobody modifies any more
+     * @throws IOException if the journal could not be set aside
+     */
+    public synchronized void compactInBackground(Map<String, Object> tree) throws IOException {
+        awaitCompaction();
+        setJournalAside();
+        compaction = new Thread(() -> {
+            try {
+                writeSnapshot(tree);
+            } catch (IOException e) {
+                LOGGER.error("unable to write cache snapshot: " + snapshotFile, e);
+            } finally {
+                synchronized (this) {
+                    compaction = null;
+                    notifyAll();
+                }
+            }
+        }, "firebase4j-cache-compaction");
+        compaction.setDaemon(true);
+        compaction.start();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        awaitCompaction();
+        if (journal == null) return;
+        journal.force(true);
+        journal.close();
+        journal = null;
+    }
+
+
+///////////////////////////////////////////////////////////////////////////////
+//
+// PRIVATE API
+//
+///////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Moves the journal to {@link #PREVIOUS_JOURNAL_FILE_NAME} and starts a new, empty one; called with the tree of
+     * the next snapshot, which holds everything the previous journal does.
+     */
+    private void setJournalAside() throws IOException {
+        if (journal != null) {
+            journal.force(true);
+            journal.close();
+            journal = null;
+        }
+        if (previousJournalFile.isFile()) {
+            // the snapshot of an earlier compaction failed, so its records are still needed too
+            try (FileChannel previous = FileChannel.open(previousJournalFile.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                if (journalFile.isFile()) transfer(journalFile, journalFile.length(), previous);
+                previous.force(true);
+            }
+        } else if (journalFile.isFile()) {
+            Files.move(journalFile.toPath(), previousJournalFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        }
+        journal = FileChannel.open(journalFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        LOGGER.info("compacting cache snapshot after " + journalRecords + " journal records");
+        journalRecords = 0;
+    }
+
+    /**
+     * Writes the new snapshot, then deletes the previous journal that it replaces. On a background compaction this
+     * runs without the lock, so appends to the current journal aren't held up.
+     */
+    private void writeSnapshot(Map<String, Object> tree) throws IOException {
+        File tmp = new File(snapshotFile.getPath() + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tmp)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 64 * 1024));
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeByte(SNAPSHOT_VERSION);
+            BinaryTreeCodec.encode(out, tree);
+            out.flush();
+            fos.getFD().sync();
+        }
+        Files.move(tmp.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Files.deleteIfExists(previousJournalFile.toPath());
+    }
+
+    /**
+     * Waits for the background compaction, if one is running, to finish.
+     */
+    private void awaitCompaction() {
+        boolean interrupted = false;
+        while (compaction != null) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    /**
+     * Rewrites the journal as the intact records of the previous journal followed by its own, and deletes the
+     * previous journal.
+     *
+     * @return the length of the new journal
+     */
+    private long foldPreviousJournal(long previousLength, long validLength) throws IOException {
+        File tmp = new File(journalFile.getPath() + ".tmp");
+        try (FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            transfer(previousJournalFile, previousLength, out);
+            if (journalFile.isFile()) transfer(journalFile, validLength, out);
+            out.force(true);
+        }
+        Files.move(tmp.toPath(), journalFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Files.delete(previousJournalFile.toPath());
+        return previousLength + validLength;
+    }
+
+    private static void transfer(File from, long length, FileChannel to) throws IOException {
+        try (FileChannel in = FileChannel.open(from.toPath(), StandardOpenOption.READ)) {
+            for (long done = 0; done < length; ) {
+                done += in.transferTo(done, length - done, to);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> readSnapshot() throws FirebaseException {
+        if (!snapshotFile.isFile()) return new LinkedHashMap<>();
+
+        try (FileChannel channel = FileChannel.open(snapshotFile.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.remaining() < 5 || buffer.getInt() != SNAPSHOT_MAGIC || buffer.get() != SNAPSHOT_VERSION) {
+                throw new IOException("not a cache snapshot (or an unsupported version)");
+            }
+            Object tree = BinaryTreeCodec.decode(buffer);
+            if (!(tree instanceof Map)) throw new IOException("snapshot root is not a map");
+            return (Map<String, Object>) tree;
+        } catch (IOException | RuntimeException e) {
+            String msg = "unable to read cache snapshot: " + snapshotFile;
+            LOGGER.error(msg);
+            throw new FirebaseException(msg, e);
+        }
+    }
+
+    /**
+     * @return the length of the journal up to (and including) its last intact record
+     */
+    private long replayJournal(File journalFile, BiConsumer<String, Object> apply) {
+        if (!journalFile.isFile()) return 0;
+
+        long validLength = 0;
+        try (FileChannel channel = FileChannel.open(journalFile.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            CRC32 crc = new CRC32();
+            while (buffer.remaining() >= 4) {
+                int length = buffer.getInt();
+                if (length < 0 || buffer.remaining() < length + 8) break;
+
+                ByteBuffer payload = buffer.slice();
+                payload.limit(length);
+                buffer.position(buffer.position() + length);
+                crc.reset();
+                crc.update(payload.duplicate());
+                if (crc.getValue() != buffer.getLong()) break;
+
+                String path;
+                Object data;
+                try {
+                    path = BinaryTreeCodec.readString(payload);
+                    data = BinaryTreeCodec.decode(payload);
+                } catch (RuntimeException e) {
+                    // ie: a BufferUnderflowException from a record that is cut short but happens to pass its checksum
+                    throw new IOException("undecodable journal record", e);
+                }
+                apply.accept(path, data);
+                validLength = buffer.position();
+                journalRecords++;
+            }
+        } catch (IOException e) {
+            LOGGER.error("unable to replay cache journal " + journalFile + " past offset " + validLength + "; discarding the rest", e);
+        }
+        return validLength;
+    }
+
+}
@@ -0,0 +1,111 @@
+package net.thegreshams.firebase4j.service;
+
+import org.apache.log4j.Logger;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Stands between a stream and its listener when {@link RealtimeDatabase#setConflationInterval(long)} is on: the
+ * stream only marks the data as changed, and the listener is told on the delivery executor, once the previous call
+ * has returned and at least the interval has passed since it started. However many events came in between, the
+ * listener is told once, and reads the latest data.
+ */
+final class ConflatingListener implements RealtimeDatabase.StreamListener {
+
+    private static final Logger LOGGER = Logger.getRootLogger();
+
+
+    ///////////////////////////////////////////////////////////////////////////////
+//
+// PROPERTIES & CONSTRUCTORS
+//
+///////////////////////////////////////////////////////////////////////////////
+    private final RealtimeDatabase.StreamListener target;
+    private final long intervalNanos;
+    private final ScheduledExecutorService timer;
+    private final Executor delivery;
+    private final AtomicBoolean changed = new AtomicBoolean();
+    /**
+     * whether a delivery is scheduled or running; at most one is
+     */
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private volatile RealtimeDatabase.ErrorCode error = null;
+    private volatile boolean closed = false;
+    private boolean finished = false; // only touched by deliveries, which never overlap
+    private volatile long lastDelivery;
+
+    ConflatingListener(RealtimeDatabase.StreamListener target, long intervalMillis, ScheduledExecutorService timer, Executor delivery) {
+        this.target = target;
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+        this.timer = timer;
+        this.delivery = delivery;
+        this.lastDelivery = System.nanoTime() - intervalNanos; // the first change goes out right away
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////
+//
+// PUBLIC API
+//
+///////////////////////////////////////////////////////////////////////////////
+
+    @Override
+    public void onChange() {
+        changed.set(true);
+        schedule();
+    }
+
+    @Override
+    public void onError(RealtimeDatabase.ErrorCode code) {
+        error = code;
+        schedule();
+    }
+
+    @Override
+    public void onClosed() {
+        closed = true;
+        schedule();
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////
+//
+// PRIVATE API
+//
+///////////////////////////////////////////////////////////////////////////////
+
+    private void schedule() {
+        if (!scheduled.compareAndSet(false, true)) return; // the scheduled delivery will pick it up
+        long wait = lastDelivery + intervalNanos - System.nanoTime();
+        if (wait <= 0 || error != null || closed) {
+            delivery.execute(this::deliver);
+        } else {
+            timer.schedule(() -> delivery.execute(this::deliver), wait, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private void deliver() {
+        lastDelivery = System.nanoTime();
+        try {
+            if (finished) return;
+            // the last change before the stream stopped still goes out, ahead of the error
+            if (changed.getAndSet(false)) target.onChange();
+            RealtimeDatabase.ErrorCode error = this.error;
+            if (error != null || closed) {
+                finished = true;
+                if (error != null) target.onError(error);
+                target.onClosed();
+            }
+        } catch (RuntimeException e) {
+            LOGGER.error("Exception thrown by a realtime listener", e);
+        } finally {
+            scheduled.set(false);
+            // anything that came in while delivering found a delivery already scheduled
+            if (!finished && (changed.get() || this.error != null || closed)) schedule();
+        }
+    }
+
+}
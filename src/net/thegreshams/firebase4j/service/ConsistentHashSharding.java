@@ -0,0 +1,93 @@
+package net.thegreshams.firebase4j.service;
+
+import net.thegreshams.firebase4j.model.FirebasePath;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Spreads paths over shards by hashing their first few segments onto a ring of the shards (each one placed at many
+ * points of the ring, so they get even shares). Everything below the same prefix lands on the same shard, and adding
+ * or removing a shard only moves the prefixes of its neighbours on the ring, about 1/n of them.
+ */
+public final class ConsistentHashSharding implements ShardingStrategy {
+
+    public static final int DEFAULT_VIRTUAL_NODES = 160;
+
+
+    ///////////////////////////////////////////////////////////////////////////////
+//
+// PROPERTIES & CONSTRUCTORS
+//
+///////////////////////////////////////////////////////////////////////////////
+    private final TreeMap<Long, String> ring = new TreeMap<>();
+    private final int prefixDepth;
+
+    /**
+     * @param shards      -- the names of the shards
+     * @param prefixDepth -- how many segments the shard is chosen by; 2 puts every '/users/{uid}' subtree on one shard
+     */
+    public ConsistentHashSharding(Collection<String> shards, int prefixDepth) {
+        this(shards, prefixDepth, DEFAULT_VIRTUAL_NODES);
+    }
+
+    /**
+     * @param virtualNodes -- how many points of the ring each shard gets; more points, more even shares
+     */
+    public ConsistentHashSharding(Collection<String> shards, int prefixDepth, int virtualNodes) {
+        if (shards == null || shards.isEmpty()) throw new IllegalArgumentException("there must be at least one shard");
+        if (prefixDepth < 1) throw new IllegalArgumentException("prefixDepth must be at least 1; was: " + prefixDepth);
+        if (virtualNodes < 1) throw new IllegalArgumentException("virtualNodes must be at least 1; was: " + virtualNodes);
+        this.prefixDepth = prefixDepth;
+        for (String shard : shards) {
+            for (int i = 0; i < virtualNodes; i++) {
+                ring.put(hash(shard + "#" + i), shard);
+            }
+        }
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////
+//
+// PUBLIC API
+//
+///////////////////////////////////////////////////////////////////////////////
+
+    @Override
+    public String shardFor(FirebasePath path) {
+        if (path.depth() < prefixDepth) return null;
+        Map.Entry<Long, String> point = ring.ceilingEntry(hash(path.ancestor(prefixDepth).toString()));
+        return (point != null ? point : ring.firstEntry()).getValue();
+    }
+
+    public int getPrefixDepth() {
+        return prefixDepth;
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////
+//
+// PRIVATE API
+//
+///////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * 64-bit FNV-1a of the UTF-8 bytes, finished with MurmurHash3's mix so that similar keys spread over the ring.
+     */
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+}
@@ -0,0 +1,118 @@
+package net.thegreshams.firebase4j.service;
+
+import net.thegreshams.firebase4j.error.FirebaseException;
+import net.thegreshams.firebase4j.error.JacksonUtilityException;
+import net.thegreshams.firebase4j.model.FirebasePath;
+import net.thegreshams.firebase4j.model.FirebaseResponse;
+
+import java.net.URI;
+import java.util.Map;
+
+/**
+ * A fixed path (plus queries and auth) of a {@link Firebase}, with its url resolved once.
+ * <p>
+ * Use it for paths that are requested over and over: each request only builds its body and the http-request
+ * around the already-parsed {@link URI}, instead of re-encoding the path and queries and re-parsing the url.
+ * Obtain one from {@link Firebase#endpoint(String, org.apache.http.NameValuePair...)}. Endpoints are immutable and
+ * can be shared between threads.
+ */
+public class Endpoint {
+
+    private final Firebase firebase;
+    private final FirebasePath path;
+    private final URI uri;
+    private final URI silentUri; // the uri with print=silent, for writes while silent writes are on
+
+    Endpoint(Firebase firebase, FirebasePath path, URI uri, URI silentUri) {
+        this.firebase = firebase;
+        this.path = path;
+        this.uri = uri;
+        this.silentUri = silentUri;
+    }
+
+    public FirebasePath getPath() {
+        return path;
+    }
+
+    public URI getUri() {
+        return uri;
+    }
+
+    /**
+     * GETs the data at this endpoint.
+     *
+     * @return {@link FirebaseResponse}
+     * @throws {@link FirebaseException}
+     */
+    public FirebaseResponse get() throws FirebaseException {
+        return firebase.execute(Firebase.FirebaseRestMethod.GET, path, uri, null);
+    }
+
+    /**
+     * PUTs data to this endpoint (ie: creates or overwrites).
+     *
+     * @param data -- can be null/empty
+     * @return {@link FirebaseResponse}
+     * @throws {@link JacksonUtilityException}
+     * @throws {@link FirebaseException}
+     */
+    public FirebaseResponse put(Map<String, Object> data) throws FirebaseException, JacksonUtilityException {
+        return firebase.execute(Firebase.FirebaseRestMethod.PUT, path, writeUri(), firebase.buildEntityFromDataMap(data));
+    }
+
+    public FirebaseResponse put(String jsonData) throws FirebaseException {
+        return firebase.execute(Firebase.FirebaseRestMethod.PUT, path, writeUri(), firebase.buildEntityFromJsonData(jsonData));
+    }
+
+    /**
+     * PATCHs data on this endpoint.
+     *
+     * @param data -- can be null/empty
+     * @return {@link FirebaseResponse}
+     * @throws {@link JacksonUtilityException}
+     * @throws {@link FirebaseException}
+     */
+    public FirebaseResponse patch(Map<String, Object> data) throws FirebaseException, JacksonUtilityException {
+        return firebase.execute(Firebase.FirebaseRestMethod.PATCH, path, writeUri(), firebase.buildEntityFromDataMap(data));
+    }
+
+    public FirebaseResponse patch(String jsonData) throws FirebaseException {
+        return firebase.execute(Firebase.FirebaseRestMethod.PATCH, path, writeUri(), firebase.buildEntityFromJsonData(jsonData));
+    }
+
+    /**
+     * POSTs data to this endpoint (ie: inserts it under a Firebase-generated key).
+     *
+     * @param data -- can be null/empty but will result in no data being POSTed
+     * @return {@link FirebaseResponse}
+     * @throws {@link JacksonUtilityException}
+     * @throws {@link FirebaseException}
+     */
+    public FirebaseResponse post(Map<String, Object> data) throws FirebaseException, JacksonUtilityException {
+        return firebase.execute(Firebase.FirebaseRestMethod.POST, path, writeUri(), firebase.buildEntityFromDataMap(data));
+    }
+
+    public FirebaseResponse post(String jsonData) throws FirebaseException {
+        return firebase.execute(Firebase.FirebaseRestMethod.POST, path, writeUri(), firebase.buildEntityFromJsonData(jsonData));
+    }
+
+    /**
+     * DELETEs the data at this endpoint.
+     *
+     * @return {@link FirebaseResponse}
+     * @throws {@link FirebaseException}
+     */
+    public FirebaseResponse delete() throws FirebaseException {
+        return firebase.execute(Firebase.FirebaseRestMethod.DELETE, path, uri, null);
+    }
+
+    private URI writeUri() {
+        return firebase.isSilentWrites() ? silentUri : uri;
+    }
+
+    @Override
+    public String toString() {
+        return Endpoint.class.getSimpleName() + "[ " + uri + " ]";
+    }
+
+}
@@ -4,33 +4,74 @@ import mou.com.promises.Promise;
 import mou.com.promises.PromiseError;
 import net.thegreshams.firebase4j.error.FirebaseException;
 import net.thegreshams.firebase4j.error.JacksonUtilityException;
+import net.thegreshams.firebase4j.metrics.FirebaseMetrics;
+import net.thegreshams.firebase4j.metrics.FirebaseTracer;
+import net.thegreshams.firebase4j.metrics.RequestTrace;
+import net.thegreshams.firebase4j.model.CompactNode;
+import net.thegreshams.firebase4j.model.FirebasePath;
 import net.thegreshams.firebase4j.model.FirebaseResponse;
 import net.thegreshams.firebase4j.util.JacksonUtility;
+import net.thegreshams.firebase4j.util.PushIdGenerator;
 import org.apache.http.HttpEntity;
+import org.apache.http.HttpHost;
 import org.apache.http.HttpResponse;
 import org.apache.http.NameValuePair;
 import org.apache.http.client.methods.*;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.client.utils.URIUtils;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.entity.ContentType;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.protocol.HttpContext;
 import org.apache.log4j.Logger;
 
 import java.io.*;
+import java.net.URI;
+import java.net.URISyntaxException;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Extensible version of bane73/firebase4j/services/Firebase.java
  */
-public class Firebase {
+public class Firebase implements AutoCloseable {
 
     public static final String FIREBASE_API_JSON_EXTENSION
             = ".json";
     protected static final Logger LOGGER = Logger.getRootLogger();
+    /**
+     * aborts the requests that run past their deadlines; its thread is started by the first deadline
+     */
+    private static final ScheduledThreadPoolExecutor DEADLINES = new ScheduledThreadPoolExecutor(1, r -> {
+        Thread thread = new Thread(r, "firebase4j-deadlines");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        DEADLINES.setRemoveOnCancelPolicy(true);
+    }
+    private static final ContentType JSON_CONTENT_TYPE = ContentType.APPLICATION_JSON;
+
+    public static final long DEFAULT_DRAIN_MILLIS = 10_000;
+    private static final int WARM_UP_CONNECT_TIMEOUT = 10_000;
 
 
     ///////////////////////////////////////////////////////////////////////////////
@@ -43,6 +84,24 @@ public class Firebase {
     protected final ExecutorService executor;
     private String secureToken = null;
     private Boolean useJsonExt = true;
+    private volatile FirebaseMetrics metrics = FirebaseMetrics.NONE;
+    private volatile FirebaseTracer tracer = FirebaseTracer.NONE;
+    private InstrumentedConnectionManager connectionManager;
+    private volatile boolean coalesceReads = false;
+    private volatile boolean compactBodies = false;
+    private volatile boolean silentWrites = false;
+    private volatile RateLimiter rateLimiter = null;
+    private volatile long requestTimeout = 0;
+    private volatile RateLimiter.Priority priority = RateLimiter.Priority.INTERACTIVE;
+    private final ConcurrentHashMap<String, ReadFlight> readsInFlight = new ConcurrentHashMap<>();
+    private volatile CompletableFuture<Void> warmUp = CompletableFuture.completedFuture(null);
+    /**
+     * false if the connection pool and thread pool belong to someone else (ie: a {@link ShardedFirebase})
+     */
+    private final boolean ownsTransport;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private volatile boolean closed = false;
+    private ScheduledFuture<?> leakCheck = null;
 
     public Firebase(String baseUrl, int threadPoolSize) throws FirebaseException {
         if (threadPoolSize <= 0) {
@@ -56,7 +115,8 @@ public class Firebase {
         }
         this.baseUrl = baseUrl.trim();
         LOGGER.info("intialized with base-url: " + this.baseUrl);
-        client = HttpClients.createDefault();
+        client = this.buildClient();
+        ownsTransport = true;
 
     }
 
@@ -84,7 +144,27 @@ public class Firebase {
         this.secureToken = secureToken;
         this.baseUrl = baseUrl.trim();
         LOGGER.info("intialized with base-url: " + this.baseUrl);
-        client = HttpClients.createDefault();
+        client = this.buildClient();
+        ownsTransport = true;
+    }
+
+    /**
+     * A client that shares the connection pool and thread pool of others; see {@link ShardedFirebase}.
+     */
+    Firebase(String baseUrl, String secureToken, CloseableHttpClient client, InstrumentedConnectionManager connectionManager,
+             ExecutorService executor) throws FirebaseException {
+        if (baseUrl == null || baseUrl.trim().isEmpty()) {
+            String msg = "baseUrl cannot be null or empty; was: '" + baseUrl + "'";
+            LOGGER.error(msg);
+            throw new FirebaseException(msg);
+        }
+        this.secureToken = secureToken;
+        this.baseUrl = baseUrl.trim();
+        this.client = client;
+        this.connectionManager = connectionManager;
+        this.executor = executor;
+        this.ownsTransport = false;
+        LOGGER.info("intialized with base-url: " + this.baseUrl);
     }
 
 
@@ -105,7 +185,7 @@ public class Firebase {
      * @throws {@link FirebaseException}
      */
     public FirebaseResponse get() throws FirebaseException {
-        return this.get(null);
+        return this.getAt(FirebasePath.ROOT);
     }
 
     /**
@@ -116,16 +196,18 @@ public class Firebase {
      * @throws {@link FirebaseException}
      */
     public FirebaseResponse get(String path, NameValuePair... queries) throws FirebaseException {
+        return this.getAt(FirebasePath.of(path), queries);
+    }
 
-        // make the request
-        String url = this.buildFullUrlFromRelativePath(path, queries);
-        HttpGet request = new HttpGet(url);
-        HttpResponse httpResponse = this.makeRequest(request);
-
-        // process the response
-        FirebaseResponse response = this.processResponse(FirebaseRestMethod.GET, httpResponse);
-
-        return response;
+    /**
+     * GETs data from the provided-path relative to the base-url.
+     *
+     * @param path -- if null/empty, refers to the base-url
+     * @return {@link FirebaseResponse}
+     * @throws {@link FirebaseException}
+     */
+    public FirebaseResponse getAt(FirebasePath path, NameValuePair... queries) throws FirebaseException {
+        return this.execute(FirebaseRestMethod.GET, path, this.buildFullUrl(path, queries), null);
     }
 
     /**
@@ -138,7 +220,7 @@ public class Firebase {
      */
 
     public FirebaseResponse patch(Map<String, Object> data) throws FirebaseException, JacksonUtilityException {
-        return this.patch(null, data);
+        return this.patchAt(FirebasePath.ROOT, data);
     }
 
     /**
@@ -152,17 +234,21 @@ public class Firebase {
      */
 
     public FirebaseResponse patch(String path, Map<String, Object> data, NameValuePair... queries) throws FirebaseException, JacksonUtilityException {
-        // make the request
-        String url = this.buildFullUrlFromRelativePath(path, queries);
-        //HttpPut request = new HttpPut( url );
-        HttpPatch request = new HttpPatch(url);
-        request.setEntity(this.buildEntityFromDataMap(data));
-        HttpResponse httpResponse = this.makeRequest(request);
+        return this.patchAt(FirebasePath.of(path), data, queries);
+    }
 
-        // process the response
-        FirebaseResponse response = this.processResponse(FirebaseRestMethod.PATCH, httpResponse);
+    /**
+     * PATCHs data on the provided-path relative to the base-url.
+     *
+     * @param path -- if null/empty, refers to the base-url
+     * @param data -- can be null/empty
+     * @return {@link FirebaseResponse}
+     * @throws {@link FirebaseException}
+     * @throws {@link JacksonUtilityException}
+     */
 
-        return response;
+    public FirebaseResponse patchAt(FirebasePath path, Map<String, Object> data, NameValuePair... queries) throws FirebaseException, JacksonUtilityException {
+        return this.execute(FirebaseRestMethod.PATCH, path, this.buildFullUrl(path, queries), this.buildEntityFromDataMap(data));
     }
 
     /**
@@ -171,7 +257,7 @@ public class Firebase {
      */
 
     public FirebaseResponse patch(String jsonData) throws FirebaseException {
-        return this.patch(null, jsonData);
+        return this.patchAt(FirebasePath.ROOT, jsonData);
     }
 
     /**
@@ -182,13 +268,18 @@ public class Firebase {
      */
 
     public FirebaseResponse patch(String path, String jsonData, NameValuePair... queries) throws FirebaseException {
-        // make the request
-        String url = this.buildFullUrlFromRelativePath(path, queries);
-        HttpPatch request = new HttpPatch(url);
-        request.setEntity(this.buildEntityFromJsonData(jsonData));
-        HttpResponse httpResponse = this.makeRequest(request);
-        // process the response
-        return this.processResponse(FirebaseRestMethod.PATCH, httpResponse);
+        return this.patchAt(FirebasePath.of(path), jsonData, queries);
+    }
+
+    /**
+     * @param path
+     * @param jsonData
+     * @return
+     * @throws FirebaseException
+     */
+
+    public FirebaseResponse patchAt(FirebasePath path, String jsonData, NameValuePair... queries) throws FirebaseException {
+        return this.execute(FirebaseRestMethod.PATCH, path, this.buildFullUrl(path, queries), this.buildEntityFromJsonData(jsonData));
     }
 
     /**
@@ -202,7 +293,7 @@ public class Firebase {
      * @throws {@link FirebaseException}
      */
     public FirebaseResponse put(Map<String, Object> data) throws JacksonUtilityException, FirebaseException {
-        return this.put(null, data);
+        return this.putAt(FirebasePath.ROOT, data);
     }
 
     /**
@@ -217,17 +308,22 @@ public class Firebase {
      * @throws {@link FirebaseException}
      */
     public FirebaseResponse put(String path, Map<String, Object> data, NameValuePair... queries) throws JacksonUtilityException, FirebaseException {
+        return this.putAt(FirebasePath.of(path), data, queries);
+    }
 
-        // make the request
-        String url = this.buildFullUrlFromRelativePath(path, queries);
-        HttpPut request = new HttpPut(url);
-        request.setEntity(this.buildEntityFromDataMap(data));
-        HttpResponse httpResponse = this.makeRequest(request);
-
-        // process the response
-        FirebaseResponse response = this.processResponse(FirebaseRestMethod.PUT, httpResponse);
-
-        return response;
+    /**
+     * PUTs data to the provided-path relative to the base-url (ie: creates or overwrites).
+     * If there is already data at the path, this data overwrites it.
+     * If data is null/empty, any data existing at the path is deleted.
+     *
+     * @param path -- if null/empty, refers to base-url
+     * @param data -- can be null/empty
+     * @return {@link FirebaseResponse}
+     * @throws {@link JacksonUtilityException}
+     * @throws {@link FirebaseException}
+     */
+    public FirebaseResponse putAt(FirebasePath path, Map<String, Object> data, NameValuePair... queries) throws JacksonUtilityException, FirebaseException {
+        return this.execute(FirebaseRestMethod.PUT, path, this.buildFullUrl(path, queries), this.buildEntityFromDataMap(data));
     }
 
     /**
@@ -240,7 +336,7 @@ public class Firebase {
      * @throws {@link FirebaseException}
      */
     public FirebaseResponse put(String jsonData) throws FirebaseException {
-        return this.put(null, jsonData);
+        return this.putAt(FirebasePath.ROOT, jsonData);
     }
 
     /**
@@ -254,17 +350,21 @@ public class Firebase {
      * @throws {@link FirebaseException}
      */
     public FirebaseResponse put(String path, String jsonData, NameValuePair... queries) throws FirebaseException {
+        return this.putAt(FirebasePath.of(path), jsonData, queries);
+    }
 
-        // make the request
-        String url = this.buildFullUrlFromRelativePath(path, queries);
-        HttpPut request = new HttpPut(url);
-        request.setEntity(this.buildEntityFromJsonData(jsonData));
-        HttpResponse httpResponse = this.makeRequest(request);
-
-        // process the response
-        FirebaseResponse response = this.processResponse(FirebaseRestMethod.PUT, httpResponse);
-
-        return response;
+    /**
+     * PUTs data to the provided-path relative to the base-url (ie: creates or overwrites).
+     * If there is already data at the path, this data overwrites it.
+     * If data is null/empty, any data existing at the path is deleted.
+     *
+     * @param path     -- if null/empty, refers to base-url
+     * @param jsonData -- can be null/empty
+     * @return {@link FirebaseResponse}
+     * @throws {@link FirebaseException}
+     */
+    public FirebaseResponse putAt(FirebasePath path, String jsonData, NameValuePair... queries) throws FirebaseException {
+        return this.execute(FirebaseRestMethod.PUT, path, this.buildFullUrl(path, queries), this.buildEntityFromJsonData(jsonData));
     }
 
     /**
@@ -281,7 +381,7 @@ public class Firebase {
      * @throws {@link FirebaseException}
      */
     public FirebaseResponse post(Map<String, Object> data) throws JacksonUtilityException, FirebaseException {
-        return this.post(null, data);
+        return this.postAt(FirebasePath.ROOT, data);
     }
 
     /**
@@ -299,16 +399,25 @@ public class Firebase {
      * @throws {@link FirebaseException}
      */
     public FirebaseResponse post(String path, Map<String, Object> data, NameValuePair... queries) throws JacksonUtilityException, FirebaseException {
+        return this.postAt(FirebasePath.of(path), data, queries);
+    }
 
-        // make the request
-        String url = this.buildFullUrlFromRelativePath(path, queries);
-        HttpPost request = new HttpPost(url);
-        request.setEntity(this.buildEntityFromDataMap(data));
-        HttpResponse httpResponse = this.makeRequest(request);
-
-        // process the response
-
-        return this.processResponse(FirebaseRestMethod.POST, httpResponse);
+    /**
+     * POSTs data to the provided-path relative to the base-url (ie: creates).
+     * <p>
+     * NOTE: the Firebase API does not treat this method in the conventional way, but instead defines it
+     * as 'PUSH'; the API will insert this data under the provided path but associated with a Firebase-
+     * generated key; thus, every use of this method will result in a new insert even if the provided path
+     * and data already exist.
+     *
+     * @param path -- if null/empty, refers to base-url
+     * @param data -- can be null/empty but will result in no data being POSTed
+     * @return {@link FirebaseResponse}
+     * @throws {@link JacksonUtilityException}
+     * @throws {@link FirebaseException}
+     */
+    public FirebaseResponse postAt(FirebasePath path, Map<String, Object> data, NameValuePair... queries) throws JacksonUtilityException, FirebaseException {
+        return this.execute(FirebaseRestMethod.POST, path, this.buildFullUrl(path, queries), this.buildEntityFromDataMap(data));
     }
 
     /**
@@ -324,7 +433,7 @@ public class Firebase {
      * @throws {@link FirebaseException}
      */
     public FirebaseResponse post(String jsonData) throws FirebaseException {
-        return this.post(null, jsonData);
+        return this.postAt(FirebasePath.ROOT, jsonData);
     }
 
     /**
@@ -341,17 +450,57 @@ public class Firebase {
      * @throws {@link FirebaseException}
      */
     public FirebaseResponse post(String path, String jsonData, NameValuePair... queries) throws FirebaseException {
+        return this.postAt(FirebasePath.of(path), jsonData, queries);
+    }
+
+    /**
+     * POSTs data to the provided-path relative to the base-url (ie: creates).
+     * <p>
+     * NOTE: the Firebase API does not treat this method in the conventional way, but instead defines it
+     * as 'PUSH'; the API will insert this data under the provided path but associated with a Firebase-
+     * generated key; thus, every use of this method will result in a new insert even if the provided path
+     * and data already exist.
+     *
+     * @param path     -- if null/empty, refers to base-url
+     * @param jsonData -- can be null/empty but will result in no data being POSTed
+     * @return {@link FirebaseResponse}
+     * @throws {@link FirebaseException}
+     */
+    public FirebaseResponse postAt(FirebasePath path, String jsonData, NameValuePair... queries) throws FirebaseException {
+        return this.execute(FirebaseRestMethod.POST, path, this.buildFullUrl(path, queries), this.buildEntityFromJsonData(jsonData));
+    }
 
-        // make the request
-        String url = this.buildFullUrlFromRelativePath(path, queries);
-        HttpPost request = new HttpPost(url);
-        request.setEntity(this.buildEntityFromJsonData(jsonData));
-        HttpResponse httpResponse = this.makeRequest(request);
+    /**
+     * Like {@link #post(String, Map, NameValuePair...)}, but the key is generated here (by
+     * {@link PushIdGenerator#getDefault()}) rather than by the server, and the data is PUT under it. The key is
+     * known before anything is sent, so the same record can be referred to by other writes of a batch (ie: a
+     * multi-path patch), and sending it again can't create a second copy.
+     *
+     * @param path -- the parent of the new child; if null/empty, refers to base-url
+     * @param data -- can be null/empty but will result in no data being written
+     * @return {@link FirebaseResponse} whose body is {"name": key}, as for a POST, if successful
+     * @throws {@link JacksonUtilityException}
+     * @throws {@link FirebaseException}
+     */
+    public FirebaseResponse push(String path, Map<String, Object> data, NameValuePair... queries) throws JacksonUtilityException, FirebaseException {
+        return this.pushAt(FirebasePath.of(path), data, queries);
+    }
 
-        // process the response
-        FirebaseResponse response = this.processResponse(FirebaseRestMethod.POST, httpResponse);
+    public FirebaseResponse pushAt(FirebasePath path, Map<String, Object> data, NameValuePair... queries) throws JacksonUtilityException, FirebaseException {
+        String key = PushIdGenerator.getDefault().next();
+        return this.pushed(key, this.putAt(this.child(path, key), data, queries));
+    }
 
-        return response;
+    /**
+     * Like {@link #push(String, Map, NameValuePair...)}, with the data as JSON.
+     */
+    public FirebaseResponse push(String path, String jsonData, NameValuePair... queries) throws FirebaseException {
+        return this.pushAt(FirebasePath.of(path), jsonData, queries);
+    }
+
+    public FirebaseResponse pushAt(FirebasePath path, String jsonData, NameValuePair... queries) throws FirebaseException {
+        String key = PushIdGenerator.getDefault().next();
+        return this.pushed(key, this.putAt(this.child(path, key), jsonData, queries));
     }
 
     /**
@@ -361,7 +510,7 @@ public class Firebase {
      * @throws {@link FirebaseException}
      */
     public FirebaseResponse delete() throws FirebaseException {
-        return this.delete(null);
+        return this.deleteAt(FirebasePath.ROOT);
     }
 
 
@@ -379,31 +528,33 @@ public class Firebase {
      * @throws {@link FirebaseException}
      */
     public FirebaseResponse delete(String path, NameValuePair... queries) throws FirebaseException {
+        return this.deleteAt(FirebasePath.of(path), queries);
+    }
 
-        // make the request
-        String url = this.buildFullUrlFromRelativePath(path, queries);
-        HttpDelete request = new HttpDelete(url);
-        HttpResponse httpResponse = this.makeRequest(request);
-
-        // process the response
-        FirebaseResponse response = this.processResponse(FirebaseRestMethod.DELETE, httpResponse);
-
-        return response;
+    /**
+     * DELETEs data from the provided-path relative to the base-url.
+     *
+     * @param path -- if null/empty, refers to the base-url
+     * @return {@link FirebaseResponse}
+     * @throws {@link FirebaseException}
+     */
+    public FirebaseResponse deleteAt(FirebasePath path, NameValuePair... queries) throws FirebaseException {
+        return this.execute(FirebaseRestMethod.DELETE, path, this.buildFullUrl(path, queries), null);
     }
 
-    private StringEntity buildEntityFromDataMap(Map<String, Object> dataMap) throws FirebaseException, JacksonUtilityException {
+    StringEntity buildEntityFromDataMap(Map<String, Object> dataMap) throws FirebaseException, JacksonUtilityException {
 
         String jsonData = JacksonUtility.GET_JSON_STRING_FROM_MAP(dataMap);
 
         return this.buildEntityFromJsonData(jsonData);
     }
 
-    private StringEntity buildEntityFromJsonData(String jsonData) throws FirebaseException {
+    StringEntity buildEntityFromJsonData(String jsonData) throws FirebaseException {
 
         StringEntity result = null;
         try {
 
-            result = new StringEntity(jsonData, "UTF-8");
+            result = new StringEntity(jsonData, JSON_CONTENT_TYPE);
 
         } catch (Throwable t) {
 
@@ -416,24 +567,383 @@ public class Firebase {
         return result;
     }
 
+    /**
+     * Resolves the url (path, encoded queries and auth) once; requests made through the returned {@link Endpoint}
+     * only need to bind their body.
+     *
+     * @param path -- if null/empty, refers to the base-url
+     * @return {@link Endpoint}
+     * @throws {@link FirebaseException} if the resulting url is malformed
+     */
+    public Endpoint endpoint(String path, NameValuePair... queries) throws FirebaseException {
+        return this.endpointAt(FirebasePath.of(path), queries);
+    }
+
+    public Endpoint endpointAt(FirebasePath path, NameValuePair... queries) throws FirebaseException {
+        String url = this.buildFullUrl(path, queries);
+        try {
+            URI uri = new URI(url);
+            return new Endpoint(this, path == null ? FirebasePath.ROOT : path, uri, isSilent(uri) ? uri : new URI(withSilent(url)));
+        } catch (URISyntaxException e) {
+            String msg = "unable to build endpoint; url was: " + url;
+            LOGGER.error(msg);
+            throw new FirebaseException(msg, e);
+        }
+    }
+
+    /**
+     * GETs a large node in parallel: lists its children with a shallow GET, then GETs them in ranges of keys on up to
+     * 'parallelism' connections at once, and puts them together. The ranges are read one after another, not as one
+     * snapshot: writes made meanwhile may show up in some ranges and not in others.
+     * <p>
+     * The raw body of the result is left empty, as the node is never received as one document; for nodes too large to
+     * hold, use {@link #parallelGetAt(FirebasePath, int, int, ChildVisitor)}.
+     *
+     * @param path        -- if null/empty, refers to the base-url
+     * @param rangeSize   -- how many children each range GETs
+     * @param parallelism -- how many ranges are fetched at once; no more than {@link #getMaxConnections()} are sent
+     *                    at a time
+     * @return {@link FirebaseResponse} with the whole node; or the first unsuccessful response
+     * @throws {@link FirebaseException}
+     */
+    public FirebaseResponse parallelGet(String path, int rangeSize, int parallelism) throws FirebaseException {
+        return this.parallelGetAt(FirebasePath.of(path), rangeSize, parallelism);
+    }
+
+    public FirebaseResponse parallelGetAt(FirebasePath path, int rangeSize, int parallelism) throws FirebaseException {
+        Map<String, Object> node = new LinkedHashMap<>();
+        FirebaseResponse response = new ParallelFetch(this, path, rangeSize, parallelism).run(node::put);
+        if (!response.getSuccess() || node.isEmpty()) {
+            return response;
+        }
+        return new FirebaseResponse(true, 200, node, null);
+    }
+
+    /**
+     * Like {@link #parallelGetAt(FirebasePath, int, int)}, but hands the children to the visitor as their ranges
+     * arrive, in key order and on the calling thread, instead of putting them together; only the ranges in flight
+     * are held in memory.
+     *
+     * @return {@link FirebaseResponse} with an empty body once every child is visited (or the node itself, if it has
+     * no children); or the first unsuccessful response, after which nothing more is visited
+     * @throws {@link FirebaseException}
+     */
+    public FirebaseResponse parallelGetAt(FirebasePath path, int rangeSize, int parallelism, ChildVisitor visitor) throws FirebaseException {
+        return new ParallelFetch(this, path, rangeSize, parallelism).run(visitor);
+    }
+
+    /**
+     * Builds, sends and processes one request; every public request method ends up here.
+     */
+    FirebaseResponse execute(FirebaseRestMethod method, FirebasePath path, String url, HttpEntity entity) throws FirebaseException {
+        return this.execute(method, path, this.toUri(this.toWriteUrl(method, url)), entity);
+    }
+
+    FirebaseResponse execute(FirebaseRestMethod method, FirebasePath path, URI uri, HttpEntity entity) throws FirebaseException {
+        if (method == FirebaseRestMethod.GET && this.coalesceReads) {
+            return this.executeCoalesced(path, uri);
+        }
+        return this.send(method, path, uri, entity, null);
+    }
+
+    /**
+     * Sends a GET unless the same url is already being read, in which case waits for that read instead. Every caller
+     * gets its own copy of the response, so none of them can see another's changes to the body.
+     */
+    private FirebaseResponse executeCoalesced(FirebasePath path, URI uri) throws FirebaseException {
+        String key = uri.toString();
+        ReadFlight mine = new ReadFlight();
+        // joining happens under the map's lock for the key, so once the leader has removed the flight nobody joins it
+        ReadFlight flight = readsInFlight.compute(key, (k, current) -> {
+            if (current == null) return mine;
+            current.followers++;
+            return current;
+        });
+        if (flight != mine) {
+            this.metrics.onRequestCoalesced(FirebaseRestMethod.GET, path);
+            try {
+                return flight.response.get().copy();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                String msg = "interrupted while waiting for an in-flight read of: " + key;
+                LOGGER.error(msg);
+                throw new FirebaseException(msg, e);
+            } catch (ExecutionException e) {
+                String msg = "in-flight read failed: " + e.getCause().getMessage();
+                LOGGER.error(msg);
+                throw new FirebaseException(msg, e.getCause());
+            }
+        }
+        FirebaseResponse response;
+        try {
+            response = this.send(FirebaseRestMethod.GET, path, uri, null, null);
+        } catch (FirebaseException | RuntimeException | Error e) {
+            readsInFlight.remove(key, mine);
+            mine.response.completeExceptionally(e);
+            throw e;
+        }
+        readsInFlight.remove(key, mine);
+        mine.response.complete(response);
+        // the followers copy the shared response, so the leader must not get it to modify
+        return mine.followers > 0 ? response.copy() : response;
+    }
+
+    URI toUri(String url) throws FirebaseException {
+        try {
+            return URI.create(url);
+        } catch (IllegalArgumentException e) {
+            String msg = "malformed url: " + url;
+            LOGGER.error(msg);
+            throw new FirebaseException(msg, e);
+        }
+    }
+
+    /**
+     * Sends the request through the checks, limits, metrics and tracing every request goes through.
+     *
+     * @param control -- the deadline and abort of the request, and whether it is a conditional GET; null for the
+     *                default deadline
+     */
+    FirebaseResponse send(FirebaseRestMethod method, FirebasePath path, URI uri, HttpEntity entity, RequestControl control) throws FirebaseException {
+        if (this.closed) {
+            String msg = "client is closed; can't send " + method + " " + path;
+            LOGGER.error(msg);
+            throw new FirebaseException(msg);
+        }
+        this.inFlight.incrementAndGet();
+        try {
+            return this.doSend(method, path, uri, entity, control);
+        } finally {
+            this.inFlight.decrementAndGet();
+        }
+    }
+
+    private FirebaseResponse doSend(FirebaseRestMethod method, FirebasePath path, URI uri, HttpEntity entity, RequestControl control) throws FirebaseException {
+        if (control == null && this.requestTimeout > 0) {
+            control = new RequestControl(this.requestTimeout);
+        }
+        RateLimiter rateLimiter = this.rateLimiter;
+        if (rateLimiter != null) {
+            long waited = rateLimiter.acquire(method, path, priority);
+            if (waited > 0) this.metrics.onRequestThrottled(method, path, waited);
+        }
+        boolean silent = false;
+        if (method == FirebaseRestMethod.PUT || method == FirebaseRestMethod.PATCH || method == FirebaseRestMethod.POST) {
+            silent = isSilent(uri);
+            // the request methods and endpoints add print=silent before parsing the url; this is for any other caller
+            if (!silent && this.silentWrites) {
+                uri = this.toUri(withSilent(uri.toString()));
+                silent = true;
+            }
+        }
+        FirebaseTracer tracer = this.tracer;
+        RequestContext context = new RequestContext(method, path, tracer != FirebaseTracer.NONE);
+        context.silent = silent;
+        HttpRequestBase request = this.newRequest(method, uri);
+        if (control != null && control.isConditional()) {
+            request.setHeader("X-Firebase-ETag", "true");
+            if (control.getETag() != null) request.setHeader("If-None-Match", control.getETag());
+        }
+        if (entity != null) {
+            ((HttpEntityEnclosingRequestBase) request).setEntity(entity);
+            context.bytesOut = Math.max(0, entity.getContentLength());
+        }
+        HttpClientContext httpContext = null;
+        if (context.trace != null) {
+            httpContext = HttpClientContext.create();
+            httpContext.setAttribute(TracingRequestExecutor.TRACE_ATTRIBUTE, context.trace);
+        }
+        FirebaseMetrics metrics = this.metrics;
+        ScheduledFuture<?> deadline = control == null ? null : control.attach(request, DEADLINES);
+        HttpResponse httpResponse = null;
+        try {
+            httpResponse = this.makeRequest(request, httpContext);
+            if (control != null && control.isConditional() && httpResponse.getFirstHeader("ETag") != null) {
+                control.setETag(httpResponse.getFirstHeader("ETag").getValue());
+            }
+            FirebaseResponse response = this.processResponse(method, httpResponse, context);
+            metrics.onRequest(method, path, response.getCode(), System.nanoTime() - context.startNanos, context.bytesOut, context.bytesIn);
+            if (context.trace != null) {
+                context.trace.setStatusCode(response.getCode());
+                tracer.onRequest(context.trace);
+            }
+            return response;
+        } catch (FirebaseException e) {
+            String aborted = control == null ? null : control.getAbortReason();
+            if (aborted != null) {
+                String msg = "request " + aborted + ": " + method + " " + path;
+                LOGGER.error(msg);
+                e = new FirebaseException(msg, e);
+            }
+            metrics.onRequestFailed(method, path, System.nanoTime() - context.startNanos, e);
+            if (context.trace != null) {
+                context.trace.setFailure(e);
+                tracer.onRequest(context.trace);
+            }
+            throw e;
+        } finally {
+            if (deadline != null) deadline.cancel(false);
+            // hands the connection back to the pool; one whose body wasn't read to the end is shut down instead
+            if (httpResponse instanceof Closeable) {
+                try {
+                    ((Closeable) httpResponse).close();
+                } catch (IOException e) {
+                    LOGGER.error("Exception thrown while closing the response", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * The steps of a {@link #warmUp(int)}, on the calling thread.
+     */
+    void warmUpNow(int connections, FirebasePath path) throws FirebaseException {
+        try {
+            int open = connectionManager.warmUp(this.baseRoute(), connections, WARM_UP_CONNECT_TIMEOUT);
+            LOGGER.info("warmed up " + open + " connections to " + this.baseUrl);
+        } catch (IOException e) {
+            String msg = "unable to open connections to " + this.baseUrl;
+            LOGGER.error(msg);
+            throw new FirebaseException(msg, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            String msg = "interrupted while opening connections to " + this.baseUrl;
+            LOGGER.error(msg);
+            throw new FirebaseException(msg, e);
+        }
+
+        // the codec builds its serializers and deserializers on first use
+        Map<String, Object> sample = new LinkedHashMap<>();
+        sample.put("string", "s");
+        sample.put("number", 1);
+        sample.put("decimal", 1.5);
+        sample.put("boolean", true);
+        sample.put("list", new ArrayList<>(sample.values()));
+        sample.put("map", new LinkedHashMap<>(sample));
+        try {
+            JacksonUtility.GET_JSON_STRING_AS_MAP(JacksonUtility.GET_JSON_STRING_FROM_MAP(sample));
+        } catch (JacksonUtilityException e) {
+            String msg = "unable to warm up the json codec";
+            LOGGER.error(msg);
+            throw new FirebaseException(msg, e);
+        }
+
+        FirebaseResponse response = this.getAt(path, query("shallow", "true"));
+        if (!response.getSuccess()) {
+            String msg = "warm-up read of '" + path + "' failed with " + response.getCode() + ": " + response.getRawBody();
+            LOGGER.error(msg);
+            throw new FirebaseException(msg);
+        }
+    }
+
+    /**
+     * @return the route requests to the base-url take, as the client's route planner works it out
+     */
+    private HttpRoute baseRoute() throws FirebaseException {
+        HttpHost host = URIUtils.extractHost(this.toUri(this.baseUrl));
+        if (host == null) {
+            String msg = "no host in the base-url: " + this.baseUrl;
+            LOGGER.error(msg);
+            throw new FirebaseException(msg);
+        }
+        boolean secure = "https".equalsIgnoreCase(host.getSchemeName());
+        int port = host.getPort() > 0 ? host.getPort() : secure ? 443 : 80;
+        return new HttpRoute(new HttpHost(host.getHostName(), port, host.getSchemeName()), null, secure);
+    }
+
+    private FirebasePath child(FirebasePath path, String key) {
+        return (path == null ? FirebasePath.ROOT : path).child(key);
+    }
+
+    /**
+     * @return the response of a push as a POST would have answered it: the new key, rather than the data
+     */
+    private FirebaseResponse pushed(String key, FirebaseResponse response) {
+        if (!response.getSuccess()) return response;
+        Map<String, Object> body = new LinkedHashMap<>();
+        body.put("name", key);
+        return new FirebaseResponse(true, response.getCode(), body, "{\"name\":\"" + key + "\"}");
+    }
+
+    /**
+     * @return true if the uri asks for print=silent (ie: it was given as a query)
+     */
+    private static boolean isSilent(URI uri) {
+        String query = uri.getRawQuery();
+        return query != null && ("&" + query + "&").contains("&print=silent&");
+    }
+
+    private static boolean isSilent(String url) {
+        int query = url.indexOf('?');
+        return query >= 0 && ("&" + url.substring(query + 1) + "&").contains("&print=silent&");
+    }
+
+    /**
+     * @return the url with print=silent added to its query
+     */
+    static String withSilent(String url) {
+        return url + (url.indexOf('?') < 0 ? "?" : "&") + "print=silent";
+    }
+
+    /**
+     * @return the url to send the request to: with print=silent if it is a write and silent writes are on, so that
+     * the url is parsed once
+     */
+    private String toWriteUrl(FirebaseRestMethod method, String url) {
+        boolean write = method == FirebaseRestMethod.PUT || method == FirebaseRestMethod.PATCH || method == FirebaseRestMethod.POST;
+        return write && this.silentWrites && !isSilent(url) ? withSilent(url) : url;
+    }
+
+    private HttpRequestBase newRequest(FirebaseRestMethod method, URI uri) throws FirebaseException {
+        switch (method) {
+            case GET:
+                return new HttpGet(uri);
+            case PATCH:
+                return new HttpPatch(uri);
+            case PUT:
+                return new HttpPut(uri);
+            case POST:
+                return new HttpPost(uri);
+            case DELETE:
+                return new HttpDelete(uri);
+            default:
+                String msg = "unsupported method: " + method;
+                LOGGER.error(msg);
+                throw new FirebaseException(msg);
+        }
+    }
+
+    private CloseableHttpClient buildClient() {
+        // same pool as HttpClients.createDefault(), but leases are timed and requests can be traced
+        connectionManager = new InstrumentedConnectionManager(new PoolingHttpClientConnectionManager(), this::getMetrics);
+        return newClient(connectionManager);
+    }
+
+    static CloseableHttpClient newClient(InstrumentedConnectionManager connectionManager) {
+        return HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setRequestExecutor(new TracingRequestExecutor())
+                .build();
+    }
+
     protected String buildFullUrlFromRelativePath(String path, NameValuePair[] queries) {
+        return this.buildFullUrl(FirebasePath.of(path), queries);
+    }
+
+    protected String buildFullUrl(FirebasePath path, NameValuePair[] queries) {
 
-        // massage the path (whether it's null, empty, or not) into a full URL
         if (path == null) {
-            path = "";
-        }
-        path = path.trim();
-        if (!path.isEmpty() && !path.startsWith("/")) {
-            path = "/" + path;
+            path = FirebasePath.ROOT;
         }
+        String urlPath = path.toUrlPath();
 
-        String url = this.baseUrl + path;
+        String url = this.baseUrl + urlPath;
 
         if (useJsonExt) url += Firebase.FIREBASE_API_JSON_EXTENSION;
 
         if (queries.length > 0) {
-            StringBuilder builder = new StringBuilder(url);
-            builder.append('?');
+            StringBuilder builder = new StringBuilder(url.length() + 32 * queries.length);
+            builder.append(url).append('?');
             for (NameValuePair e : queries) {
                 builder.append(e.getName()).append('=');
                 builder.append(URLEncoder.encode(e.getValue(), StandardCharsets.UTF_8));
@@ -449,12 +959,14 @@ public class Firebase {
             url += "?access_token=" + secureToken;
         }
 
-        LOGGER.info("built full url to '" + url + "' using relative-path of '" + path + "'");
+        if (LOGGER.isInfoEnabled()) {
+            LOGGER.info("built full url to '" + url + "' using relative-path of '" + urlPath + "'");
+        }
 
         return url;
     }
 
-    private HttpResponse makeRequest(HttpRequestBase request) throws FirebaseException {
+    private HttpResponse makeRequest(HttpRequestBase request, HttpContext context) throws FirebaseException {
 
         HttpResponse response = null;
 
@@ -467,7 +979,7 @@ public class Firebase {
         }
 
         try {
-            response = client.execute(request);
+            response = client.execute(request, context);
         } catch (Throwable t) {
 
             String msg = "unable to receive response from request(" + request.getMethod() + ") @ " + request.getURI();
@@ -484,7 +996,7 @@ public class Firebase {
 //
 ///////////////////////////////////////////////////////////////////////////////
 
-    private FirebaseResponse processResponse(FirebaseRestMethod method, HttpResponse httpResponse) throws FirebaseException {
+    FirebaseResponse processResponse(FirebaseRestMethod method, HttpResponse httpResponse, RequestContext context) throws FirebaseException {
 
         FirebaseResponse response = null;
 
@@ -509,7 +1021,8 @@ public class Firebase {
         int code = httpResponse.getStatusLine().getStatusCode();
 
         // set the response-success
-        boolean success = false;
+        // a silent write (only writes are ever silent) succeeds with 204 No Content instead of the data
+        boolean success = context.silent && code == 204;
         switch (method) {
             case DELETE:
                 if (httpResponse.getStatusLine().getStatusCode() == 204
@@ -531,19 +1044,31 @@ public class Firebase {
 
         }
 
+        // a silent write that succeeded has no body; one that failed still has the error to read
+        if (context.silent && success) {
+            return new FirebaseResponse(true, code, new LinkedHashMap<>(), "");
+        }
+        // nor has the answer to a conditional GET whose data didn't change
+        if (code == 304) {
+            return new FirebaseResponse(false, code, new LinkedHashMap<>(), "");
+        }
+
         // get the response-body
         Writer writer = new StringWriter();
         if (entity != null) {
 
             try {
 
-                InputStream is = entity.getContent();
+                InputStream is = new CountingInputStream(entity.getContent(), context);
                 char[] buffer = new char[1024];
                 Reader reader = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8));
                 int n;
                 while ((n = reader.read(buffer)) != -1) {
                     writer.write(buffer, 0, n);
                 }
+                if (context.trace != null) {
+                    context.trace.end(RequestTrace.Phase.DOWNLOAD);
+                }
 
             } catch (Throwable t) {
 
@@ -560,6 +1085,14 @@ public class Firebase {
         try {
 
             body = JacksonUtility.GET_JSON_STRING_AS_MAP(writer.toString());
+            if (compactBodies) {
+                @SuppressWarnings("unchecked")
+                Map<String, Object> compact = (Map<String, Object>) CompactNode.compact(body);
+                body = compact;
+            }
+            if (context.trace != null) {
+                context.trace.end(RequestTrace.Phase.PARSE);
+            }
 
         } catch (JacksonUtilityException jue) {
 
@@ -650,6 +1183,320 @@ public class Firebase {
         }));
     }
 
+    /**
+     * Sends a request on the thread pool, with a deadline, and returns at once. Unlike the *Async methods (which
+     * keep to the default deadline, see {@link #setRequestTimeout(long)}), the request can be cancelled: cancelling
+     * the returned future aborts it, freeing its connection and thread right away. GETs sent this way are never
+     * coalesced with others (see {@link #setCoalesceReads(boolean)}), so that cancelling one doesn't fail the rest.
+     *
+     * @param method        -- the REST method
+     * @param path          -- if null/empty, refers to the base-url
+     * @param data          -- the body of a PUT, PATCH or POST; null for GET and DELETE
+     * @param timeoutMillis -- counted from now, including the time spent waiting for a thread; 0 for the default
+     *                      deadline, -1 for none
+     * @return {@link FirebaseFuture}
+     * @throws {@link FirebaseException} if there is no thread pool
+     * @throws {@link JacksonUtilityException} if the data cannot be converted into json
+     */
+    public FirebaseFuture submit(FirebaseRestMethod method, String path, Map<String, Object> data, long timeoutMillis, NameValuePair... queries) throws FirebaseException, JacksonUtilityException {
+        return this.submit(method, FirebasePath.of(path), data, timeoutMillis, queries);
+    }
+
+    public FirebaseFuture submit(FirebaseRestMethod method, FirebasePath path, Map<String, Object> data, long timeoutMillis, NameValuePair... queries) throws FirebaseException, JacksonUtilityException {
+        if (executor == null) {
+            String msg = "There is no thread pool!";
+            LOGGER.error(msg);
+            throw new FirebaseException(msg);
+        }
+        if (data != null && (method == FirebaseRestMethod.GET || method == FirebaseRestMethod.DELETE)) {
+            String msg = method + " requests have no body";
+            LOGGER.error(msg);
+            throw new FirebaseException(msg);
+        }
+        FirebasePath target = path == null ? FirebasePath.ROOT : path;
+        URI uri = this.toUri(this.toWriteUrl(method, this.buildFullUrl(target, queries)));
+        HttpEntity entity = data == null ? null : this.buildEntityFromDataMap(data);
+        RequestControl control = new RequestControl(timeoutMillis == 0 ? this.requestTimeout : Math.max(0, timeoutMillis));
+        FirebaseFuture future = new FirebaseFuture(control);
+        executor.execute(() -> {
+            if (future.isDone()) return; // cancelled while queued
+            try {
+                future.complete(this.send(method, target, uri, entity, control));
+            } catch (Throwable t) {
+                future.completeExceptionally(t);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Closes the client once the work in flight is done: the thread pool takes no more async requests, then the
+     * client waits (up to {@link #DEFAULT_DRAIN_MILLIS}) for the queued and running requests to finish, refuses new
+     * ones and closes the connection pool.
+     */
+    @Override
+    public void close() {
+        this.close(DEFAULT_DRAIN_MILLIS);
+    }
+
+    /**
+     * @param drainMillis -- how long to wait for the requests in flight; those still running afterwards are aborted
+     *                    by the closing of the connection pool
+     */
+    public void close(long drainMillis) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0, drainMillis));
+        if (ownsTransport && executor != null) {
+            executor.shutdown();
+            try {
+                if (!executor.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+                    LOGGER.error("async requests still running after " + drainMillis + "ms; closing anyway");
+                    executor.shutdownNow();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                executor.shutdownNow();
+            }
+        }
+        this.closed = true;
+        // requests of other threads that were sent before the client was closed
+        while (inFlight.get() > 0 && System.nanoTime() < deadline && !Thread.currentThread().isInterrupted()) {
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        this.setLeakDetection(0);
+        if (ownsTransport) {
+            try {
+                client.close();
+            } catch (IOException e) {
+                LOGGER.error("Exception thrown while closing the http client", e);
+            }
+        }
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Gets the client ready for its first requests ahead of time (ie: right after a deploy), so that they don't pay
+     * for DNS, TCP and TLS set-up on an empty pool: opens the connections to the base-url all at once, warms up the
+     * JSON codec, and checks the server and the token with a shallow GET of the root. Runs in the background; the
+     * client isn't {@link #isReady() ready} until it is done. Call it right after constructing the client, or again
+     * at any time (ie: after a network change).
+     *
+     * @param connections -- how many connections to open; no more than {@link #setMaxConnections(int)} allows
+     * @return completes once warmed up, or with the {@link FirebaseException} that stopped the warm-up
+     */
+    public CompletableFuture<Void> warmUp(int connections) {
+        return this.warmUp(connections, FirebasePath.ROOT);
+    }
+
+    /**
+     * @param path -- the path the check reads (shallowly), for databases whose rules don't allow reading the root
+     */
+    public CompletableFuture<Void> warmUp(int connections, FirebasePath path) {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        this.warmUp = result;
+        Thread thread = new Thread(() -> {
+            try {
+                this.warmUpNow(connections, path == null ? FirebasePath.ROOT : path);
+                result.complete(null);
+            } catch (Throwable t) {
+                result.completeExceptionally(t);
+            }
+        }, "firebase4j-warm-up");
+        thread.setDaemon(true);
+        thread.start();
+        return result;
+    }
+
+    /**
+     * For readiness probes.
+     *
+     * @return false while a warm-up is running, once it has failed (until another one succeeds), and once the
+     * client is closed; true otherwise
+     */
+    public boolean isReady() {
+        CompletableFuture<Void> warmUp = this.warmUp;
+        return !this.closed && warmUp.isDone() && !warmUp.isCompletedExceptionally();
+    }
+
+    /**
+     * Waits until the client is {@link #isReady() ready}.
+     *
+     * @return false if it wasn't ready in time, or can't get ready (the warm-up failed, or the client is closed)
+     */
+    public boolean awaitReady(long timeoutMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        CompletableFuture<Void> warmUp;
+        do {
+            warmUp = this.warmUp;
+            try {
+                warmUp.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (ExecutionException e) {
+                if (warmUp == this.warmUp) return false;
+            } catch (TimeoutException e) {
+                return false;
+            }
+        } while (warmUp != this.warmUp); // another warm-up was started meanwhile
+        return !this.closed;
+    }
+
+    /**
+     * A debugging aid: reports, as an error with the stack trace of where it was leased, every connection of the
+     * pool that is leased for longer than the threshold without being handed back (ie: a response that nobody
+     * closed). The connections of {@link RealtimeDatabase} streams are long-lived by design, and aren't reported.
+     * Each lease is reported once. Recording the stack trace of every lease is costly, so it is off by default.
+     *
+     * @param thresholdMillis -- how long a lease may be held; 0 turns detection off
+     */
+    public synchronized void setLeakDetection(long thresholdMillis) {
+        if (leakCheck != null) {
+            leakCheck.cancel(false);
+            leakCheck = null;
+        }
+        connectionManager.setTrackLeases(thresholdMillis > 0);
+        if (thresholdMillis > 0) {
+            long period = Math.max(100, thresholdMillis / 2);
+            leakCheck = DEADLINES.scheduleAtFixedRate(() -> connectionManager.reportLeaks(thresholdMillis),
+                    period, period, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public FirebaseMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Reports every request (and every stream event, for a {@link RealtimeDatabase}) of this client to the metrics.
+     *
+     * @param metrics -- null to stop reporting
+     */
+    public void setMetrics(FirebaseMetrics metrics) {
+        this.metrics = metrics == null ? FirebaseMetrics.NONE : metrics;
+    }
+
+    public FirebaseTracer getTracer() {
+        return tracer;
+    }
+
+    /**
+     * Hands a phase-by-phase trace of every request (and every stream event, for a {@link RealtimeDatabase}) of this
+     * client to the tracer.
+     *
+     * @param tracer -- null to stop tracing; while not tracing, no timestamps are taken
+     */
+    public void setTracer(FirebaseTracer tracer) {
+        this.tracer = tracer == null ? FirebaseTracer.NONE : tracer;
+    }
+
+    public boolean isCoalesceReads() {
+        return coalesceReads;
+    }
+
+    /**
+     * While on, concurrent GETs of the same url (path and query) share one request: the first caller sends it, the
+     * others wait for its response, and each gets a copy of it. Callers that arrive after the response don't share it.
+     * The shared calls are reported as {@link FirebaseMetrics#onRequestCoalesced}.
+     *
+     * @param coalesceReads -- true to coalesce; off by default
+     */
+    public void setCoalesceReads(boolean coalesceReads) {
+        this.coalesceReads = coalesceReads;
+    }
+
+    public boolean isCompactBodies() {
+        return compactBodies;
+    }
+
+    /**
+     * While on, response bodies are parsed into {@link CompactNode}s rather than hash maps, which takes a fraction of
+     * the heap for large responses that are kept around. Their children iterate in key order, not in the order the
+     * server sent them.
+     *
+     * @param compactBodies -- true to compact; off by default
+     */
+    public void setCompactBodies(boolean compactBodies) {
+        this.compactBodies = compactBodies;
+    }
+
+    public boolean isSilentWrites() {
+        return silentWrites;
+    }
+
+    /**
+     * While on, puts, patches and posts are sent with print=silent: the server doesn't echo the written data back,
+     * and answers with an empty 204, which counts as success. Their responses carry the status alone (an empty body),
+     * so a post doesn't return the name of the child it created. Unsuccessful writes still have their error body.
+     * A write can also be made silent on its own, with the query print=silent.
+     *
+     * @param silentWrites -- true for silent writes; off by default
+     */
+    public void setSilentWrites(boolean silentWrites) {
+        this.silentWrites = silentWrites;
+    }
+
+    public RateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    public RateLimiter.Priority getPriority() {
+        return priority;
+    }
+
+    /**
+     * Holds every request of this client back until the rate limiter allows it, as an interactive request. The time
+     * spent waiting is reported as {@link FirebaseMetrics#onRequestThrottled}, and is not part of the request's
+     * latency.
+     *
+     * @param rateLimiter -- may be shared with other clients; null to stop limiting
+     */
+    public void setRateLimiter(RateLimiter rateLimiter) {
+        this.setRateLimiter(rateLimiter, RateLimiter.Priority.INTERACTIVE);
+    }
+
+    /**
+     * @param priority -- of this client's requests, unless the calling thread overrides it (see
+     *                 {@link RateLimiter#setThreadPriority})
+     */
+    public void setRateLimiter(RateLimiter rateLimiter, RateLimiter.Priority priority) {
+        this.priority = priority == null ? RateLimiter.Priority.INTERACTIVE : priority;
+        this.rateLimiter = rateLimiter;
+    }
+
+    public long getRequestTimeout() {
+        return requestTimeout;
+    }
+
+    /**
+     * Bounds every request of this client (streams aside): one still waiting for a connection, connecting or
+     * receiving its response when the deadline comes is aborted, and fails with a {@link FirebaseException}.
+     *
+     * @param millis -- 0 (the default) for no deadline
+     */
+    public void setRequestTimeout(long millis) {
+        this.requestTimeout = Math.max(0, millis);
+    }
+
+    public int getMaxConnections() {
+        return connectionManager.getPool().getDefaultMaxPerRoute();
+    }
+
+    /**
+     * Sizes the connection pool. By default at most 2 requests (or streams, for a {@link RealtimeDatabase}) are in
+     * flight at a time and the others wait for a connection; raise it for concurrent callers.
+     *
+     * @param maxConnections -- the most connections kept open to the database
+     */
+    public void setMaxConnections(int maxConnections) {
+        PoolingHttpClientConnectionManager pool = connectionManager.getPool();
+        pool.setMaxTotal(Math.max(1, maxConnections));
+        pool.setDefaultMaxPerRoute(Math.max(1, maxConnections));
+    }
+
     public enum FirebaseRestMethod {
 
         GET,
@@ -658,8 +1505,46 @@ public class Firebase {
         POST,
         DELETE
     }
-}
 
+    /**
+     * Takes the children of a node fetched by {@link #parallelGetAt(FirebasePath, int, int, ChildVisitor)}, one at a
+     * time; throwing stops the fetch.
+     */
+    public interface ChildVisitor {
+        void visit(String key, Object value);
+    }
+
+    /**
+     * A GET in flight while reads are coalesced, and how many callers besides its sender wait for it.
+     */
+    private static class ReadFlight {
+        private final CompletableFuture<FirebaseResponse> response = new CompletableFuture<>();
+        private volatile int followers = 0;
+    }
 
+    /**
+     * Counts the bytes of a response-body as they are read.
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        private final RequestContext context;
 
+        private CountingInputStream(InputStream in, RequestContext context) {
+            super(in);
+            this.context = context;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) context.bytesIn++;
+            return b;
+        }
 
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) context.bytesIn += n;
+            return n;
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package net.thegreshams.firebase4j.service;
+
+import net.thegreshams.firebase4j.model.FirebaseResponse;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The response of a request sent with {@link Firebase#submit}. Cancelling it aborts the request: if it is still
+ * queued it is never sent, and if it is in flight its connection is shut down and its thread freed right away.
+ * It fails with a {@link net.thegreshams.firebase4j.error.FirebaseException} if the request does, or if it runs past
+ * its deadline.
+ */
+public final class FirebaseFuture extends CompletableFuture<FirebaseResponse> {
+
+    private final RequestControl control;
+
+    FirebaseFuture(RequestControl control) {
+        this.control = control;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        boolean cancelled = super.cancel(mayInterruptIfRunning);
+        if (cancelled) control.abort("cancelled");
+        return cancelled;
+    }
+
+}
@@ -0,0 +1,219 @@
+package net.thegreshams.firebase4j.service;
+
+import net.thegreshams.firebase4j.metrics.FirebaseMetrics;
+import net.thegreshams.firebase4j.metrics.RequestTrace;
+import org.apache.http.HttpClientConnection;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ConnectionRequest;
+import org.apache.http.conn.HttpClientConnectionManager;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.protocol.HttpContext;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Pooling connection manager of a {@link Firebase} (or of the shards of a {@link ShardedFirebase}) that reports how
+ * long each lease waited for a connection, and marks the lease and connect phases of traced requests. While leases
+ * are tracked, it also remembers where each open lease was taken, to report the ones never handed back.
+ */
+class InstrumentedConnectionManager implements HttpClientConnectionManager {
+
+    private static final Logger LOGGER = Logger.getRootLogger();
+    /**
+     * set on threads whose leases are held for as long as they run (ie: streams), which are then not leaks
+     */
+    private static final ThreadLocal<Boolean> LONG_LIVED = new ThreadLocal<>();
+
+    private final PoolingHttpClientConnectionManager pool;
+    private final Supplier<FirebaseMetrics> metrics;
+    private final ConcurrentHashMap<HttpClientConnection, Lease> leases = new ConcurrentHashMap<>();
+    private volatile boolean trackLeases = false;
+
+    InstrumentedConnectionManager(PoolingHttpClientConnectionManager pool, Supplier<FirebaseMetrics> metrics) {
+        this.pool = pool;
+        this.metrics = metrics;
+    }
+
+    PoolingHttpClientConnectionManager getPool() {
+        return pool;
+    }
+
+    /**
+     * Marks the leases the calling thread takes from now on as long-lived.
+     */
+    static void markLongLived() {
+        LONG_LIVED.set(Boolean.TRUE);
+    }
+
+    void setTrackLeases(boolean trackLeases) {
+        this.trackLeases = trackLeases;
+        if (!trackLeases) leases.clear();
+    }
+
+    /**
+     * Logs the leases held for longer than the threshold that weren't reported yet.
+     *
+     * @return how many were logged
+     */
+    int reportLeaks(long thresholdMillis) {
+        long now = System.nanoTime();
+        int reported = 0;
+        for (Lease lease : leases.values()) {
+            long heldMillis = TimeUnit.NANOSECONDS.toMillis(now - lease.leasedAt);
+            if (lease.longLived || lease.reported || heldMillis < thresholdMillis) continue;
+            lease.reported = true;
+            reported++;
+            LOGGER.error("connection leased " + heldMillis + "ms ago and not released yet (" + pool.getTotalStats()
+                    + "); leased at:", lease.leasedBy);
+        }
+        return reported;
+    }
+
+    /**
+     * Opens connections of the route ahead of the requests that will use them, all at once, and leaves them idle in
+     * the pool. Connections that are already open are checked, and replaced if they went stale.
+     *
+     * @param connections -- how many connections to have open; no more than the pool holds for the route
+     * @return how many connections are open
+     * @throws IOException the first failure to connect, if no connection could be opened
+     */
+    int warmUp(HttpRoute route, int connections, int connectTimeoutMillis) throws IOException, InterruptedException {
+        connections = Math.min(connections, pool.getMaxPerRoute(route));
+        List<HttpClientConnection> leased = new ArrayList<>();
+        try {
+            // all leased before any is handed back, so each of them is a connection of its own
+            for (int i = 0; i < connections; i++) {
+                try {
+                    leased.add(pool.requestConnection(route, null).get(connectTimeoutMillis, TimeUnit.MILLISECONDS));
+                } catch (ConnectionPoolTimeoutException | ExecutionException e) {
+                    break; // the rest are in use (ie: by streams), so they are open already
+                }
+            }
+            ExecutorService connecting = Executors.newFixedThreadPool(Math.max(1, leased.size()), r -> {
+                Thread thread = new Thread(r, "firebase4j-warm-up");
+                thread.setDaemon(true);
+                return thread;
+            });
+            List<Future<Boolean>> opened = new ArrayList<>();
+            for (HttpClientConnection conn : leased) {
+                opened.add(connecting.submit(() -> open(conn, route, connectTimeoutMillis)));
+            }
+            connecting.shutdown();
+            int open = 0;
+            IOException failure = null;
+            for (Future<Boolean> f : opened) {
+                try {
+                    if (f.get()) open++;
+                } catch (ExecutionException e) {
+                    if (failure == null) failure = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+                }
+            }
+            if (open == 0 && failure != null) throw failure;
+            return open;
+        } finally {
+            for (HttpClientConnection conn : leased) {
+                pool.releaseConnection(conn, null, 0, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    private boolean open(HttpClientConnection conn, HttpRoute route, int connectTimeoutMillis) throws IOException {
+        if (conn.isOpen() && !conn.isStale()) return true;
+        if (conn.isOpen()) conn.close();
+        HttpClientContext context = HttpClientContext.create();
+        pool.connect(conn, route, connectTimeoutMillis, context);
+        pool.routeComplete(conn, route, context);
+        // binds the socket's streams, which httpcore otherwise does on first use: until then the stale check that
+        // precedes a request fails on the connection
+        conn.flush();
+        return conn.isOpen();
+    }
+
+    @Override
+    public ConnectionRequest requestConnection(HttpRoute route, Object state) {
+        final ConnectionRequest request = pool.requestConnection(route, state);
+        final long requestedAt = System.nanoTime();
+        return new ConnectionRequest() {
+            @Override
+            public HttpClientConnection get(long timeout, TimeUnit tunit) throws InterruptedException, ExecutionException, ConnectionPoolTimeoutException {
+                HttpClientConnection connection = request.get(timeout, tunit);
+                metrics.get().onConnectionLeased(System.nanoTime() - requestedAt);
+                if (trackLeases) leases.put(connection, new Lease(LONG_LIVED.get() != null));
+                return connection;
+            }
+
+            @Override
+            public boolean cancel() {
+                return request.cancel();
+            }
+        };
+    }
+
+    @Override
+    public void releaseConnection(HttpClientConnection conn, Object newState, long validDuration, TimeUnit timeUnit) {
+        if (!leases.isEmpty()) leases.remove(conn);
+        pool.releaseConnection(conn, newState, validDuration, timeUnit);
+    }
+
+    @Override
+    public void connect(HttpClientConnection conn, HttpRoute route, int connectTimeout, HttpContext context) throws IOException {
+        RequestTrace trace = TracingRequestExecutor.traceOf(context);
+        if (trace == null) {
+            pool.connect(conn, route, connectTimeout, context);
+            return;
+        }
+        trace.end(RequestTrace.Phase.LEASE);
+        pool.connect(conn, route, connectTimeout, context);
+        trace.end(RequestTrace.Phase.CONNECT);
+    }
+
+    @Override
+    public void upgrade(HttpClientConnection conn, HttpRoute route, HttpContext context) throws IOException {
+        pool.upgrade(conn, route, context);
+    }
+
+    @Override
+    public void routeComplete(HttpClientConnection conn, HttpRoute route, HttpContext context) throws IOException {
+        pool.routeComplete(conn, route, context);
+    }
+
+    @Override
+    public void closeIdleConnections(long idletime, TimeUnit tunit) {
+        pool.closeIdleConnections(idletime, tunit);
+    }
+
+    @Override
+    public void closeExpiredConnections() {
+        pool.closeExpiredConnections();
+    }
+
+    @Override
+    public void shutdown() {
+        leases.clear();
+        pool.shutdown();
+    }
+
+    private static class Lease {
+        private final Throwable leasedBy = new Throwable("lease taken here");
+        private final long leasedAt = System.nanoTime();
+        private final boolean longLived;
+        private volatile boolean reported = false;
+
+        private Lease(boolean longLived) {
+            this.longLived = longLived;
+        }
+    }
+
+}
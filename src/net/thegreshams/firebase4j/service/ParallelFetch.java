@@ -0,0 +1,160 @@
+package net.thegreshams.firebase4j.service;
+
+import net.thegreshams.firebase4j.error.FirebaseException;
+import net.thegreshams.firebase4j.model.FirebasePath;
+import net.thegreshams.firebase4j.model.FirebaseQuery;
+import net.thegreshams.firebase4j.model.FirebaseResponse;
+import org.apache.log4j.Logger;
+import org.codehaus.jackson.map.ObjectMapper;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * One {@link Firebase#parallelGet}: lists the children of a node with a shallow GET, splits their keys into ranges and
+ * GETs the ranges (orderBy="$key" with startAt/endAt) on several connections at once. The ranges are handed to the
+ * visitor in key order, and at most 'parallelism' of them are fetched or held at a time, so the memory used doesn't
+ * grow with the node.
+ */
+final class ParallelFetch {
+
+    private static final Logger LOGGER = Logger.getRootLogger();
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+
+    ///////////////////////////////////////////////////////////////////////////////
+//
+// PROPERTIES & CONSTRUCTORS
+//
+///////////////////////////////////////////////////////////////////////////////
+    private final Firebase firebase;
+    private final FirebasePath path;
+    private final int rangeSize;
+    private final int parallelism;
+
+    ParallelFetch(Firebase firebase, FirebasePath path, int rangeSize, int parallelism) throws FirebaseException {
+        if (rangeSize < 1 || parallelism < 1) {
+            String msg = "rangeSize and parallelism must be at least 1; were: " + rangeSize + ", " + parallelism;
+            LOGGER.error(msg);
+            throw new FirebaseException(msg);
+        }
+        this.firebase = firebase;
+        this.path = path == null ? FirebasePath.ROOT : path;
+        this.rangeSize = rangeSize;
+        this.parallelism = parallelism;
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////
+//
+// PUBLIC API
+//
+///////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Fetches the node and hands every child to the visitor, on the calling thread.
+     *
+     * @return the shallow listing if the node has no children (ie: it is a leaf, or missing), otherwise a successful
+     * response with an empty body; or the first unsuccessful response, after which nothing more is visited
+     */
+    FirebaseResponse run(Firebase.ChildVisitor visitor) throws FirebaseException {
+        FirebaseResponse listing = firebase.getAt(path, Firebase.query("shallow", "true"));
+        if (!listing.getSuccess() || listing.getBody().isEmpty()) {
+            return listing;
+        }
+        List<String> keys = new ArrayList<>(listing.getBody().keySet());
+        keys.sort(FirebaseQuery::compareKeys);
+        LOGGER.info("fetching " + keys.size() + " children of '" + path + "' in ranges of " + rangeSize);
+
+        int ranges = (keys.size() + rangeSize - 1) / rangeSize;
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(parallelism, ranges), r -> {
+            Thread thread = new Thread(r, "firebase-parallel-get");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ArrayDeque<CompletableFuture<FirebaseResponse>> inFlight = new ArrayDeque<>();
+        try {
+            int next = 0;
+            while (next < ranges || !inFlight.isEmpty()) {
+                // keeps 'parallelism' ranges in flight, and takes them back in order
+                while (next < ranges && inFlight.size() < parallelism) {
+                    List<String> range = keys.subList(next * rangeSize, Math.min(keys.size(), (next + 1) * rangeSize));
+                    CompletableFuture<FirebaseResponse> fetched = new CompletableFuture<>();
+                    pool.execute(() -> {
+                        try {
+                            fetched.complete(fetch(range.get(0), range.get(range.size() - 1)));
+                        } catch (Throwable t) {
+                            fetched.completeExceptionally(t);
+                        }
+                    });
+                    inFlight.add(fetched);
+                    next++;
+                }
+                FirebaseResponse response = await(inFlight.poll());
+                if (!response.getSuccess()) {
+                    return response;
+                }
+                visit(response.getBody(), visitor);
+            }
+        } finally {
+            // interrupts the ranges still in flight, if a range failed or the visitor threw
+            pool.shutdownNow();
+        }
+        return new FirebaseResponse(true, 200, null, null);
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////
+//
+// PRIVATE API
+//
+///////////////////////////////////////////////////////////////////////////////
+
+    private FirebaseResponse fetch(String first, String last) throws FirebaseException {
+        try {
+            return firebase.getAt(path, Firebase.query("orderBy", "\"$key\""),
+                    Firebase.query("startAt", MAPPER.writeValueAsString(first)),
+                    Firebase.query("endAt", MAPPER.writeValueAsString(last)));
+        } catch (IOException e) {
+            String msg = "unable to encode key range: " + first + " - " + last;
+            LOGGER.error(msg);
+            throw new FirebaseException(msg, e);
+        }
+    }
+
+    private FirebaseResponse await(CompletableFuture<FirebaseResponse> range) throws FirebaseException {
+        try {
+            return range.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            String msg = "interrupted while fetching '" + path + "'";
+            LOGGER.error(msg);
+            throw new FirebaseException(msg, e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof FirebaseException) throw (FirebaseException) e.getCause();
+            String msg = "unable to fetch a range of '" + path + "'";
+            LOGGER.error(msg);
+            throw new FirebaseException(msg, e.getCause());
+        }
+    }
+
+    /**
+     * Visits the children of a range in key order; children added since the listing are visited too.
+     */
+    private static void visit(Map<String, Object> range, Firebase.ChildVisitor visitor) {
+        List<String> keys = new ArrayList<>(range.keySet());
+        if (keys.size() > 1) Collections.sort(keys, FirebaseQuery::compareKeys);
+        for (String key : keys) {
+            visitor.visit(key, range.get(key));
+        }
+    }
+
+}
@@ -0,0 +1,53 @@
+package net.thegreshams.firebase4j.service;
+
+import net.thegreshams.firebase4j.model.FirebasePath;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Puts paths on the shards they are explicitly mapped to: a path goes to the shard of its longest mapped prefix (ie:
+ * with '/logs' mapped to 'b', '/logs/2024/01' goes to 'b'), and paths under no mapped prefix go to the fallback.
+ */
+public final class PrefixSharding implements ShardingStrategy {
+
+
+    ///////////////////////////////////////////////////////////////////////////////
+//
+// PROPERTIES & CONSTRUCTORS
+//
+///////////////////////////////////////////////////////////////////////////////
+    private final Map<FirebasePath, String> mapping = new HashMap<>();
+    private final ShardingStrategy fallback;
+
+    /**
+     * @param mapping  -- path prefixes to the names of their shards
+     * @param fallback -- for the paths under no mapped prefix; null if there are none (paths are then not routed)
+     */
+    public PrefixSharding(Map<String, String> mapping, ShardingStrategy fallback) {
+        for (Map.Entry<String, String> e : mapping.entrySet()) {
+            this.mapping.put(FirebasePath.of(e.getKey()), e.getValue());
+        }
+        this.fallback = fallback;
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////
+//
+// PUBLIC API
+//
+///////////////////////////////////////////////////////////////////////////////
+
+    @Override
+    public String shardFor(FirebasePath path) {
+        for (FirebasePath p = path; p != null; p = p.parent()) {
+            String shard = mapping.get(p);
+            if (shard != null) return shard;
+        }
+        for (FirebasePath prefix : mapping.keySet()) {
+            if (path.contains(prefix)) return null; // part of the subtree is mapped elsewhere
+        }
+        return fallback != null ? fallback.shardFor(path) : null;
+    }
+
+}
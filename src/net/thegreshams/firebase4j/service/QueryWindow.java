@@ -0,0 +1,167 @@
+package net.thegreshams.firebase4j.service;
+
+import net.thegreshams.firebase4j.model.FirebasePath;
+import net.thegreshams.firebase4j.model.FirebaseQuery;
+import net.thegreshams.firebase4j.model.FirebaseResponse;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * The children a query stream of a {@link RealtimeDatabase} currently selects, kept apart from the cache: a query
+ * only sees part of the data at its path, so mirroring its events into the cache would pass that part off as the
+ * whole. The children are indexed by the query's order, so an event costs O(log n) and only the children within
+ * the query's bounds and limit are kept.
+ */
+final class QueryWindow {
+
+
+    ///////////////////////////////////////////////////////////////////////////////
+//
+// PROPERTIES & CONSTRUCTORS
+//
+///////////////////////////////////////////////////////////////////////////////
+    private final FirebaseQuery query;
+    private final HashMap<String, Object> children = new HashMap<>();
+    /**
+     * the keys of {@link #children}, in the query's order; a child is taken out before its value changes
+     */
+    private final TreeSet<String> order;
+    /**
+     * the data itself, when it isn't an object (then there are no children)
+     */
+    private Object leaf = null;
+
+    QueryWindow(FirebaseQuery query) {
+        this.query = query;
+        this.order = new TreeSet<>((a, b) -> query.compare(a, children.get(a), b, children.get(b)));
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////
+//
+// PUBLIC API
+//
+///////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Applies a 'put' or 'patch' stream event.
+     *
+     * @param path -- where the event applies, relative to the query's path
+     */
+    synchronized void apply(String event, FirebasePath path, Object data) {
+        if ("patch".equals(event) && data instanceof Map) {
+            for (Map.Entry<?, ?> e : ((Map<?, ?>) data).entrySet()) {
+                put(path.child(String.valueOf(e.getKey())), e.getValue());
+            }
+        } else {
+            put(path, data);
+        }
+    }
+
+    /**
+     * @return the selected children in the query's order, or the data itself if it isn't an object; null if there
+     * is none. The caller may keep it, since the window never changes the maps it hands out.
+     */
+    synchronized Object snapshot() {
+        if (leaf != null) return leaf;
+        if (order.isEmpty()) return null;
+        Map<String, Object> result = new LinkedHashMap<>(Math.max(16, (int) (order.size() / 0.75f) + 1));
+        for (String key : order) {
+            result.put(key, children.get(key));
+        }
+        return result;
+    }
+
+    synchronized int size() {
+        return order.size();
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////
+//
+// PRIVATE API
+//
+///////////////////////////////////////////////////////////////////////////////
+
+    private void put(FirebasePath path, Object data) {
+        if (path.isRoot()) {
+            clear();
+            if (data instanceof Map) {
+                for (Map.Entry<?, ?> e : ((Map<?, ?>) data).entrySet()) {
+                    putChild(String.valueOf(e.getKey()), e.getValue());
+                }
+            } else {
+                leaf = data;
+            }
+            return;
+        }
+        leaf = null;
+        String key = path.segments()[0];
+        if (path.depth() == 1) {
+            putChild(key, data);
+            return;
+        }
+        // a change deeper down; copied first, since snapshots already handed out share the child
+        Object child = FirebaseResponse.deepCopy(children.get(key));
+        Map<String, Object> node = child instanceof Map ? asMap(child) : new HashMap<>();
+        Map<String, Object> root = node;
+        String[] segments = path.segments();
+        for (int i = 1; i < segments.length - 1; i++) {
+            Object next = node.get(segments[i]);
+            if (!(next instanceof Map)) {
+                next = new HashMap<String, Object>();
+                node.put(segments[i], next);
+            }
+            node = asMap(next);
+        }
+        if (data == null) {
+            node.remove(segments[segments.length - 1]);
+        } else {
+            node.put(segments[segments.length - 1], data);
+        }
+        putChild(key, root.isEmpty() ? null : root);
+    }
+
+    private void putChild(String key, Object value) {
+        if (children.containsKey(key)) {
+            order.remove(key);
+            children.remove(key);
+        }
+        if (value == null || !query.matches(key, value)) return;
+        children.put(key, value);
+        order.add(key);
+        trim();
+    }
+
+    /**
+     * Drops the children past the query's limit. The server sends the children that enter the window in their
+     * place, so only those within it ever need to be kept.
+     */
+    private void trim() {
+        if (query.getLimitToFirst() > 0) {
+            while (order.size() > query.getLimitToFirst()) {
+                children.remove(order.pollLast());
+            }
+        }
+        if (query.getLimitToLast() > 0) {
+            while (order.size() > query.getLimitToLast()) {
+                children.remove(order.pollFirst());
+            }
+        }
+    }
+
+    private void clear() {
+        children.clear();
+        order.clear();
+        leaf = null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> asMap(Object value) {
+        return (Map<String, Object>) value;
+    }
+
+}
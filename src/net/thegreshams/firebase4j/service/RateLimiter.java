@@ -0,0 +1,291 @@
+package net.thegreshams.firebase4j.service;
+
+import net.thegreshams.firebase4j.error.FirebaseException;
+import net.thegreshams.firebase4j.model.FirebasePath;
+import org.apache.log4j.Logger;
+
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Token-bucket limits on the requests of one or more {@link Firebase} clients (see
+ * {@link Firebase#setRateLimiter(RateLimiter, Priority)}): one for all requests, one per method and one per path
+ * prefix, each allowing a rate and a burst. A request waits until every limit that applies to it has a permit.
+ * <p>
+ * {@link Priority#INTERACTIVE} requests take precedence over {@link Priority#BULK} ones: they reserve the next free
+ * permit and wait for it, while bulk requests only take permits when every limit has one free right away, and leave
+ * part of every burst to interactive requests. Once bulk traffic has used up its share, interactive requests are
+ * still sent at once, and bulk requests back off for as long as interactive traffic keeps the limit busy.
+ * <p>
+ * Buckets are a single atomic timestamp each (the generic cell rate algorithm), so taking a permit never locks.
+ * The limits are meant to be configured up front; changing them resets their buckets.
+ */
+public final class RateLimiter {
+
+    private static final Logger LOGGER = Logger.getRootLogger();
+    private static final ThreadLocal<Priority> THREAD_PRIORITY = new ThreadLocal<>();
+
+    public static final double DEFAULT_BULK_RESERVE = 0.25;
+
+
+    ///////////////////////////////////////////////////////////////////////////////
+//
+// PROPERTIES & CONSTRUCTORS
+//
+///////////////////////////////////////////////////////////////////////////////
+    // replaced as a whole on every change, so requests read them without locking
+    private volatile Bucket global = null;
+    private volatile Map<Firebase.FirebaseRestMethod, Bucket> byMethod = new EnumMap<>(Firebase.FirebaseRestMethod.class);
+    private volatile Map<FirebasePath, Bucket> byPath = new HashMap<>();
+    private volatile double bulkReserve = DEFAULT_BULK_RESERVE;
+
+
+    ///////////////////////////////////////////////////////////////////////////////
+//
+// PUBLIC API
+//
+///////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Limits all requests.
+     *
+     * @param permitsPerSecond -- the sustained rate; 0 removes the limit
+     * @param burst            -- how many requests may be sent at once after a quiet period
+     */
+    public synchronized void setLimit(double permitsPerSecond, int burst) {
+        global = newBucket(permitsPerSecond, burst);
+    }
+
+    /**
+     * Limits the requests of one method (ie: writes), on top of the other limits.
+     */
+    public synchronized void setLimit(Firebase.FirebaseRestMethod method, double permitsPerSecond, int burst) {
+        Map<Firebase.FirebaseRestMethod, Bucket> limits = new EnumMap<>(byMethod);
+        Bucket bucket = newBucket(permitsPerSecond, burst);
+        if (bucket == null) limits.remove(method);
+        else limits.put(method, bucket);
+        byMethod = limits;
+    }
+
+    /**
+     * Limits the requests to a path and everything below it, on top of the other limits (including the limits of
+     * the prefixes above it).
+     */
+    public synchronized void setLimit(String pathPrefix, double permitsPerSecond, int burst) {
+        Map<FirebasePath, Bucket> limits = new HashMap<>(byPath);
+        Bucket bucket = newBucket(permitsPerSecond, burst);
+        if (bucket == null) limits.remove(FirebasePath.of(pathPrefix));
+        else limits.put(FirebasePath.of(pathPrefix), bucket);
+        byPath = limits;
+    }
+
+    public double getBulkReserve() {
+        return bulkReserve;
+    }
+
+    /**
+     * @param bulkReserve -- the share of every burst that bulk requests leave to interactive ones, from 0 to 1;
+     *                    {@link #DEFAULT_BULK_RESERVE} by default
+     */
+    public void setBulkReserve(double bulkReserve) {
+        this.bulkReserve = Math.min(1, Math.max(0, bulkReserve));
+    }
+
+    /**
+     * Overrides the priority of the requests made by the calling thread, whatever client they go through; restore
+     * the previous one when done, ie: in a finally block.
+     *
+     * @param priority -- null to use the priorities of the clients again
+     * @return the previous override; null if there was none
+     */
+    public static Priority setThreadPriority(Priority priority) {
+        Priority previous = THREAD_PRIORITY.get();
+        if (priority == null) THREAD_PRIORITY.remove();
+        else THREAD_PRIORITY.set(priority);
+        return previous;
+    }
+
+    /**
+     * Waits until the request may be sent.
+     *
+     * @param priority -- the client's priority; the calling thread's override takes precedence
+     * @return how long it waited, in nanoseconds; 0 if it didn't
+     * @throws FirebaseException if interrupted while waiting
+     */
+    long acquire(Firebase.FirebaseRestMethod method, FirebasePath path, Priority priority) throws FirebaseException {
+        Priority override = THREAD_PRIORITY.get();
+        if (override != null) priority = override;
+        if (path == null) path = FirebasePath.ROOT;
+        Bucket[] buckets = bucketsFor(method, path);
+        if (buckets.length == 0) return 0;
+        long start = System.nanoTime();
+        boolean waited = false;
+        if (priority == Priority.BULK) {
+            // takes nothing until every bucket has a free permit, so a blocked bulk request holds no permits
+            double share = 1 - bulkReserve;
+            long[] seen = new long[buckets.length];
+            while (true) {
+                long now = System.nanoTime();
+                long wait = 0;
+                for (int i = 0; i < buckets.length; i++) {
+                    seen[i] = buckets[i].observe();
+                    wait = Math.max(wait, buckets[i].waitFor(seen[i], now, share));
+                }
+                if (wait > 0) {
+                    park(wait, method, path);
+                    waited = true;
+                } else if (takeAll(buckets, seen, now)) {
+                    break;
+                }
+            }
+        } else {
+            long now = System.nanoTime();
+            long wait = 0;
+            for (Bucket bucket : buckets) {
+                wait = Math.max(wait, bucket.reserve(now));
+            }
+            if (wait > 0) {
+                park(wait, method, path);
+                waited = true;
+            }
+        }
+        return waited ? System.nanoTime() - start : 0;
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////
+//
+// PRIVATE API
+//
+///////////////////////////////////////////////////////////////////////////////
+
+    private Bucket[] bucketsFor(Firebase.FirebaseRestMethod method, FirebasePath path) {
+        Bucket global = this.global;
+        Bucket forMethod = byMethod.get(method);
+        Map<FirebasePath, Bucket> byPath = this.byPath;
+        int count = (global != null ? 1 : 0) + (forMethod != null ? 1 : 0);
+        Bucket[] result = new Bucket[count + (byPath.isEmpty() ? 0 : path.depth() + 1)];
+        count = 0;
+        if (global != null) result[count++] = global;
+        if (forMethod != null) result[count++] = forMethod;
+        if (!byPath.isEmpty()) {
+            for (FirebasePath p = path; p != null; p = p.parent()) {
+                Bucket bucket = byPath.get(p);
+                if (bucket != null) result[count++] = bucket;
+            }
+        }
+        return count == result.length ? result : Arrays.copyOf(result, count);
+    }
+
+    /**
+     * Takes a permit from every bucket, provided none changed since it was observed.
+     *
+     * @return false if one did; the permits taken before it are given back
+     */
+    private static boolean takeAll(Bucket[] buckets, long[] seen, long now) {
+        for (int i = 0; i < buckets.length; i++) {
+            if (!buckets[i].take(seen[i], now)) {
+                while (--i >= 0) buckets[i].giveBack();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void park(long nanos, Firebase.FirebaseRestMethod method, FirebasePath path) throws FirebaseException {
+        long deadline = System.nanoTime() + nanos;
+        for (long left = nanos; left > 0; left = deadline - System.nanoTime()) {
+            LockSupport.parkNanos(left);
+            if (Thread.interrupted()) {
+                Thread.currentThread().interrupt();
+                String msg = "interrupted while rate limited: " + method + " " + path;
+                LOGGER.error(msg);
+                throw new FirebaseException(msg);
+            }
+        }
+    }
+
+    private static Bucket newBucket(double permitsPerSecond, int burst) {
+        if (permitsPerSecond <= 0) return null;
+        if (burst < 1) throw new IllegalArgumentException("burst must be at least 1; was: " + burst);
+        return new Bucket(permitsPerSecond, burst);
+    }
+
+    public enum Priority {
+        /**
+         * user-facing requests; they go first
+         */
+        INTERACTIVE,
+        /**
+         * background requests (ie: batch jobs); they use what interactive requests leave of the limits
+         */
+        BULK
+    }
+
+    /**
+     * A token bucket kept as the time at which it would be full again (the 'theoretical arrival time'): a permit is
+     * free while that time is less than a burst ahead of now, and taking one moves it an interval further.
+     */
+    private static final class Bucket {
+        private final long interval;
+        /**
+         * how far ahead of now the full time may be while permits are free; a burst minus one interval
+         */
+        private final long tolerance;
+        private final AtomicLong fullAt = new AtomicLong(Long.MIN_VALUE / 2);
+
+        private Bucket(double permitsPerSecond, int burst) {
+            this.interval = Math.max(1, (long) (1_000_000_000L / permitsPerSecond));
+            this.tolerance = (burst - 1) * interval;
+        }
+
+        /**
+         * Takes the next permit, free or not.
+         *
+         * @return how long to wait before using it
+         */
+        long reserve(long now) {
+            while (true) {
+                long current = fullAt.get();
+                long base = Math.max(current, now);
+                if (fullAt.compareAndSet(current, base + interval)) {
+                    return Math.max(0, base - tolerance - now);
+                }
+            }
+        }
+
+        long observe() {
+            return fullAt.get();
+        }
+
+        /**
+         * @param current -- the full time, as observed
+         * @return how long until a permit is free, leaving the part of the burst beyond the share; 0 if one is now
+         */
+        long waitFor(long current, long now, double share) {
+            long tolerance = (long) (this.tolerance * share);
+            return Math.max(0, Math.max(current, now) - tolerance - now);
+        }
+
+        /**
+         * Takes a permit, provided the full time is still the one observed.
+         *
+         * @return false if it changed in the meantime
+         */
+        boolean take(long current, long now) {
+            return fullAt.compareAndSet(current, Math.max(current, now) + interval);
+        }
+
+        /**
+         * Returns a permit taken by {@link #take(long, long)}.
+         */
+        void giveBack() {
+            fullAt.addAndGet(-interval);
+        }
+    }
+
+}
@@ -3,28 +3,71 @@ package net.thegreshams.firebase4j.service;
 import mou.com.promises.Promise;
 import mou.com.promises.PromiseError;
 import net.thegreshams.firebase4j.error.FirebaseException;
+import net.thegreshams.firebase4j.metrics.FirebaseTracer;
+import net.thegreshams.firebase4j.metrics.StreamEventTrace;
+import net.thegreshams.firebase4j.model.CompactNode;
+import net.thegreshams.firebase4j.model.FirebasePath;
+import net.thegreshams.firebase4j.model.FirebaseQuery;
+import net.thegreshams.firebase4j.model.FirebaseResponse;
 import org.apache.http.HttpEntity;
 import org.apache.http.NameValuePair;
 import org.apache.http.StatusLine;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
-import org.apache.http.util.EntityUtils;
+import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.log4j.Logger;
 import org.codehaus.jackson.map.ObjectMapper;
 import org.codehaus.jackson.type.TypeReference;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.URI;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 public class RealtimeDatabase extends Firebase {
 
     private static final Logger LOGGER = Logger.getRootLogger();
+    /**
+     * key under which {@link #cache} holds the root of the mirrored tree
+     */
+    private static final String ROOT_KEY = "";
+    private static final ObjectMapper EVENT_MAPPER = new ObjectMapper();
+    private static final TypeReference<HashMap<String, Object>> EVENT_TYPE = new TypeReference<>() {
+    };
     private final HashMap<String, Object> cache = new HashMap<>();
     private final ArrayList<RealtimeDatabaseConnection> connections = new ArrayList<>();
+    private CachePersistence persistence = null;
+    /**
+     * subtrees nobody listens to any more, least recently used first; only kept around while there is a budget
+     */
+    private final LinkedHashMap<FirebasePath, Boolean> coldPaths = new LinkedHashMap<>(16, 0.75f, true);
+    private long cacheBytes = 0;
+    private long cacheBudget = 0;
+    private volatile boolean readsFromCache = true;
+    private boolean compactCache = false;
+    private volatile long conflationInterval = -1;
+    private volatile long minPollInterval = 0;
+    private volatile long maxPollInterval = 0;
+    /**
+     * times conflated deliveries; created with the first conflated listener
+     */
+    private ScheduledExecutorService conflationTimer = null;
+
     public RealtimeDatabase(String baseUrl, int threadPoolSize) throws FirebaseException {
         super(baseUrl, threadPoolSize);
     }
@@ -38,157 +81,916 @@ public class RealtimeDatabase extends Firebase {
     }
 
     public void shutdown() {
-        connections.forEach(RealtimeDatabaseConnection::disconnect);
-        executor.shutdown();
+        disconnectAll();
+        if (executor != null) executor.shutdown();
+        closeCache();
+    }
+
+    /**
+     * Disconnects every listener, then closes the client as {@link Firebase#close(long)} does, and finally the
+     * cache and its persistence (once the writes in flight, which update the cache, are done).
+     */
+    @Override
+    public void close(long drainMillis) {
+        disconnectAll();
+        super.close(drainMillis);
+        closeCache();
+    }
+
+    /**
+     * Ready once warmed up (see {@link Firebase#warmUp(int)}) and every listener has its initial data: listeners
+     * registered before a readiness probe are started at once, each on a stream of its own, and the probe waits for
+     * all of them.
+     */
+    @Override
+    public boolean isReady() {
+        if (!super.isReady()) return false;
+        synchronized (this) {
+            for (RealtimeDatabaseConnection con : connections) {
+                if (con.isOnline() && !con.isSynced()) return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Waits for the warm-up as {@link Firebase#awaitReady(long)} does, then for each listener's initial data.
+     */
+    @Override
+    public boolean awaitReady(long timeoutMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        if (!super.awaitReady(timeoutMillis)) return false;
+        while (true) {
+            RealtimeDatabaseConnection unsynced = null;
+            synchronized (this) {
+                for (RealtimeDatabaseConnection con : connections) {
+                    if (con.isOnline() && !con.isSynced()) {
+                        unsynced = con;
+                        break;
+                    }
+                }
+            }
+            if (unsynced == null) return this.isReady();
+            if (!unsynced.awaitSettled(deadline - System.nanoTime())) return false;
+        }
+    }
+
+    @Override
+    void warmUpNow(int connections, FirebasePath path) throws FirebaseException {
+        super.warmUpNow(connections, path);
+        try {
+            parseEventData("{\"path\":\"/\",\"data\":{\"a\":[1,1.5,true,\"s\",null]}}");
+        } catch (IOException e) {
+            String msg = "unable to warm up the event codec";
+            LOGGER.error(msg);
+            throw new FirebaseException(msg, e);
+        }
+    }
+
+    /**
+     * Disconnects every listener registered on the path. Once nothing listens to the path's subtree any more it is
+     * released from the cache; if a cache budget is set it is kept until it has to be evicted instead.
+     *
+     * @param path -- the path the listeners were registered with
+     */
+    public void off(String path) {
+        offAt(FirebasePath.of(path));
+    }
+
+    public synchronized void offAt(FirebasePath path) {
+        for (RealtimeDatabaseConnection con : new ArrayList<>(connections)) {
+            if (con.getPath().equals(path)) {
+                con.disconnect();
+                release(con);
+            }
+        }
+    }
+
+    /**
+     * Bounds the memory held by the cache. Subtrees nobody listens to any more are kept while the cache is within
+     * the budget, and evicted least recently used first when it is not. Subtrees that are being listened to are
+     * never evicted, so the cache can exceed the budget if the listened-to data alone does.
+     *
+     * @param bytes -- the budget, as estimated by {@link #getCacheSize()}; 0 (the default) releases subtrees as soon
+     *              as nobody listens to them
+     */
+    public synchronized void setCacheBudget(long bytes) {
+        this.cacheBudget = Math.max(0, bytes);
+        if (cacheBudget == 0) {
+            for (FirebasePath path : new ArrayList<>(coldPaths.keySet())) {
+                evict(path);
+            }
+        } else {
+            evictIfNeeded();
+        }
+    }
+
+    /**
+     * @return the estimated heap footprint of the whole cache, in bytes
+     */
+    public synchronized long getCacheSize() {
+        return cacheBytes;
+    }
+
+    /**
+     * @return the estimated heap footprint of the cached subtree at the path, in bytes
+     */
+    public synchronized long getCacheSize(String path) {
+        return estimateSize(getCachedValue(FirebasePath.of(path)));
+    }
+
+    public synchronized boolean isCompactCache() {
+        return compactCache;
+    }
+
+    /**
+     * Holds the cached data as {@link CompactNode}s rather than as parsed maps, which takes a fraction of the heap
+     * for large trees at the cost of slower writes to nodes with many children. Data already in the cache is
+     * converted (or converted back) right away. The data {@link #onValue} listeners get is then made of CompactNodes
+     * too (which are maps).
+     *
+     * @param compactCache -- true to compact; off by default
+     */
+    public synchronized void setCompactCache(boolean compactCache) {
+        if (this.compactCache == compactCache) return;
+        this.compactCache = compactCache;
+        cache.replaceAll((key, value) -> compactCache ? CompactNode.compact(value) : FirebaseResponse.deepCopy(value));
+        cacheBytes = 0;
+        for (Map.Entry<String, Object> e : cache.entrySet()) {
+            cacheBytes += entrySize(cache, e.getKey(), e.getValue());
+        }
+    }
+
+    /**
+     * Keeps the cache on disk (see {@link CachePersistence}) and restores whatever was persisted there by a
+     * previous run. Listeners registered afterwards are resolved with the restored data right away and are then
+     * reconciled by the initial event of their stream.
+     *
+     * @param directory -- where the snapshot and journal are kept
+     * @throws FirebaseException if the persisted cache cannot be read
+     */
+    public synchronized void enablePersistence(File directory) throws FirebaseException {
+        enablePersistence(new CachePersistence(directory));
+    }
+
+    public synchronized void enablePersistence(CachePersistence persistence) throws FirebaseException {
+        if (this.persistence != null) {
+            String msg = "persistence is already enabled";
+            LOGGER.error(msg);
+            throw new FirebaseException(msg);
+        }
+        persistence.load(this::restoreCache, (path, data) -> applyToCache(FirebasePath.of(path), data));
+        this.persistence = persistence;
+        evictIfNeeded();
+    }
+
+    /**
+     * GETs data from the provided-path relative to the base-url. If the path is being listened to (without queries)
+     * and its stream has received the initial snapshot, the data is read from the cache instead, without a request;
+     * {@link FirebaseResponse#isFromCache()} and {@link FirebaseResponse#getAsOf()} tell such responses apart.
+     *
+     * @param path -- if null/empty, refers to the base-url
+     * @return {@link FirebaseResponse}
+     * @throws {@link FirebaseException}
+     */
+    @Override
+    public FirebaseResponse getAt(FirebasePath path, NameValuePair... queries) throws FirebaseException {
+        if (readsFromCache && (queries == null || queries.length == 0)) {
+            FirebaseResponse cached = readFromCache(path);
+            if (cached != null) return cached;
+        }
+        return super.getAt(path, queries);
+    }
+
+    public boolean isReadsFromCache() {
+        return readsFromCache;
+    }
+
+    /**
+     * @param readsFromCache -- false to always request {@link #get} from the server; true by default
+     */
+    public void setReadsFromCache(boolean readsFromCache) {
+        this.readsFromCache = readsFromCache;
     }
 
     public Promise<Object> onValue(String path, int bufferSize, NameValuePair... queries) {
+        return onValueAt(FirebasePath.of(path), bufferSize, queries);
+    }
+
+    public Promise<Object> onValueAt(FirebasePath path, int bufferSize, NameValuePair... queries) {
+        RealtimeDatabaseConnection con = connect(path, queries);
+        long conflation = conflationInterval;
+        return new Promise<>((resolve, errorHandler) -> {
+            StreamListener listener = new StreamListener() {
+                @Override
+                public void onChange() {
+                    // a conflated listener runs alongside the stream, so it must not get the cached maps themselves
+                    resolve.run(conflation < 0 ? getData(con) : snapshot(con));
+                }
+
+                @Override
+                public void onError(ErrorCode code) {
+                    errorHandler.handle(new PromiseError(code));
+                }
+            };
+            if (conflation >= 0) {
+                listener = new ConflatingListener(listener, conflation, conflationTimer(), deliveryExecutor());
+            }
+            stream(con, bufferSize, listener);
+        });
+    }
+
+    public long getConflationInterval() {
+        return conflationInterval;
+    }
+
+    /**
+     * Conflates the events of listeners registered from now on: every event still updates the cache, but a listener
+     * is called at most once per interval, and never while its previous call is still running, always with the latest
+     * data. Listeners are then called on the thread pool of this database (or the common pool if it has none) with a
+     * copy of the data, rather than on their stream's thread with the cached data itself.
+     *
+     * @param millis -- the least time between two calls of a listener; 0 calls it as soon as its previous call has
+     *               returned, and a negative interval (the default) turns conflation off
+     */
+    public void setConflationInterval(long millis) {
+        this.conflationInterval = millis;
+    }
+
+    public boolean isPolling() {
+        return minPollInterval > 0;
+    }
+
+    /**
+     * Makes the listeners registered from now on poll their path instead of streaming it, for networks where
+     * event streams don't get through (ie: proxies that cut text/event-stream connections). Listeners see the same
+     * changes, only later.
+     * <p>
+     * Polls are conditional GETs: the server answers 304, without a body, while the data's ETag stays the same. When
+     * it changes, the new data is compared with the cached data and only the subtrees that differ are written to the
+     * cache, so a listener is only called when something changed. The interval doubles with every poll that finds
+     * nothing new, up to the maximum, and drops back to the minimum once something changes. Queries have no ETag, so
+     * they are fetched in full every time, and compared with the data they selected before. Polls are sent like any
+     * other request: they keep to the request timeout and the rate limiter, and are counted by the metrics.
+     *
+     * @param minIntervalMillis -- the time between polls while the data is changing; 0 (the default) streams instead
+     * @param maxIntervalMillis -- the time between polls once the data is idle; at least the minimum
+     */
+    public void setPolling(long minIntervalMillis, long maxIntervalMillis) {
+        this.maxPollInterval = Math.max(minIntervalMillis, maxIntervalMillis);
+        this.minPollInterval = Math.max(0, minIntervalMillis);
+    }
+
+    private synchronized RealtimeDatabaseConnection connect(FirebasePath path, NameValuePair[] queries) {
         var con = new RealtimeDatabaseConnection(path, queries);
         connections.add(con);
-        return new Promise<>((resolve, errorHandler) -> {
-            new Thread(() -> {
-                String url = buildFullUrlFromRelativePath(path, queries);
+        if (con.getWindow() == null) {
+            // whatever was cold below the path is listened to again
+            coldPaths.keySet().removeIf(path::contains);
+        }
+        return con;
+    }
+
+    /**
+     * Streams the connection's path on a thread of its own, applying every event to the cache and telling the
+     * listener, until the connection is disconnected or the stream fails.
+     */
+    private void stream(RealtimeDatabaseConnection con, int bufferSize, StreamListener listener) {
+        if (minPollInterval > 0) {
+            poll(con, listener, minPollInterval, maxPollInterval);
+            return;
+        }
+        FirebasePath path = con.getPath();
+        NameValuePair[] queries = con.getQueries();
+        new Thread(() -> {
+            InstrumentedConnectionManager.markLongLived();
+            Consumer<ErrorCode> fail = code -> {
+                getMetrics().onStreamError(path, code);
+                listener.onError(code);
+            };
+            try {
+                if (persistence != null && con.getWindow() == null) {
+                    // serve the restored data while the stream catches up
+                    Object restored = getFromCache(path);
+                    if (restored != null && !(restored instanceof Map && ((Map<?, ?>) restored).isEmpty())) {
+                        listener.onChange();
+                    }
+                }
+                String url = buildFullUrl(path, queries);
                 HttpGet httpget = new HttpGet(url);
                 httpget.setHeader("accept", "text/event-stream");
+                con.setRequest(httpget);
                 CloseableHttpResponse response;
                 try {
                     response = client.execute(httpget);
                     LOGGER.info("Start streaming:" + url);
                 } catch (IOException e) {
-                    e.printStackTrace();
-                    LOGGER.error("Couldn't make the request!");
-                    errorHandler.handle(new PromiseError(ErrorCode.UNKNOWN));
+                    if (!con.isOnline()) return; // disconnected while connecting
+                    LOGGER.error("Couldn't make the request!", e);
+                    fail.accept(ErrorCode.UNKNOWN);
                     return;
                 }
-                StatusLine statusLine = response.getStatusLine();
-                HttpEntity entity = response.getEntity();
-                if (statusLine.getStatusCode() >= 300) {
-                    LOGGER.error(statusLine.getStatusCode() + " " + statusLine.getReasonPhrase());
-                    switch (statusLine.getStatusCode()) {
-                        case 401:
-                            errorHandler.handle(new PromiseError(ErrorCode.PERMISSION_DENIED));
+                try {
+                    StatusLine statusLine = response.getStatusLine();
+                    HttpEntity entity = response.getEntity();
+                    if (statusLine.getStatusCode() >= 300) {
+                        LOGGER.error(statusLine.getStatusCode() + " " + statusLine.getReasonPhrase());
+                        switch (statusLine.getStatusCode()) {
+                            case 401:
+                                fail.accept(ErrorCode.PERMISSION_DENIED);
+                                break;
+                            default:
+                                fail.accept(ErrorCode.UNKNOWN);
+                                break;
+                        }
+                        return;
+                    }
+                    if (entity == null) {
+                        LOGGER.error("Response contains no content");
+                        fail.accept(ErrorCode.UNKNOWN);
+                        return;
+                    }
+                    if (!entity.isStreaming()) {
+                        LOGGER.error("The entity isn't streaming!");
+                        fail.accept(ErrorCode.UNKNOWN);
+                        return;
+                    }
+                    final byte[] buffer = new byte[bufferSize];
+                    while (con.isOnline()) {
+                        int bytesLength;
+                        InputStream stream;
+                        try {
+                            stream = entity.getContent();
+                            bytesLength = stream.read(buffer);
+                        } catch (IOException e) {
+                            if (!con.isOnline()) break; // disconnected, which aborts the read
+                            LOGGER.error("Exception thrown while reading the stream", e);
+                            fail.accept(ErrorCode.UNKNOWN);
                             break;
-                        default:
-                            errorHandler.handle(new PromiseError(ErrorCode.UNKNOWN));
+                        }
+                        if (bytesLength > 0) {
+
+                            long receivedAt = System.nanoTime();
+                            String[] decoded = decodeEvent(buffer, bytesLength);
+                            String event = decoded[0];
+
+                            if ("put".equals(event) || "patch".equals(event)) {
+                                String jsonData = decoded[1];
+                                try {
+                                    FirebaseTracer tracer = getTracer();
+                                    Map<String, Object> data = parseEventData(jsonData);
+                                    long parsedAt = tracer == FirebaseTracer.NONE ? 0 : System.nanoTime();
+                                    if (!con.isOnline()) break;
+                                    // update cache
+                                    if (con.getWindow() != null) {
+                                        con.getWindow().apply(event, FirebasePath.of((String) data.get("path")), data.get("data"));
+                                    } else {
+                                        applyEvent(event, path.child((String) data.get("path")), data.get("data"));
+                                    }
+                                    // a put at the root of the stream is a whole snapshot, the first event being one
+                                    con.heardFromServer("put".equals(event) && "/".equals(data.get("path")));
+                                    long dispatchedAt = System.nanoTime();
+                                    listener.onChange();
+                                    long deliveredAt = System.nanoTime();
+                                    getMetrics().onStreamEvent(path, event, bytesLength, dispatchedAt - receivedAt, deliveredAt - dispatchedAt);
+                                    if (tracer != FirebaseTracer.NONE) {
+                                        tracer.onStreamEvent(new StreamEventTrace(path, event, bytesLength, receivedAt, parsedAt, dispatchedAt, deliveredAt));
+                                    }
+                                } catch (IOException e) {
+                                    LOGGER.error("Exception thrown while parsing json data", e);
+                                    fail.accept(ErrorCode.UNKNOWN);
+                                    break;
+                                }
+                            } else if ("keep-alive".equals(event)) {
+                                con.heardFromServer(false);
+                            } else if ("auth_revoked".equals(event)) {
+                                LOGGER.error("Authentication revoked!");
+                                fail.accept(ErrorCode.AUTH_REVOKED);
+                                break;
+                            } else if ("cancel".equals(event)) {
+                                LOGGER.error("Streaming canceled!");
+                                fail.accept(ErrorCode.CANCELED_BY_END_POINT);
+                                break;
+                            }
+
+                        } else {
+                            // end of stream
+                            LOGGER.error("Stream ended!");
+                            fail.accept(ErrorCode.STREAM_ENDED_UNEXPECTEDLY);
                             break;
+                        }
                     }
-                    return;
-                }
-                if (entity == null) {
-                    LOGGER.error("Response contains no content");
-                    errorHandler.handle(new PromiseError(ErrorCode.UNKNOWN));
-                    return;
-                }
-                if (!entity.isStreaming()) {
+                } finally {
                     try {
-                        EntityUtils.consume(entity);
+                        // not consumed: the rest of an event stream is never coming, and on the error paths the
+                        // body doesn't matter; closing shuts the connection down and hands its lease back
+                        response.close();
                     } catch (IOException e) {
-                        LOGGER.error("Exception thrown while consuming the HttpEntity");
-                        e.printStackTrace();
+                        LOGGER.error("Exception thrown while closing the response", e);
                     }
-                    LOGGER.error("The entity isn't streaming!");
-                    errorHandler.handle(new PromiseError(ErrorCode.UNKNOWN));
+                }
+            } finally {
+                release(con);
+                listener.onClosed();
+            }
+        }).start();
+    }
+
+    /**
+     * Polls the connection's path on a thread of its own, as {@link #setPolling(long, long)} describes, until the
+     * connection is disconnected or a poll fails.
+     */
+    private void poll(RealtimeDatabaseConnection con, StreamListener listener, long minInterval, long maxInterval) {
+        FirebasePath path = con.getPath();
+        QueryWindow window = con.getWindow();
+        new Thread(() -> {
+            Consumer<ErrorCode> fail = code -> {
+                getMetrics().onStreamError(path, code);
+                listener.onError(code);
+            };
+            try {
+                URI uri;
+                try {
+                    uri = toUri(buildFullUrl(path, con.getQueries()));
+                } catch (FirebaseException e) {
+                    fail.accept(ErrorCode.UNKNOWN);
                     return;
                 }
-                final byte[] buffer = new byte[bufferSize];
-                final ObjectMapper mapper = new ObjectMapper();
-                final TypeReference<HashMap<String, Object>> typeRef = new TypeReference<>() {
-                };
+                String etag = null;
+                long interval = minInterval;
+                boolean first = true;
                 while (con.isOnline()) {
-                    int bytesLength;
-                    InputStream stream;
+                    RequestControl control = new RequestControl(getRequestTimeout());
+                    if (window == null) control.conditional(etag);
+                    con.setRequest(control);
+                    FirebaseResponse response;
                     try {
-                        stream = entity.getContent();
-                        bytesLength = stream.read(buffer);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                        LOGGER.error("Exception thrown while reading the stream");
-                        errorHandler.handle(new PromiseError(ErrorCode.UNKNOWN));
-                        break;
+                        response = send(FirebaseRestMethod.GET, path, uri, null, control);
+                    } catch (FirebaseException e) {
+                        if (!con.isOnline()) return; // disconnected, which aborts the request
+                        LOGGER.error("Exception thrown while polling " + path, e);
+                        fail.accept(ErrorCode.UNKNOWN);
+                        return;
                     }
-                    if (bytesLength > 0) {
-
-                        String[] rawResponse = new String(Arrays.copyOf(buffer, bytesLength)).split("\n");
-                        String event = rawResponse[0].substring(7); // after 'event: '
-
-                        if ("put".equals(event) || "patch".equals(event)) {
-                            String jsonData = rawResponse[1].substring(6); // after 'data: '
-                            try {
-                                Map<String, Object> data = mapper.readValue(jsonData, typeRef);
-                                // update cache
-                                putToCache(path + data.get("path"), data.get("data"));
-                                //LOGGER.debug("Updated cache = " + mapper.writerWithDefaultPrettyPrinter().writeValueAsString(cache));
-                                resolve.run(getFromCache(path));
-                            } catch (IOException e) {
-                                e.printStackTrace();
-                                LOGGER.error("Exception thrown while parsing json data");
-                                errorHandler.handle(new PromiseError(ErrorCode.UNKNOWN));
-                                break;
-                            }
-                        } else if ("auth_revoked".equals(event)) {
-                            LOGGER.error("Authentication revoked!");
-                            errorHandler.handle(new PromiseError(ErrorCode.AUTH_REVOKED));
-                            break;
-                        } else if ("cancel".equals(event)) {
-                            LOGGER.error("Streaming canceled!");
-                            errorHandler.handle(new PromiseError(ErrorCode.CANCELED_BY_END_POINT));
-                            break;
+                    long receivedAt = System.nanoTime();
+                    if (response.getCode() == 304) {
+                        con.heardFromServer(false);
+                        interval = Math.min(maxInterval, interval * 2);
+                        sleepWhileOnline(con, interval);
+                        continue;
+                    }
+                    if (!response.getSuccess()) {
+                        LOGGER.error("polling " + path + " failed with " + response.getCode() + ": " + response.getRawBody());
+                        fail.accept(response.getCode() == 401 ? ErrorCode.PERMISSION_DENIED : ErrorCode.UNKNOWN);
+                        return;
+                    }
+                    etag = control.getETag();
+                    String body = response.getRawBody();
+                    boolean changed;
+                    try {
+                        // objects were parsed already; anything else came back as an empty body
+                        Object data = body.startsWith("{") ? response.getBody()
+                                : EVENT_MAPPER.readValue(body.isEmpty() ? "null" : body, Object.class);
+                        if (!con.isOnline()) return;
+                        if (window != null) {
+                            changed = !Objects.equals(window.snapshot(), data);
+                            if (changed) window.apply("put", FirebasePath.ROOT, data);
+                        } else {
+                            changed = applyDiff(path, data);
                         }
-
+                    } catch (IOException e) {
+                        LOGGER.error("Exception thrown while parsing json data", e);
+                        fail.accept(ErrorCode.UNKNOWN);
+                        return;
+                    }
+                    con.heardFromServer(true);
+                    // the first poll is the initial snapshot, which is always delivered, as a stream's first put is
+                    if (changed || first) {
+                        long dispatchedAt = System.nanoTime();
+                        listener.onChange();
+                        getMetrics().onStreamEvent(path, "put", body.length(), dispatchedAt - receivedAt, System.nanoTime() - dispatchedAt);
+                        interval = minInterval;
                     } else {
-                        // end of stream
-                        LOGGER.error("Stream ended!");
-                        errorHandler.handle(new PromiseError(ErrorCode.STREAM_ENDED_UNEXPECTEDLY));
-                        break;
+                        interval = Math.min(maxInterval, interval * 2);
                     }
+                    first = false;
+                    sleepWhileOnline(con, interval);
                 }
-                try {
-                    EntityUtils.consume(entity);
-                } catch (IOException e) {
-                    e.printStackTrace();
-                    LOGGER.error("Exception thrown while consuming the HttpEntity");
-                }
-            }).start();
-        });
+            } finally {
+                release(con);
+                listener.onClosed();
+            }
+        }, "firebase4j-poll " + path).start();
+    }
+
+    /**
+     * Sleeps in short steps, so that a disconnected poller stops soon after.
+     */
+    private static void sleepWhileOnline(RealtimeDatabaseConnection con, long millis) {
+        long deadline = System.currentTimeMillis() + millis;
+        for (long left = millis; left > 0 && con.isOnline(); left = deadline - System.currentTimeMillis()) {
+            try {
+                Thread.sleep(Math.min(left, 50));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                con.disconnect();
+            }
+        }
+    }
+
+    /**
+     * Publishes the data at the path each time it changes, as {@link #onValue} does, but only as fast as the
+     * subscriber asks for it. Every subscriber gets a stream of its own, and gets copies of the data that it is free
+     * to keep and modify; no data (null) is published as an empty map. Delivery runs on the thread pool of this
+     * database, or on the common pool if it has none, so a slow subscriber never holds up the stream; what happens
+     * when changes come faster than the subscriber requests them is up to the overflow strategy. The stream stops
+     * when the subscription is cancelled, and completes the subscription when it is turned {@link #off}.
+     *
+     * @param overflow -- what to do with changes the subscriber hasn't requested yet
+     * @param capacity -- how many changes are kept for the subscriber (with {@link OverflowStrategy#BUFFER} and
+     *                 {@link OverflowStrategy#DROP}); {@link OverflowStrategy#LATEST} only ever keeps the last one
+     */
+    public Flow.Publisher<Object> publish(String path, OverflowStrategy overflow, int capacity, NameValuePair... queries) {
+        return publishAt(FirebasePath.of(path), overflow, capacity, queries);
+    }
+
+    public Flow.Publisher<Object> publishAt(FirebasePath path, OverflowStrategy overflow, int capacity, NameValuePair... queries) {
+        return publishAt(path, overflow, capacity, deliveryExecutor(), queries);
+    }
+
+    /**
+     * @param delivery -- runs the subscriber's callbacks; see {@link #publish(String, OverflowStrategy, int, NameValuePair...)}
+     */
+    public Flow.Publisher<Object> publishAt(FirebasePath path, OverflowStrategy overflow, int capacity, Executor delivery, NameValuePair... queries) {
+        if (overflow == null) throw new IllegalArgumentException("overflow strategy cannot be null");
+        if (capacity <= 0) throw new IllegalArgumentException("capacity must be positive; was: " + capacity);
+        if (delivery == null) throw new IllegalArgumentException("delivery executor cannot be null");
+        return subscriber -> {
+            RealtimeSubscription subscription = new RealtimeSubscription(this, path, overflow, capacity, delivery, subscriber);
+            subscriber.onSubscribe(subscription);
+            RealtimeDatabaseConnection con = connect(path, queries);
+            subscription.attach(con);
+            stream(con, 2048, subscription);
+        };
     }
 
     public Promise<Object> onValue(String path, NameValuePair... queries) {
         return onValue(path, 2048, queries);
     }
 
-    private Object getFromCache(String path) {
-        var current = cache;
-        var keys = path.split("/");
-        for (int i = 0; i < keys.length - 1; i++) {
-            String key = keys[i];
-            if (current.containsKey(key)) {
-                current = (HashMap<String, Object>) current.get(key);
-            } else {
-                return new HashMap<String, Object>();
+    public Promise<Object> onValueAt(FirebasePath path, NameValuePair... queries) {
+        return onValueAt(path, 2048, queries);
+    }
+
+    /**
+     * Splits a server-sent event, as read off the stream, into its name and the payload of its data line.
+     *
+     * @return the event name and its data; the data is null if the event has no data line
+     */
+    static String[] decodeEvent(byte[] buffer, int length) {
+        String[] rawResponse = new String(buffer, 0, length).split("\n");
+        String event = rawResponse[0].substring(7); // after 'event: '
+        String data = rawResponse.length > 1 && rawResponse[1].startsWith("data: ") ? rawResponse[1].substring(6) : null;
+        return new String[]{event, data};
+    }
+
+    /**
+     * Parses the data of a put/patch event, ie: {"path": "/a", "data": {...}}.
+     */
+    static Map<String, Object> parseEventData(String jsonData) throws IOException {
+        return EVENT_MAPPER.readValue(jsonData, EVENT_TYPE);
+    }
+
+    /**
+     * Applies a 'put' or 'patch' stream event: a put replaces the data at the path, a patch replaces each of the
+     * children it lists and leaves the others alone.
+     */
+    synchronized void applyEvent(String event, FirebasePath path, Object data) {
+        if ("patch".equals(event) && data instanceof Map) {
+            for (Map.Entry<?, ?> e : ((Map<?, ?>) data).entrySet()) {
+                putToCache(path.child(String.valueOf(e.getKey())), e.getValue());
+            }
+        } else {
+            putToCache(path, data);
+        }
+    }
+
+    /**
+     * Brings the cached data at the path in line with the data polled from it, writing only the subtrees that
+     * differ, as if the stream had sent a put for each of them.
+     *
+     * @return true if anything changed
+     */
+    synchronized boolean applyDiff(FirebasePath path, Object data) {
+        List<FirebasePath> changedPaths = new ArrayList<>();
+        List<Object> changedData = new ArrayList<>();
+        diff(path, getCachedValue(path), data, changedPaths, changedData);
+        for (int i = 0; i < changedPaths.size(); i++) {
+            putToCache(changedPaths.get(i), changedData.get(i));
+        }
+        return !changedPaths.isEmpty();
+    }
+
+    /**
+     * Collects the paths at which the data differs from the current data, with the data to write at each of them;
+     * maps are compared key by key (a missing key is written as null), anything else as a whole.
+     */
+    static void diff(FirebasePath path, Object current, Object data, List<FirebasePath> changedPaths, List<Object> changedData) {
+        if (current instanceof Map && data instanceof Map && !((Map<?, ?>) current).isEmpty()) {
+            Map<?, ?> before = (Map<?, ?>) current;
+            Map<?, ?> after = (Map<?, ?>) data;
+            for (Map.Entry<?, ?> e : after.entrySet()) {
+                diff(path.child(String.valueOf(e.getKey())), before.get(e.getKey()), e.getValue(), changedPaths, changedData);
+            }
+            for (Object key : before.keySet()) {
+                if (!after.containsKey(key)) {
+                    changedPaths.add(path.child(String.valueOf(key)));
+                    changedData.add(null);
+                }
             }
+        } else if (!Objects.equals(current, data)) {
+            changedPaths.add(path);
+            changedData.add(data);
         }
-        return current.get(keys[keys.length - 1]);
     }
 
-    private synchronized void putToCache(String path, Object newData) {
-        var current = cache;
-        var keys = path.split("/");
-        if (keys.length == 1) {
-            // overwrite root
-            current.put("root", newData);
+    /**
+     * @return the cached data at the path, if a synced stream covers it; null otherwise
+     */
+    private FirebaseResponse readFromCache(FirebasePath path) throws FirebaseException {
+        long asOf = 0;
+        Object value;
+        synchronized (this) {
+            for (RealtimeDatabaseConnection con : connections) {
+                if (con.isOnline() && con.getWindow() == null && con.getPath().contains(path)) {
+                    asOf = Math.max(asOf, con.getSyncedAt());
+                }
+            }
+            if (asOf == 0) return null;
+            // the stream keeps changing the cached maps, so hand out a copy
+            value = FirebaseResponse.deepCopy(getFromCache(path));
+        }
+        String rawBody;
+        try {
+            rawBody = EVENT_MAPPER.writeValueAsString(value);
+        } catch (IOException e) {
+            String msg = "unable to convert cached data at '" + path + "' into json";
+            LOGGER.error(msg);
+            throw new FirebaseException(msg, e);
+        }
+        // like a response from the server, only an object has a body
+        @SuppressWarnings("unchecked")
+        Map<String, Object> body = value instanceof Map ? (Map<String, Object>) value : new LinkedHashMap<>();
+        return new FirebaseResponse(true, 200, body, rawBody, true, asOf);
+    }
+
+    private Executor deliveryExecutor() {
+        return executor != null ? executor : ForkJoinPool.commonPool();
+    }
+
+    private synchronized ScheduledExecutorService conflationTimer() {
+        if (conflationTimer == null) {
+            conflationTimer = new ScheduledThreadPoolExecutor(1, r -> {
+                Thread thread = new Thread(r, "firebase4j-conflation");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return conflationTimer;
+    }
+
+    /**
+     * @return the data of the connection's stream: its query window, or the cached data at its path
+     */
+    private Object getData(RealtimeDatabaseConnection con) {
+        return con.getWindow() != null ? con.getWindow().snapshot() : getFromCache(con.getPath());
+    }
+
+    /**
+     * @return a copy of the data of the connection's stream, that the stream won't change under the caller's feet
+     */
+    synchronized Object snapshot(RealtimeDatabaseConnection con) {
+        return FirebaseResponse.deepCopy(getData(con));
+    }
+
+    /**
+     * Stops one stream, leaving the others on its path alone.
+     */
+    synchronized void disconnect(RealtimeDatabaseConnection con) {
+        con.disconnect();
+        release(con);
+    }
+
+    synchronized Object getFromCache(FirebasePath path) {
+        for (FirebasePath p = path; p != null; p = p.parent()) {
+            if (coldPaths.get(p) != null) break; // touched it
+        }
+        return getCachedValue(path);
+    }
+
+    @SuppressWarnings("unchecked")
+    synchronized void putToCache(FirebasePath path, Object newData) {
+        applyToCache(path, newData);
+        if (persistence != null) {
+            try {
+                persistence.append(path.toString(), newData);
+                if (persistence.needsCompaction()) {
+                    // only the copy is taken under the lock; the snapshot is encoded and synced off it
+                    persistence.compactInBackground((Map<String, Object>) FirebaseResponse.deepCopy(cache));
+                }
+            } catch (IOException e) {
+                LOGGER.error("Exception thrown while persisting the cache", e);
+            }
+        }
+        evictIfNeeded();
+    }
+
+    /**
+     * Writes the data at the path, creating (or replacing leaves with) the maps above it as needed; null data
+     * removes the path, like it does in Firebase.
+     */
+    private void applyToCache(FirebasePath path, Object newData) {
+        if (newData == null) {
+            removeFromCache(path);
             return;
         }
-        for (int i = 0; i < keys.length - 1; i++) {
-            String key = keys[i];
-            if (current.containsKey(key)) {
-                current = (HashMap<String, Object>) current.get(key);
-            } else {
-                var a = new HashMap<String, Object>();
-                current.put(key, a);
-                current = a;
+        if (compactCache) newData = CompactNode.compact(newData);
+        putEntry(getOrCreateParent(path), path.isRoot() ? ROOT_KEY : path.getKey(), newData);
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> getOrCreateParent(FirebasePath path) {
+        if (path.isRoot()) return cache;
+        FirebasePath parentPath = path.parent();
+        Map<String, Object> grandParent = getOrCreateParent(parentPath);
+        String key = parentPath.isRoot() ? ROOT_KEY : parentPath.getKey();
+        Object parent = grandParent.get(key);
+        if (!(parent instanceof Map)) {
+            parent = compactCache ? new CompactNode() : new HashMap<String, Object>();
+            putEntry(grandParent, key, parent);
+        }
+        return (Map<String, Object>) parent;
+    }
+
+    private void putEntry(Map<String, Object> map, String key, Object value) {
+        boolean existed = map.containsKey(key);
+        Object previous = map.put(key, value);
+        cacheBytes += entrySize(map, key, value) - (existed ? entrySize(map, key, previous) : 0);
+    }
+
+    /**
+     * Removes the path, along with the parents that were only there to hold it.
+     */
+    private void removeFromCache(FirebasePath path) {
+        Object parent = getCachedValue(path.isRoot() ? null : path.parent());
+        if (!(parent instanceof Map)) return;
+        Map<?, ?> map = (Map<?, ?>) parent;
+        String key = path.isRoot() ? ROOT_KEY : path.getKey();
+        if (!map.containsKey(key)) return;
+        cacheBytes -= entrySize(map, key, map.remove(key));
+        if (map.isEmpty() && !path.isRoot()) removeFromCache(path.parent());
+    }
+
+    private void restoreCache(Map<String, Object> restored) {
+        for (Map.Entry<String, Object> e : restored.entrySet()) {
+            putEntry(cache, e.getKey(), compactCache ? CompactNode.compact(e.getValue()) : e.getValue());
+        }
+        // nobody listens to restored data yet
+        Object root = cache.get(ROOT_KEY);
+        if (root instanceof Map) {
+            for (Object child : ((Map<?, ?>) root).keySet()) {
+                coldPaths.put(FirebasePath.ROOT.child(String.valueOf(child)), Boolean.TRUE);
+            }
+        }
+    }
+
+    private void disconnectAll() {
+        synchronized (this) {
+            connections.forEach(RealtimeDatabaseConnection::disconnect);
+            connections.clear();
+        }
+        synchronized (this) {
+            if (conflationTimer != null) conflationTimer.shutdownNow();
+            conflationTimer = null;
+        }
+    }
+
+    private void closeCache() {
+        if (persistence != null) {
+            try {
+                persistence.close();
+            } catch (IOException e) {
+                LOGGER.error("Exception thrown while closing the cache persistence", e);
+            }
+        }
+        synchronized (this) {
+            cache.clear();
+            coldPaths.clear();
+            cacheBytes = 0;
+        }
+    }
+
+    /**
+     * Called once a connection has stopped streaming (whether it was disconnected or failed).
+     */
+    private synchronized void release(RealtimeDatabaseConnection con) {
+        con.settle();
+        if (!connections.remove(con)) return;
+        if (con.getWindow() != null) return; // never was in the cache
+        FirebasePath path = con.getPath();
+        if (isObserved(path)) return;
+        if (cacheBudget > 0) {
+            coldPaths.put(path, Boolean.TRUE);
+            evictIfNeeded();
+        } else {
+            evict(path);
+        }
+    }
+
+    private synchronized void evictIfNeeded() {
+        if (cacheBudget <= 0 || cacheBytes <= cacheBudget) return;
+        Iterator<FirebasePath> it = coldPaths.keySet().iterator();
+        List<FirebasePath> victims = new ArrayList<>();
+        long projected = cacheBytes;
+        while (it.hasNext() && projected > cacheBudget) {
+            FirebasePath path = it.next();
+            if (path.isRoot()) continue; // evicting it would drop the whole mirror
+            if (isObserved(path)) continue; // a listener below it; evicting the whole subtree would corrupt it
+            victims.add(path);
+            projected -= estimateEntrySize(path.getKey(), getCachedValue(path));
+        }
+        for (FirebasePath path : victims) {
+            evict(path);
+        }
+        if (!victims.isEmpty() && LOGGER.isDebugEnabled()) {
+            LOGGER.debug("evicted " + victims.size() + " cold subtrees; cache is now ~" + cacheBytes + " bytes");
+        }
+    }
+
+    private void evict(FirebasePath path) {
+        coldPaths.remove(path);
+        removeFromCache(path);
+    }
+
+    /**
+     * @param path -- the path to look up; null refers to {@link #cache} itself
+     * @return the cached data, or null if there is none
+     */
+    private Object getCachedValue(FirebasePath path) {
+        if (path == null) return cache;
+        Object parent = getCachedValue(path.isRoot() ? null : path.parent());
+        if (!(parent instanceof Map)) return null;
+        return ((Map<?, ?>) parent).get(path.isRoot() ? ROOT_KEY : path.getKey());
+    }
+
+    /**
+     * @return whether any connection's subtree overlaps the path's subtree
+     */
+    private boolean isObserved(FirebasePath path) {
+        for (RealtimeDatabaseConnection con : connections) {
+            if (con.isOnline() && con.getWindow() == null && con.getPath().overlaps(path)) {
+                return true;
             }
         }
-        current.put(keys[keys.length - 1], newData);
+        return false;
+    }
+
+    /**
+     * Rough heap footprint of a parsed JSON value (64-bit JVM with compressed oops).
+     */
+    static long estimateSize(Object value) {
+        if (value == null) return 0;
+        if (value instanceof CompactNode) return ((CompactNode) value).estimateSize();
+        if (value instanceof String) return 40 + ((String) value).length();
+        if (value instanceof Boolean) return 0; // Boolean.TRUE/FALSE are shared
+        if (value instanceof Integer || value instanceof Short || value instanceof Byte) return 16;
+        if (value instanceof Number) return 24;
+        if (value instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>) value;
+            long size = 64;
+            for (Map.Entry<?, ?> e : map.entrySet()) {
+                size += estimateEntrySize(e.getKey(), e.getValue());
+            }
+            return size;
+        }
+        if (value instanceof List) {
+            List<?> list = (List<?>) value;
+            long size = 40 + 4L * list.size();
+            for (Object o : list) size += estimateSize(o);
+            return size;
+        }
+        return 16;
+    }
+
+    /**
+     * Footprint of one map entry: the node and its share of the table, plus the key and the value.
+     */
+    static long estimateEntrySize(Object key, Object value) {
+        return 48 + estimateSize(key) + estimateSize(value);
+    }
+
+    private static long entrySize(Map<?, ?> map, Object key, Object value) {
+        return map instanceof CompactNode ? CompactNode.entrySize(value) : estimateEntrySize(key, value);
     }
 
     public enum ErrorCode {
@@ -199,31 +1001,146 @@ public class RealtimeDatabase extends Firebase {
         UNKNOWN
     }
 
+    /**
+     * What {@link #publish} does with changes that come faster than the subscriber requests them.
+     */
+    public enum OverflowStrategy {
+        /**
+         * keep every change until the subscriber asks for it; fail the subscription once more than the capacity are
+         * waiting
+         */
+        BUFFER,
+        /**
+         * keep the oldest changes, up to the capacity, and drop newer ones until the subscriber catches up
+         */
+        DROP,
+        /**
+         * keep only the latest data; the subscriber skips the changes in between
+         */
+        LATEST
+    }
+
+    /**
+     * Told about what happens on a stream, on the stream's thread. Has to return quickly, since the stream doesn't
+     * read on in the meantime.
+     */
+    interface StreamListener {
+
+        /**
+         * The cached data at the stream's path changed.
+         */
+        void onChange();
+
+        void onError(ErrorCode code);
+
+        /**
+         * The stream stopped, after failing or being disconnected.
+         */
+        default void onClosed() {
+        }
+    }
+
     protected static class RealtimeDatabaseConnection {
-        private final String path;
+        private final FirebasePath path;
         private final NameValuePair[] queries;
-        private boolean online = true;
+        /**
+         * where the stream's events go if its queries select part of the data; null if they go to the cache
+         */
+        private final QueryWindow window;
+        private volatile boolean online = true;
+        private volatile HttpUriRequest request = null;
+        private volatile RequestControl control = null;
+        /**
+         * when the stream last heard from the server after its initial snapshot; 0 until then
+         */
+        private volatile long syncedAt = 0;
+        /**
+         * counted down once the connection has its initial data, or has stopped without it
+         */
+        private final CountDownLatch settled = new CountDownLatch(1);
 
-        public RealtimeDatabaseConnection(String path, NameValuePair[] queries) {
+        public RealtimeDatabaseConnection(FirebasePath path, NameValuePair[] queries) {
             this.path = path;
             this.queries = queries;
+            Map<String, String> params = new HashMap<>();
+            if (queries != null) {
+                for (NameValuePair query : queries) {
+                    params.put(query.getName(), query.getValue());
+                }
+            }
+            this.window = FirebaseQuery.isQuery(params) ? new QueryWindow(FirebaseQuery.parse(params)) : null;
         }
 
+        /**
+         * Stops the stream, aborting its request so that the stream's thread doesn't wait for another event to notice.
+         */
         public void disconnect() {
             online = false;
+            settled.countDown();
+            HttpUriRequest request = this.request;
+            if (request != null) request.abort();
+            RequestControl control = this.control;
+            if (control != null) control.abort("disconnected");
+        }
+
+        void setRequest(HttpUriRequest request) {
+            this.request = request;
+            if (!online) request.abort(); // disconnected before the request was made
+        }
+
+        /**
+         * Binds the request of a poll, which is made through the control.
+         */
+        void setRequest(RequestControl control) {
+            this.control = control;
+            if (!online) control.abort("disconnected");
         }
 
         public boolean isOnline() {
             return online;
         }
 
-        public String getPath() {
+        /**
+         * @param snapshot -- true if the server sent the whole data at the path
+         */
+        void heardFromServer(boolean snapshot) {
+            if (snapshot || syncedAt != 0) syncedAt = System.currentTimeMillis();
+            if (snapshot) settled.countDown();
+        }
+
+        void settle() {
+            settled.countDown();
+        }
+
+        /**
+         * @return false if the connection neither got its initial data nor stopped in time
+         */
+        boolean awaitSettled(long timeoutNanos) throws InterruptedException {
+            return settled.await(timeoutNanos, TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * @return whether the cache holds everything at the path, as of {@link #getSyncedAt()}
+         */
+        public boolean isSynced() {
+            return syncedAt != 0;
+        }
+
+        public long getSyncedAt() {
+            return syncedAt;
+        }
+
+        public FirebasePath getPath() {
             return path;
         }
 
         public NameValuePair[] getQueries() {
             return queries;
         }
+
+        QueryWindow getWindow() {
+            return window;
+        }
     }
 
 }
@@ -0,0 +1,211 @@
+package net.thegreshams.firebase4j.service;
+
+import net.thegreshams.firebase4j.error.FirebaseException;
+import net.thegreshams.firebase4j.model.FirebasePath;
+import org.apache.log4j.Logger;
+
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * One subscriber of {@link RealtimeDatabase#publish}: takes the changes of its stream as they come and hands them to
+ * the subscriber as it requests them, one at a time, on the delivery executor.
+ */
+final class RealtimeSubscription implements Flow.Subscription, RealtimeDatabase.StreamListener {
+
+    private static final Logger LOGGER = Logger.getRootLogger();
+
+
+    ///////////////////////////////////////////////////////////////////////////////
+//
+// PROPERTIES & CONSTRUCTORS
+//
+///////////////////////////////////////////////////////////////////////////////
+    private final RealtimeDatabase database;
+    private final FirebasePath path;
+    private final RealtimeDatabase.OverflowStrategy overflow;
+    private final int capacity;
+    private final Executor delivery;
+    private final Flow.Subscriber<? super Object> subscriber;
+    /**
+     * copies of the data not delivered yet, oldest first; guarded by itself
+     */
+    private final ArrayDeque<Object> pending = new ArrayDeque<>();
+    /**
+     * with {@link RealtimeDatabase.OverflowStrategy#LATEST}: whether the data changed since it was last delivered
+     */
+    private final AtomicBoolean changed = new AtomicBoolean();
+    private final AtomicLong requested = new AtomicLong();
+    /**
+     * how many times delivery was asked for since the running delivery started; only one delivery runs at a time
+     */
+    private final AtomicInteger work = new AtomicInteger();
+    private final AtomicReference<Throwable> error = new AtomicReference<>();
+    private volatile RealtimeDatabase.RealtimeDatabaseConnection connection;
+    private volatile boolean closed = false;
+    private volatile boolean cancelled = false;
+
+    RealtimeSubscription(RealtimeDatabase database, FirebasePath path, RealtimeDatabase.OverflowStrategy overflow, int capacity,
+                         Executor delivery, Flow.Subscriber<? super Object> subscriber) {
+        this.database = database;
+        this.path = path;
+        this.overflow = overflow;
+        this.capacity = capacity;
+        this.delivery = delivery;
+        this.subscriber = Objects.requireNonNull(subscriber, "subscriber cannot be null");
+    }
+
+    /**
+     * Hands over the connection of the stream, once it is opened (which is after the subscriber may have cancelled).
+     */
+    void attach(RealtimeDatabase.RealtimeDatabaseConnection connection) {
+        this.connection = connection;
+        if (cancelled) database.disconnect(connection);
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////
+//
+// PUBLIC API
+//
+///////////////////////////////////////////////////////////////////////////////
+
+    @Override
+    public void request(long n) {
+        if (n <= 0) {
+            fail(new IllegalArgumentException("requested a non-positive number of items: " + n));
+            return;
+        }
+        // 'unbounded' once it adds up past Long.MAX_VALUE
+        requested.accumulateAndGet(n, (current, more) -> current + more < 0 ? Long.MAX_VALUE : current + more);
+        drain();
+    }
+
+    @Override
+    public void cancel() {
+        cancelled = true;
+        stop();
+    }
+
+    @Override
+    public void onChange() {
+        if (cancelled || error.get() != null) return;
+        if (overflow == RealtimeDatabase.OverflowStrategy.LATEST) {
+            // copied when it's delivered, so the changes in between cost nothing
+            changed.set(true);
+        } else {
+            synchronized (pending) {
+                if (pending.size() >= capacity) {
+                    if (overflow == RealtimeDatabase.OverflowStrategy.BUFFER) {
+                        fail(new FirebaseException("subscriber of '" + path + "' fell more than " + capacity + " changes behind"));
+                    }
+                    return;
+                }
+            }
+            // only the stream's thread adds, so there is still room once the copy is made
+            Object data = database.snapshot(connection);
+            synchronized (pending) {
+                pending.add(data == null ? new LinkedHashMap<String, Object>() : data);
+            }
+        }
+        drain();
+    }
+
+    @Override
+    public void onError(RealtimeDatabase.ErrorCode code) {
+        fail(new FirebaseException("stream of '" + path + "' failed: " + code));
+    }
+
+    @Override
+    public void onClosed() {
+        closed = true;
+        drain();
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////
+//
+// PRIVATE API
+//
+///////////////////////////////////////////////////////////////////////////////
+
+    private void fail(Throwable t) {
+        if (!error.compareAndSet(null, t)) return;
+        stop();
+        drain();
+    }
+
+    private void stop() {
+        RealtimeDatabase.RealtimeDatabaseConnection connection = this.connection;
+        if (connection != null) database.disconnect(connection);
+    }
+
+    private void drain() {
+        if (work.getAndIncrement() == 0) delivery.execute(this::deliver);
+    }
+
+    /**
+     * Delivers as much as was requested, then the error or completion, if any; keeps going while drain() is called
+     * in the meantime.
+     */
+    private void deliver() {
+        int missed = 1;
+        while (true) {
+            long wanted = requested.get();
+            long sent = 0;
+            while (sent != wanted && !cancelled && error.get() == null) {
+                Object next = next();
+                if (next == null) break;
+                try {
+                    subscriber.onNext(next);
+                } catch (Throwable t) {
+                    LOGGER.error("subscriber of '" + path + "' threw; cancelling its subscription", t);
+                    cancel();
+                    return;
+                }
+                sent++;
+            }
+            if (cancelled) return;
+            Throwable failure = error.get();
+            if (failure != null) {
+                cancelled = true;
+                subscriber.onError(failure);
+                return;
+            }
+            if (closed && !hasNext()) {
+                cancelled = true;
+                subscriber.onComplete();
+                return;
+            }
+            if (sent != 0 && wanted != Long.MAX_VALUE) requested.addAndGet(-sent);
+            missed = work.addAndGet(-missed);
+            if (missed == 0) return;
+        }
+    }
+
+    private Object next() {
+        if (overflow == RealtimeDatabase.OverflowStrategy.LATEST) {
+            if (!changed.getAndSet(false)) return null;
+            Object data = database.snapshot(connection);
+            return data == null ? new LinkedHashMap<String, Object>() : data;
+        }
+        synchronized (pending) {
+            return pending.poll();
+        }
+    }
+
+    private boolean hasNext() {
+        if (overflow == RealtimeDatabase.OverflowStrategy.LATEST) return changed.get();
+        synchronized (pending) {
+            return !pending.isEmpty();
+        }
+    }
+
+}
@@ -0,0 +1,31 @@
+package net.thegreshams.firebase4j.service;
+
+import net.thegreshams.firebase4j.metrics.RequestTrace;
+import net.thegreshams.firebase4j.model.FirebasePath;
+
+/**
+ * What the request pipeline of a {@link Firebase} knows about one request while it is in flight.
+ */
+final class RequestContext {
+
+    final Firebase.FirebaseRestMethod method;
+    final FirebasePath path;
+    final long startNanos = System.nanoTime();
+    long bytesOut = 0;
+    long bytesIn = 0;
+    /**
+     * true if the request is a write sent with print=silent, which succeeds with an empty 204
+     */
+    boolean silent = false;
+    /**
+     * null unless the request is traced
+     */
+    final RequestTrace trace;
+
+    RequestContext(Firebase.FirebaseRestMethod method, FirebasePath path, boolean traced) {
+        this.method = method;
+        this.path = path;
+        this.trace = traced ? new RequestTrace(method, path, startNanos) : null;
+    }
+
+}
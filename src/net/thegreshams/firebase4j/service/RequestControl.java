@@ -0,0 +1,95 @@
+package net.thegreshams.firebase4j.service;
+
+import org.apache.http.client.methods.HttpRequestBase;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The deadline of one request, and the means to abort it from another thread: aborting the http-request fails a
+ * pending connection lease, connect or read at once, and shuts its connection down instead of leaving it to a
+ * socket timeout.
+ */
+final class RequestControl {
+
+    private final long timeoutMillis;
+    private final long deadlineNanos;
+    private volatile HttpRequestBase request = null;
+    private volatile String abortedBecause = null;
+    /**
+     * for a conditional GET: the ETag sent as If-None-Match (null to only ask for one), then the one the response
+     * carried
+     */
+    private boolean conditional = false;
+    private volatile String etag = null;
+
+    /**
+     * @param timeoutMillis -- counted from now; 0 for no deadline
+     */
+    RequestControl(long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+        this.deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    }
+
+    /**
+     * Binds the http-request about to be sent, and arms the deadline.
+     *
+     * @return the armed deadline, to be cancelled once the response is read; null if there is none
+     */
+    ScheduledFuture<?> attach(HttpRequestBase request, ScheduledExecutorService timer) {
+        this.request = request;
+        if (abortedBecause != null) {
+            request.abort(); // aborted before there was anything to abort
+            return null;
+        }
+        if (timeoutMillis <= 0) return null;
+        long left = deadlineNanos - System.nanoTime();
+        if (left <= 0) {
+            abort("timed out after " + timeoutMillis + "ms");
+            return null;
+        }
+        return timer.schedule(() -> abort("timed out after " + timeoutMillis + "ms"), left, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Aborts the request; the first reason given is kept.
+     */
+    void abort(String reason) {
+        if (abortedBecause == null) abortedBecause = reason;
+        HttpRequestBase request = this.request;
+        if (request != null) request.abort();
+    }
+
+    /**
+     * Makes the request a conditional GET, which the server answers with 304 and no body while the data's ETag is
+     * still the given one; the ETag of the data sent back replaces it.
+     *
+     * @param etag -- the ETag of the data last read; null to only ask for one
+     */
+    RequestControl conditional(String etag) {
+        this.conditional = true;
+        this.etag = etag;
+        return this;
+    }
+
+    boolean isConditional() {
+        return conditional;
+    }
+
+    String getETag() {
+        return etag;
+    }
+
+    void setETag(String etag) {
+        this.etag = etag;
+    }
+
+    /**
+     * @return why the request was aborted; null if it wasn't
+     */
+    String getAbortReason() {
+        return abortedBecause;
+    }
+
+}
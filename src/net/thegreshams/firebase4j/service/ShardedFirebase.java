@@ -0,0 +1,328 @@
+package net.thegreshams.firebase4j.service;
+
+import net.thegreshams.firebase4j.error.FirebaseException;
+import net.thegreshams.firebase4j.error.JacksonUtilityException;
+import net.thegreshams.firebase4j.metrics.FirebaseMetrics;
+import net.thegreshams.firebase4j.model.FirebasePath;
+import net.thegreshams.firebase4j.model.FirebaseResponse;
+import org.apache.http.NameValuePair;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * One client for data spread over several databases (shards). Each request goes to the shard that the
+ * {@link ShardingStrategy} picks for its path, and {@link #update(Map)} splits a multi-path update into one update
+ * per shard, sent in parallel. The shards share one connection pool and one thread pool.
+ */
+public class ShardedFirebase implements AutoCloseable {
+
+    private static final Logger LOGGER = Logger.getRootLogger();
+
+
+    ///////////////////////////////////////////////////////////////////////////////
+//
+// PROPERTIES & CONSTRUCTORS
+//
+///////////////////////////////////////////////////////////////////////////////
+    private final Map<String, Firebase> shards = new LinkedHashMap<>();
+    private final ShardingStrategy strategy;
+    private final CloseableHttpClient client;
+    private final InstrumentedConnectionManager connectionManager;
+    private final ExecutorService executor;
+    private volatile FirebaseMetrics transportMetrics = FirebaseMetrics.NONE;
+
+    public ShardedFirebase(Map<String, String> shardUrls, ShardingStrategy strategy, int threadPoolSize) throws FirebaseException {
+        this(shardUrls, null, strategy, threadPoolSize);
+    }
+
+    /**
+     * @param shardUrls      -- the names of the shards to the base-urls of their databases
+     * @param secureToken    -- the token every shard is accessed with; null if none
+     * @param strategy       -- picks the shard of a path, by the names of shardUrls
+     * @param threadPoolSize -- the threads shared by the shards, for async requests and for sending the parts of an
+     *                       update in parallel; if 0, the parts are sent one after another
+     */
+    public ShardedFirebase(Map<String, String> shardUrls, String secureToken, ShardingStrategy strategy, int threadPoolSize) throws FirebaseException {
+        if (shardUrls == null || shardUrls.isEmpty()) {
+            String msg = "there must be at least one shard";
+            LOGGER.error(msg);
+            throw new FirebaseException(msg);
+        }
+        if (strategy == null) {
+            String msg = "strategy cannot be null";
+            LOGGER.error(msg);
+            throw new FirebaseException(msg);
+        }
+        this.strategy = strategy;
+        this.connectionManager = new InstrumentedConnectionManager(new PoolingHttpClientConnectionManager(), this::getTransportMetrics);
+        this.client = Firebase.newClient(connectionManager);
+        this.executor = threadPoolSize > 0 ? Executors.newFixedThreadPool(threadPoolSize) : null;
+        for (Map.Entry<String, String> e : shardUrls.entrySet()) {
+            shards.put(e.getKey(), new Firebase(e.getValue(), secureToken, client, connectionManager, executor));
+        }
+        // every shard is a route of its own, so the pool holds the per-route limit for each of them
+        connectionManager.getPool().setMaxTotal(Math.max(20, 2 * shards.size()));
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////
+//
+// PUBLIC API
+//
+///////////////////////////////////////////////////////////////////////////////
+
+    public Set<String> getShardNames() {
+        return Collections.unmodifiableSet(shards.keySet());
+    }
+
+    /**
+     * @return the client of the named shard (ie: for async requests or endpoints); null if there is no such shard
+     */
+    public Firebase getShard(String name) {
+        return shards.get(name);
+    }
+
+    /**
+     * @return the client of the shard holding the path
+     * @throws FirebaseException if the path's subtree is spread over several shards, or the strategy picks an
+     *                           unknown shard
+     */
+    public Firebase routeAt(FirebasePath path) throws FirebaseException {
+        if (path == null) path = FirebasePath.ROOT;
+        String name = strategy.shardFor(path);
+        if (name == null) {
+            String msg = "'" + path + "' is spread over several shards; read or write below it instead";
+            LOGGER.error(msg);
+            throw new FirebaseException(msg);
+        }
+        Firebase shard = shards.get(name);
+        if (shard == null) {
+            String msg = "no such shard: '" + name + "' (picked for '" + path + "')";
+            LOGGER.error(msg);
+            throw new FirebaseException(msg);
+        }
+        return shard;
+    }
+
+    public Firebase route(String path) throws FirebaseException {
+        return routeAt(FirebasePath.of(path));
+    }
+
+    public FirebaseResponse get(String path, NameValuePair... queries) throws FirebaseException {
+        return getAt(FirebasePath.of(path), queries);
+    }
+
+    public FirebaseResponse getAt(FirebasePath path, NameValuePair... queries) throws FirebaseException {
+        return routeAt(path).getAt(path, queries);
+    }
+
+    public FirebaseResponse put(String path, Map<String, Object> data, NameValuePair... queries) throws JacksonUtilityException, FirebaseException {
+        return putAt(FirebasePath.of(path), data, queries);
+    }
+
+    public FirebaseResponse putAt(FirebasePath path, Map<String, Object> data, NameValuePair... queries) throws JacksonUtilityException, FirebaseException {
+        return routeAt(path).putAt(path, data, queries);
+    }
+
+    public FirebaseResponse patch(String path, Map<String, Object> data, NameValuePair... queries) throws FirebaseException, JacksonUtilityException {
+        return patchAt(FirebasePath.of(path), data, queries);
+    }
+
+    public FirebaseResponse patchAt(FirebasePath path, Map<String, Object> data, NameValuePair... queries) throws FirebaseException, JacksonUtilityException {
+        return routeAt(path).patchAt(path, data, queries);
+    }
+
+    public FirebaseResponse post(String path, Map<String, Object> data, NameValuePair... queries) throws JacksonUtilityException, FirebaseException {
+        return postAt(FirebasePath.of(path), data, queries);
+    }
+
+    public FirebaseResponse postAt(FirebasePath path, Map<String, Object> data, NameValuePair... queries) throws JacksonUtilityException, FirebaseException {
+        return routeAt(path).postAt(path, data, queries);
+    }
+
+    public FirebaseResponse delete(String path, NameValuePair... queries) throws FirebaseException {
+        return deleteAt(FirebasePath.of(path), queries);
+    }
+
+    public FirebaseResponse deleteAt(FirebasePath path, NameValuePair... queries) throws FirebaseException {
+        return routeAt(path).deleteAt(path, queries);
+    }
+
+    /**
+     * A multi-path update (ie: {"users/alice/name": "A", "posts/p1/author": "alice"}), split by shard: each shard
+     * gets one PATCH of its own paths, and the shards are sent to in parallel. The update is atomic within a shard,
+     * but not across shards: if some shards fail, the others are still updated.
+     *
+     * @param updates -- paths, relative to the root, to their new data; null data deletes the path
+     * @return the response of each shard that was written to, by shard name
+     * @throws FirebaseException if a path is spread over several shards (then nothing is sent), or if a shard fails
+     *                           or answers unsuccessfully (after every shard has been tried)
+     */
+    public Map<String, FirebaseResponse> update(Map<String, Object> updates) throws FirebaseException {
+        Map<String, Map<String, Object>> byShard = new LinkedHashMap<>();
+        for (Map.Entry<String, Object> e : updates.entrySet()) {
+            FirebasePath path = FirebasePath.of(e.getKey());
+            routeAt(path); // every path is checked before anything is sent
+            String name = strategy.shardFor(path);
+            byShard.computeIfAbsent(name, n -> new LinkedHashMap<>()).put(path.toString().substring(1), e.getValue());
+        }
+
+        Map<String, CompletableFuture<FirebaseResponse>> sent = new LinkedHashMap<>();
+        for (Map.Entry<String, Map<String, Object>> e : byShard.entrySet()) {
+            Firebase shard = shards.get(e.getKey());
+            Map<String, Object> part = e.getValue();
+            CompletableFuture<FirebaseResponse> response = new CompletableFuture<>();
+            Runnable send = () -> {
+                try {
+                    response.complete(shard.patchAt(FirebasePath.ROOT, part));
+                } catch (Throwable t) {
+                    response.completeExceptionally(t);
+                }
+            };
+            if (executor != null && byShard.size() > 1) {
+                executor.execute(send);
+            } else {
+                send.run();
+            }
+            sent.put(e.getKey(), response);
+        }
+
+        Map<String, FirebaseResponse> result = new LinkedHashMap<>();
+        List<String> failed = new ArrayList<>();
+        Throwable cause = null;
+        for (Map.Entry<String, CompletableFuture<FirebaseResponse>> e : sent.entrySet()) {
+            try {
+                FirebaseResponse response = e.getValue().get();
+                if (response.getSuccess()) {
+                    result.put(e.getKey(), response);
+                } else {
+                    failed.add(e.getKey() + " (" + response.getCode() + ")");
+                }
+            } catch (ExecutionException ex) {
+                failed.add(e.getKey());
+                if (cause == null) cause = ex.getCause();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                String msg = "interrupted while waiting for the shards to be updated";
+                LOGGER.error(msg);
+                throw new FirebaseException(msg, ex);
+            }
+        }
+        if (!failed.isEmpty()) {
+            String msg = "update failed on shards " + failed + "; shards " + result.keySet() + " were updated";
+            LOGGER.error(msg);
+            throw new FirebaseException(msg, cause);
+        }
+        return result;
+    }
+
+    /**
+     * Reports each shard's requests to its own metrics.
+     *
+     * @param metrics -- gives the metrics of a shard, by name (ie: name -> new InMemoryFirebaseMetrics()); null to
+     *                stop reporting
+     */
+    public void setMetrics(Function<String, FirebaseMetrics> metrics) {
+        for (Map.Entry<String, Firebase> e : shards.entrySet()) {
+            e.getValue().setMetrics(metrics == null ? null : metrics.apply(e.getKey()));
+        }
+    }
+
+    /**
+     * @return the metrics of the named shard
+     */
+    public FirebaseMetrics getMetrics(String shard) {
+        Firebase firebase = shards.get(shard);
+        return firebase == null ? FirebaseMetrics.NONE : firebase.getMetrics();
+    }
+
+    public FirebaseMetrics getTransportMetrics() {
+        return transportMetrics;
+    }
+
+    /**
+     * Reports how long requests of any shard waited for a connection of the shared pool.
+     *
+     * @param metrics -- null to stop reporting
+     */
+    public void setTransportMetrics(FirebaseMetrics metrics) {
+        this.transportMetrics = metrics == null ? FirebaseMetrics.NONE : metrics;
+    }
+
+    /**
+     * Sizes the shared connection pool (rather than {@link Firebase#setMaxConnections(int)} on a shard, which would
+     * size it for that shard alone).
+     *
+     * @param maxConnectionsPerShard -- the most connections kept open to each database
+     */
+    public void setMaxConnections(int maxConnectionsPerShard) {
+        PoolingHttpClientConnectionManager pool = connectionManager.getPool();
+        pool.setDefaultMaxPerRoute(Math.max(1, maxConnectionsPerShard));
+        pool.setMaxTotal(Math.max(1, maxConnectionsPerShard) * shards.size());
+    }
+
+    /**
+     * Closes the shards once the work in flight is done, as {@link Firebase#close()} does; waits up to
+     * {@link Firebase#DEFAULT_DRAIN_MILLIS}.
+     */
+    @Override
+    public void close() {
+        close(Firebase.DEFAULT_DRAIN_MILLIS);
+    }
+
+    /**
+     * @param drainMillis -- how long to wait for the requests in flight, on all shards together
+     */
+    public void close(long drainMillis) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0, drainMillis));
+        if (executor != null) {
+            executor.shutdown();
+            try {
+                if (!executor.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+                    LOGGER.error("async requests still running after " + drainMillis + "ms; closing anyway");
+                    executor.shutdownNow();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                executor.shutdownNow();
+            }
+        }
+        // the shards don't own the shared pools, so this only waits for their requests and refuses new ones
+        for (Firebase shard : shards.values()) {
+            shard.close(TimeUnit.NANOSECONDS.toMillis(Math.max(0, deadline - System.nanoTime())));
+        }
+        try {
+            client.close();
+        } catch (IOException e) {
+            LOGGER.error("Exception thrown while closing the http client", e);
+        }
+    }
+
+    /**
+     * Closes the shared connection pool and thread pool right away; the shards can't be used afterwards.
+     */
+    public void shutdown() {
+        if (executor != null) executor.shutdown();
+        try {
+            client.close();
+        } catch (IOException e) {
+            LOGGER.error("Exception thrown while closing the http client", e);
+        }
+    }
+
+}
@@ -0,0 +1,17 @@
+package net.thegreshams.firebase4j.service;
+
+import net.thegreshams.firebase4j.model.FirebasePath;
+
+/**
+ * Decides which database of a {@link ShardedFirebase} holds a path; see {@link ConsistentHashSharding} and
+ * {@link PrefixSharding}.
+ */
+public interface ShardingStrategy {
+
+    /**
+     * @return the name of the shard holding the path and everything below it, or null if the path's subtree is
+     * spread over several shards (ie: it lies above the part of the path that the shard is chosen by)
+     */
+    String shardFor(FirebasePath path);
+
+}
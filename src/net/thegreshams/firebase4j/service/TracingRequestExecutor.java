@@ -0,0 +1,52 @@
+package net.thegreshams.firebase4j.service;
+
+import net.thegreshams.firebase4j.metrics.RequestTrace;
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestExecutor;
+
+import java.io.IOException;
+
+/**
+ * Request executor of a {@link Firebase} that marks the send and time-to-first-byte phases of traced requests.
+ * <p>
+ * The connection is leased (and connected, if it is new) before the executor runs, so reaching it also ends the
+ * lease phase of requests that reused a pooled connection.
+ */
+class TracingRequestExecutor extends HttpRequestExecutor {
+
+    /**
+     * Attribute of the http-context under which {@link Firebase} puts the {@link RequestTrace}; absent when tracing
+     * is off.
+     */
+    static final String TRACE_ATTRIBUTE = "firebase4j.trace";
+
+    static RequestTrace traceOf(HttpContext context) {
+        return context == null ? null : (RequestTrace) context.getAttribute(TRACE_ATTRIBUTE);
+    }
+
+    @Override
+    public HttpResponse execute(HttpRequest request, HttpClientConnection conn, HttpContext context) throws IOException, HttpException {
+        RequestTrace trace = traceOf(context);
+        if (trace != null) {
+            trace.end(RequestTrace.Phase.LEASE);
+        }
+        return super.execute(request, conn, context);
+    }
+
+    @Override
+    protected HttpResponse doReceiveResponse(HttpRequest request, HttpClientConnection conn, HttpContext context) throws HttpException, IOException {
+        RequestTrace trace = traceOf(context);
+        if (trace == null) {
+            return super.doReceiveResponse(request, conn, context);
+        }
+        trace.end(RequestTrace.Phase.SEND);
+        HttpResponse response = super.doReceiveResponse(request, conn, context);
+        trace.end(RequestTrace.Phase.WAIT);
+        return response;
+    }
+
+}
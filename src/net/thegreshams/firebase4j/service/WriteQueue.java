@@ -0,0 +1,787 @@
+package net.thegreshams.firebase4j.service;
+
+import net.thegreshams.firebase4j.error.FirebaseException;
+import net.thegreshams.firebase4j.error.JacksonUtilityException;
+import net.thegreshams.firebase4j.model.FirebasePath;
+import net.thegreshams.firebase4j.model.FirebaseResponse;
+import net.thegreshams.firebase4j.util.BinaryTreeCodec;
+import net.thegreshams.firebase4j.util.JacksonUtility;
+import net.thegreshams.firebase4j.util.PushIdGenerator;
+import org.apache.http.NameValuePair;
+import org.apache.log4j.Logger;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.zip.CRC32;
+
+/**
+ * Durable, opt-in queue for the writes of a {@link Firebase}.
+ * <p>
+ * Every put/patch/post/delete is appended to a local log and the caller is released as soon as the record is on
+ * disk. The log is written by a thread of its own, which appends the records of every caller waiting at the time and
+ * syncs them with a single fsync (group commit); callers only wait, so interrupting them never touches the log.
+ * A background thread replays the log against the
+ * {@link Firebase} in order. While the endpoint cannot be reached it backs off and retries, so writes keep being
+ * accepted during an outage and are delivered once connectivity returns. Before sending, a run of pending writes
+ * is coalesced: writes that are overwritten by a later put/delete of the same (or an enclosing) path are skipped,
+ * and consecutive patches of the same path are merged into one request.
+ * <p>
+ * Server errors (5xx), timeouts (408), throttling (429) and authentication failures (401/403) are retried with
+ * backoff like an unreachable endpoint: an auth token that expires while writes are queued leaves them logged until a client with a
+ * valid token delivers them. Writes the server rejects as such (400, 404, 412 and the other 4xx) are logged and
+ * dropped; they would never succeed on retry.
+ */
+public class WriteQueue implements Closeable {
+
+    public static final String LOG_FILE_NAME = "writes.log";
+    public static final long DEFAULT_CLOSE_TIMEOUT_MILLIS = 10_000;
+    private static final Logger LOGGER = Logger.getRootLogger();
+    private static final byte RECORD_WRITE = 0;
+    private static final byte RECORD_ACK = 1;
+    private static final int MAX_BATCH = 256;
+    private static final long MIN_BACKOFF_MILLIS = 100;
+    private static final long MAX_BACKOFF_MILLIS = 30_000;
+
+
+///////////////////////////////////////////////////////////////////////////////
+//
+// PROPERTIES & CONSTRUCTORS
+//
+///////////////////////////////////////////////////////////////////////////////
+
+    private final Firebase firebase;
+    private final File logFile;
+    private final FileChannel log;
+    /**
+     * the writes that are durably logged and not delivered yet, in order
+     */
+    private final ArrayDeque<QueuedWrite> pending = new ArrayDeque<>();
+    /**
+     * the records waiting for the log writer; guards nextSeq, open and closing
+     */
+    private final ArrayDeque<LogRequest> toLog = new ArrayDeque<>();
+    private final Thread drainer;
+    private final Thread logWriter;
+    private long nextSeq = 1;
+    /**
+     * the last write in the log; only used by the log writer
+     */
+    private long loggedSeq = 0;
+    private volatile boolean open = true;
+    private boolean closing = false;
+    /**
+     * set once the log could not be rolled back after a failed append; no more writes are taken after that
+     */
+    private volatile IOException failure = null;
+    private IOException closeFailure = null;
+
+    /**
+     * Opens (or creates) the log in the given directory, re-queues whatever a previous run did not deliver and
+     * starts replaying it.
+     *
+     * @param firebase  -- the client the writes are delivered through
+     * @param directory -- where the log is kept; created if it doesn't exist
+     * @throws FirebaseException if the log cannot be opened
+     */
+    public WriteQueue(Firebase firebase, File directory) throws FirebaseException {
+        if (firebase == null || directory == null) {
+            String msg = "firebase and directory cannot be null";
+            LOGGER.error(msg);
+            throw new FirebaseException(msg);
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            String msg = "unable to create write-queue directory: " + directory;
+            LOGGER.error(msg);
+            throw new FirebaseException(msg);
+        }
+        this.firebase = firebase;
+        this.logFile = new File(directory, LOG_FILE_NAME);
+        try {
+            long validLength = recover();
+            log = FileChannel.open(logFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            log.truncate(validLength);
+            log.position(validLength);
+        } catch (IOException e) {
+            String msg = "unable to open write-queue log: " + logFile;
+            LOGGER.error(msg);
+            throw new FirebaseException(msg, e);
+        }
+        if (!pending.isEmpty()) {
+            LOGGER.info("re-queued " + pending.size() + " undelivered writes from " + logFile);
+        }
+        loggedSeq = nextSeq - 1;
+        logWriter = new Thread(this::writeLog, "firebase4j-write-log");
+        logWriter.setDaemon(true);
+        logWriter.start();
+        drainer = new Thread(this::drain, "firebase4j-write-queue");
+        drainer.setDaemon(true);
+        drainer.start();
+    }
+
+
+///////////////////////////////////////////////////////////////////////////////
+//
+// PUBLIC API
+//
+///////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Queues a PUT; returns once it is durably logged.
+     *
+     * @param path -- if null/empty, refers to the base-url
+     * @param data -- can be null/empty
+     * @throws FirebaseException if the write could not be logged
+     */
+    public void put(String path, Map<String, Object> data, NameValuePair... queries) throws FirebaseException, JacksonUtilityException {
+        enqueue(Firebase.FirebaseRestMethod.PUT, path, JacksonUtility.GET_JSON_STRING_FROM_MAP(data), queries);
+    }
+
+    public void put(String path, String jsonData, NameValuePair... queries) throws FirebaseException {
+        enqueue(Firebase.FirebaseRestMethod.PUT, path, jsonData, queries);
+    }
+
+    public void patch(String path, Map<String, Object> data, NameValuePair... queries) throws FirebaseException, JacksonUtilityException {
+        enqueue(Firebase.FirebaseRestMethod.PATCH, path, JacksonUtility.GET_JSON_STRING_FROM_MAP(data), queries);
+    }
+
+    public void patch(String path, String jsonData, NameValuePair... queries) throws FirebaseException {
+        enqueue(Firebase.FirebaseRestMethod.PATCH, path, jsonData, queries);
+    }
+
+    public void post(String path, Map<String, Object> data, NameValuePair... queries) throws FirebaseException, JacksonUtilityException {
+        enqueue(Firebase.FirebaseRestMethod.POST, path, JacksonUtility.GET_JSON_STRING_FROM_MAP(data), queries);
+    }
+
+    public void post(String path, String jsonData, NameValuePair... queries) throws FirebaseException {
+        enqueue(Firebase.FirebaseRestMethod.POST, path, jsonData, queries);
+    }
+
+    /**
+     * Queues a PUT of the data under a new key generated here (see {@link Firebase#push(String, Map, NameValuePair...)});
+     * unlike a queued POST, replaying it after a crash can't create a second copy.
+     *
+     * @param path -- the parent of the new child; if null/empty, refers to the base-url
+     * @return the new key
+     * @throws FirebaseException if the write could not be logged
+     */
+    public String push(String path, Map<String, Object> data, NameValuePair... queries) throws FirebaseException, JacksonUtilityException {
+        return push(path, JacksonUtility.GET_JSON_STRING_FROM_MAP(data), queries);
+    }
+
+    public String push(String path, String jsonData, NameValuePair... queries) throws FirebaseException {
+        String key = PushIdGenerator.getDefault().next();
+        enqueue(Firebase.FirebaseRestMethod.PUT, FirebasePath.of(path).child(key).toString(), jsonData, queries);
+        return key;
+    }
+
+    public void delete(String path, NameValuePair... queries) throws FirebaseException {
+        enqueue(Firebase.FirebaseRestMethod.DELETE, path, null, queries);
+    }
+
+    /**
+     * @return number of logged writes that have not been delivered yet
+     */
+    public int size() {
+        synchronized (pending) {
+            return pending.size();
+        }
+    }
+
+    /**
+     * Blocks until every write queued so far is delivered, or the timeout elapses.
+     *
+     * @return true if the queue was drained
+     */
+    public boolean awaitDrained(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        synchronized (pending) {
+            while (!pending.isEmpty()) {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) return false;
+                pending.wait(left);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Stops the replay thread (once the request it is sending, if any, is done, or after
+     * {@link #DEFAULT_CLOSE_TIMEOUT_MILLIS}) and closes the log; undelivered writes stay in the log for the next run.
+     */
+    @Override
+    public void close() throws IOException {
+        this.close(DEFAULT_CLOSE_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * @param timeoutMillis -- how long to wait for the request being sent, if any; if it is still running afterwards
+     *                      the log is closed anyway, and its writes are delivered again by the next run
+     */
+    public void close(long timeoutMillis) throws IOException {
+        synchronized (toLog) {
+            open = false;
+        }
+        synchronized (pending) {
+            pending.notifyAll();
+        }
+        if (!join(drainer, timeoutMillis)) {
+            LOGGER.warn("closing the write queue while a request is still running; its writes stay in " + logFile);
+        }
+        synchronized (toLog) {
+            closing = true;
+            toLog.notifyAll();
+        }
+        join(logWriter);
+        if (closeFailure != null) throw closeFailure;
+    }
+
+
+///////////////////////////////////////////////////////////////////////////////
+//
+// PRIVATE API
+//
+///////////////////////////////////////////////////////////////////////////////
+
+    private void enqueue(Firebase.FirebaseRestMethod method, String path, String jsonData, NameValuePair[] queries) throws FirebaseException {
+        LogRequest request;
+        try {
+            synchronized (toLog) {
+                if (!open || failure != null) {
+                    String msg = failure != null ? "write queue log failed: " + failure.getMessage() : "write queue is closed";
+                    LOGGER.error(msg);
+                    throw new FirebaseException(msg, failure);
+                }
+                // numbered in the order the log writer takes them
+                QueuedWrite write = new QueuedWrite(nextSeq++, method, FirebasePath.of(path), jsonData, queries);
+                request = new LogRequest(write, 0, encodeWrite(write));
+                toLog.addLast(request);
+                toLog.notifyAll();
+            }
+        } catch (IOException e) {
+            String msg = "unable to encode write(" + method + ") @ " + path;
+            LOGGER.error(msg);
+            throw new FirebaseException(msg, e);
+        }
+        try {
+            request.logged.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            String msg = "interrupted while logging write(" + method + ") @ " + path + "; it may still be logged and delivered";
+            LOGGER.error(msg);
+            throw new FirebaseException(msg, e);
+        } catch (ExecutionException e) {
+            String msg = "unable to log write(" + method + ") @ " + path + ": " + e.getCause().getMessage();
+            LOGGER.error(msg);
+            throw new FirebaseException(msg, e.getCause());
+        }
+    }
+
+    /**
+     * The log writer: appends the records of every caller waiting, syncs them once, and only then hands the writes
+     * to the drainer. A batch that can't be appended or synced is cut off the log again, so the records logged after
+     * it aren't lost behind a torn one on recovery.
+     */
+    private void writeLog() {
+        while (true) {
+            List<LogRequest> batch;
+            synchronized (toLog) {
+                while (toLog.isEmpty() && !closing) {
+                    try {
+                        toLog.wait();
+                    } catch (InterruptedException e) {
+                        // nobody interrupts the log writer; it only stops once closing
+                    }
+                }
+                if (toLog.isEmpty()) break;
+                batch = new ArrayList<>(toLog);
+                toLog.clear();
+            }
+            logBatch(batch);
+        }
+        try {
+            if (failure == null) log.force(true);
+        } catch (IOException e) {
+            closeFailure = e;
+        } finally {
+            try {
+                log.close();
+            } catch (IOException e) {
+                if (closeFailure == null) closeFailure = e;
+            }
+        }
+    }
+
+    private void logBatch(List<LogRequest> batch) {
+        if (failure != null) {
+            for (LogRequest request : batch) {
+                request.logged.completeExceptionally(failure);
+            }
+            return;
+        }
+        long start = 0;
+        long lastSeq = loggedSeq;
+        boolean wrote = false;
+        boolean truncated = false;
+        try {
+            start = log.position();
+            for (LogRequest request : batch) {
+                if (request.write == null && request.ackSeq >= lastSeq) {
+                    // everything is delivered; start the log over
+                    log.truncate(0);
+                    log.position(0);
+                    start = 0;
+                    truncated = true;
+                    continue;
+                }
+                writeRecord(request.payload);
+                if (request.write != null) {
+                    lastSeq = request.write.seq;
+                    wrote = true;
+                }
+            }
+            // acks alone aren't synced: losing one only means delivering its writes again after a restart
+            if (wrote || truncated) log.force(truncated);
+        } catch (IOException e) {
+            LOGGER.error("unable to append to " + logFile + "; rolling back to offset " + start, e);
+            IOException result = e;
+            try {
+                log.truncate(start);
+                log.position(start);
+                log.force(true);
+            } catch (IOException rollback) {
+                failure = new IOException("the write-queue log could not be rolled back; writes that were being logged "
+                        + "may still be delivered after a restart", rollback);
+                LOGGER.error(failure.getMessage(), rollback);
+                result = failure;
+            }
+            for (LogRequest request : batch) {
+                request.logged.completeExceptionally(result);
+            }
+            return;
+        }
+        loggedSeq = lastSeq;
+        synchronized (pending) {
+            for (LogRequest request : batch) {
+                if (request.write != null) pending.addLast(request.write);
+            }
+            pending.notifyAll();
+        }
+        for (LogRequest request : batch) {
+            request.logged.complete(null);
+        }
+    }
+
+    private void drain() {
+        long backoff = MIN_BACKOFF_MILLIS;
+        while (open) {
+            List<QueuedWrite> batch = new ArrayList<>();
+            synchronized (pending) {
+                while (open && pending.isEmpty()) {
+                    try {
+                        pending.wait();
+                    } catch (InterruptedException e) {
+                        // nobody interrupts the drainer; it only stops once closed
+                    }
+                }
+                // only durable writes are pending, so an ack can never get ahead of its write
+                Iterator<QueuedWrite> it = pending.iterator();
+                while (it.hasNext() && batch.size() < MAX_BATCH) {
+                    batch.add(it.next());
+                }
+            }
+            if (batch.isEmpty()) break; // closed
+            if (deliver(batch)) {
+                backoff = MIN_BACKOFF_MILLIS;
+            } else if (open) {
+                LOGGER.warn("write queue is unable to deliver to the endpoint; retrying in " + backoff + "ms");
+                waitWhileOpen(backoff);
+                backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+            }
+        }
+    }
+
+    /**
+     * Sends the coalesced batch, acknowledging progress after every request. A write that is skipped because a later
+     * put/delete overwrites it is only acknowledged once that write is delivered; if that write is rejected instead,
+     * the skipped one is sent after all (see {@link #revive}).
+     *
+     * @return false if the endpoint could not be reached, or failed the write in a way worth retrying
+     */
+    private boolean deliver(List<QueuedWrite> batch) {
+        // delivered, or rejected and dropped
+        boolean[] done = new boolean[batch.size()];
+        boolean[] rejected = new boolean[batch.size()];
+        int[] supersededBy = supersede(batch, rejected);
+        int acked = 0;
+
+        int i = 0;
+        while (i < batch.size() && open) {
+            if (done[i] || supersededBy[i] >= 0) {
+                i++;
+                continue;
+            }
+            QueuedWrite write = batch.get(i);
+            String jsonData = write.jsonData;
+            int end = i + 1;
+            if (write.method == Firebase.FirebaseRestMethod.PATCH) {
+                Map<String, Object> merged = null;
+                while (end < batch.size() && !done[end] && supersededBy[end] < 0 && canMergePatch(write, batch.get(end))) {
+                    try {
+                        if (merged == null) merged = new LinkedHashMap<>(JacksonUtility.GET_JSON_STRING_AS_MAP(jsonData));
+                        Map<String, Object> next = JacksonUtility.GET_JSON_STRING_AS_MAP(batch.get(end).jsonData);
+                        if (conflicts(merged.keySet(), next.keySet())) break;
+                        merged.putAll(next);
+                        end++;
+                    } catch (JacksonUtilityException e) {
+                        break;
+                    }
+                }
+                if (merged != null && end > i + 1) {
+                    try {
+                        jsonData = JacksonUtility.GET_JSON_STRING_FROM_MAP(merged);
+                    } catch (JacksonUtilityException e) {
+                        end = i + 1;
+                    }
+                }
+            }
+
+            int next = end;
+            try {
+                FirebaseResponse response = send(write, jsonData);
+                int code = response.getCode();
+                // a DELETE only counts as successful with 204 No Content, while Firebase answers 200
+                boolean delivered = response.getSuccess() || code >= 200 && code < 300;
+                if (!delivered && isRetryable(code)) {
+                    return false;
+                }
+                if (!delivered) {
+                    LOGGER.error("dropping queued write(" + write.method + ") @ " + write.path + " rejected with " + code + ": " + response.getRawBody());
+                    Arrays.fill(rejected, i, end, true);
+                    int[] now = supersede(batch, rejected);
+                    next = Math.min(end, revive(batch, supersededBy, now, done, rejected, i));
+                    supersededBy = now;
+                }
+            } catch (FirebaseException e) {
+                return false;
+            }
+            Arrays.fill(done, i, end, true);
+            acked = acknowledge(batch, supersededBy, done, acked);
+            i = next;
+        }
+        return true;
+    }
+
+    /**
+     * @return for every write of the batch, the index of the first later write that overwrites it (a put or delete
+     * of the same or an enclosing path, that wasn't rejected); -1 if there is none
+     */
+    private static int[] supersede(List<QueuedWrite> batch, boolean[] rejected) {
+        int[] supersededBy = new int[batch.size()];
+        for (int i = 0; i < batch.size(); i++) {
+            supersededBy[i] = -1;
+            for (int j = i + 1; j < batch.size(); j++) {
+                QueuedWrite later = batch.get(j);
+                if (!rejected[j]
+                        && later.method != Firebase.FirebaseRestMethod.PATCH
+                        && later.method != Firebase.FirebaseRestMethod.POST
+                        && later.path.contains(batch.get(i).path)) {
+                    supersededBy[i] = j;
+                    break;
+                }
+            }
+        }
+        return supersededBy;
+    }
+
+    /**
+     * Once a write is rejected, the writes before it that were only skipped for its sake have to be sent after all.
+     * Sending one late would clobber the writes delivered after it below its path (or patching it from above), so
+     * those are sent again too, in order, and the outcome is the same as if nothing had been skipped.
+     *
+     * @param before -- what supersedes what, with the rejected write
+     * @param after  -- and without it
+     * @param upTo   -- the index of the rejected write
+     * @return the index to resume sending from; the size of the batch if nothing is to be sent again
+     */
+    private static int revive(List<QueuedWrite> batch, int[] before, int[] after, boolean[] done, boolean[] rejected, int upTo) {
+        int first = batch.size();
+        for (int k = 0; k < upTo; k++) {
+            if (before[k] < 0 || after[k] >= 0) continue;
+            first = Math.min(first, k);
+            FirebasePath path = batch.get(k).path;
+            for (int m = k + 1; m < upTo; m++) {
+                QueuedWrite between = batch.get(m);
+                if (done[m] && !rejected[m] && (path.contains(between.path)
+                        || between.method == Firebase.FirebaseRestMethod.PATCH && between.path.contains(path))) {
+                    done[m] = false;
+                }
+            }
+        }
+        return first;
+    }
+
+    private FirebaseResponse send(QueuedWrite write, String jsonData) throws FirebaseException {
+        switch (write.method) {
+            case PUT:
+                return firebase.putAt(write.path, jsonData, write.queries);
+            case PATCH:
+                return firebase.patchAt(write.path, jsonData, write.queries);
+            case POST:
+                return firebase.postAt(write.path, jsonData, write.queries);
+            case DELETE:
+                return firebase.deleteAt(write.path, write.queries);
+            default:
+                throw new FirebaseException("unsupported queued method: " + write.method);
+        }
+    }
+
+    /**
+     * Acknowledges the writes at the start of the batch that are settled: delivered, dropped, or skipped for a later
+     * write that is settled itself. An ack covers every write up to its sequence number, so nothing past the first
+     * write still unsettled is acknowledged.
+     *
+     * @param acked -- how many writes at the start of the batch are acknowledged already
+     * @return how many are now
+     */
+    private int acknowledge(List<QueuedWrite> batch, int[] supersededBy, boolean[] done, int acked) {
+        boolean[] settled = new boolean[batch.size()];
+        for (int k = batch.size() - 1; k >= 0; k--) {
+            settled[k] = done[k] || supersededBy[k] >= 0 && settled[supersededBy[k]];
+        }
+        int settledEnd = acked;
+        while (settledEnd < batch.size() && settled[settledEnd]) {
+            settledEnd++;
+        }
+        if (settledEnd == acked) return acked;
+        long ackSeq = batch.get(settledEnd - 1).seq;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(16);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(RECORD_ACK);
+            out.writeLong(ackSeq);
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // a byte array can't fail to be written to
+        }
+        synchronized (pending) {
+            while (!pending.isEmpty() && pending.peekFirst().seq <= ackSeq) {
+                pending.pollFirst();
+            }
+            pending.notifyAll();
+        }
+        // not waited for: the writes are delivered; at worst they are delivered again after a restart
+        LogRequest request = new LogRequest(null, ackSeq, bytes.toByteArray());
+        request.logged.whenComplete((v, e) -> {
+            if (e != null) LOGGER.error("unable to acknowledge delivered writes in " + logFile, e);
+        });
+        synchronized (toLog) {
+            // a request that outlived close(); its writes are delivered again after a restart
+            if (closing) return settledEnd;
+            toLog.addLast(request);
+            toLog.notifyAll();
+        }
+        return settledEnd;
+    }
+
+    /**
+     * @return true if the write may succeed later as it is (ie: once a token is refreshed), so it must be kept
+     */
+    private static boolean isRetryable(int code) {
+        return code >= 500 || code == 429 || code == 401 || code == 403 || code == 408;
+    }
+
+    private static boolean canMergePatch(QueuedWrite first, QueuedWrite next) {
+        return next.method == Firebase.FirebaseRestMethod.PATCH
+                && next.path.equals(first.path)
+                && Arrays.equals(next.queries, first.queries);
+    }
+
+    /**
+     * Firebase rejects a multi-path update in which one key is an ancestor of another; merging must not create one.
+     */
+    private static boolean conflicts(Set<String> keys, Set<String> newKeys) {
+        for (String k : newKeys) {
+            FirebasePath nk = FirebasePath.of(k);
+            for (String existing : keys) {
+                FirebasePath ek = FirebasePath.of(existing);
+                if (!ek.equals(nk) && ek.overlaps(nk)) return true;
+            }
+        }
+        return false;
+    }
+
+    private void writeRecord(byte[] payload) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer record = ByteBuffer.allocate(payload.length + 12);
+        record.putInt(payload.length).put(payload).putLong(crc.getValue()).flip();
+        while (record.hasRemaining()) {
+            log.write(record);
+        }
+    }
+
+    private static byte[] encodeWrite(QueuedWrite write) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(RECORD_WRITE);
+        out.writeLong(write.seq);
+        out.writeByte(write.method.ordinal());
+        BinaryTreeCodec.writeString(out, write.path.toString());
+        out.writeBoolean(write.jsonData != null);
+        if (write.jsonData != null) BinaryTreeCodec.writeString(out, write.jsonData);
+        out.writeInt(write.queries.length);
+        for (NameValuePair q : write.queries) {
+            BinaryTreeCodec.writeString(out, q.getName());
+            BinaryTreeCodec.writeString(out, q.getValue());
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Reads the log left by a previous run into {@link #pending}.
+     *
+     * @return the length of the log up to (and including) its last intact record
+     */
+    private long recover() throws IOException {
+        if (!logFile.isFile()) return 0;
+
+        long validLength = 0;
+        long ackedSeq = 0;
+        try (FileChannel channel = FileChannel.open(logFile.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            CRC32 crc = new CRC32();
+            Firebase.FirebaseRestMethod[] methods = Firebase.FirebaseRestMethod.values();
+            while (buffer.remaining() >= 4) {
+                int length = buffer.getInt();
+                if (length <= 0 || buffer.remaining() < length + 8) break;
+                ByteBuffer payload = buffer.slice();
+                payload.limit(length);
+                buffer.position(buffer.position() + length);
+                crc.reset();
+                crc.update(payload.duplicate());
+                if (crc.getValue() != buffer.getLong()) break;
+
+                byte type = payload.get();
+                if (type == RECORD_ACK) {
+                    ackedSeq = Math.max(ackedSeq, payload.getLong());
+                } else {
+                    long seq = payload.getLong();
+                    Firebase.FirebaseRestMethod method = methods[payload.get()];
+                    FirebasePath path = FirebasePath.of(BinaryTreeCodec.readString(payload));
+                    String jsonData = payload.get() != 0 ? BinaryTreeCodec.readString(payload) : null;
+                    NameValuePair[] queries = new NameValuePair[payload.getInt()];
+                    for (int i = 0; i < queries.length; i++) {
+                        queries[i] = Firebase.query(BinaryTreeCodec.readString(payload), BinaryTreeCodec.readString(payload));
+                    }
+                    pending.addLast(new QueuedWrite(seq, method, path, jsonData, queries));
+                    nextSeq = Math.max(nextSeq, seq + 1);
+                }
+                validLength = buffer.position();
+            }
+        } catch (RuntimeException e) {
+            LOGGER.error("write-queue log is corrupt past offset " + validLength + "; discarding the rest", e);
+        }
+        final long acked = ackedSeq;
+        pending.removeIf(w -> w.seq <= acked);
+        nextSeq = Math.max(nextSeq, ackedSeq + 1);
+        return validLength;
+    }
+
+    /**
+     * Waits for the time to pass, or for the queue to be closed.
+     */
+    private void waitWhileOpen(long millis) {
+        long deadline = System.currentTimeMillis() + millis;
+        synchronized (pending) {
+            for (long left = millis; left > 0 && open; left = deadline - System.currentTimeMillis()) {
+                try {
+                    pending.wait(left);
+                } catch (InterruptedException e) {
+                    // nobody interrupts the drainer; it only stops once closed
+                }
+            }
+        }
+    }
+
+    /**
+     * Like {@link #join(Thread)}, for at most the given time.
+     *
+     * @return false if the thread is still running
+     */
+    private static boolean join(Thread thread, long timeoutMillis) {
+        boolean interrupted = false;
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        for (long left = timeoutMillis; left > 0 && thread.isAlive(); left = deadline - System.currentTimeMillis()) {
+            try {
+                thread.join(left);
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+        return !thread.isAlive();
+    }
+
+    /**
+     * Waits for the thread to finish, even if interrupted meanwhile (the interrupt is kept for the caller).
+     */
+    private static void join(Thread thread) {
+        boolean interrupted = false;
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+
+///////////////////////////////////////////////////////////////////////////////
+//
+// INTERNAL CLASSES
+//
+///////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * A record for the log writer: a write, or an ack of every write up to a sequence number.
+     */
+    private static class LogRequest {
+        /**
+         * null for an ack
+         */
+        private final QueuedWrite write;
+        private final long ackSeq;
+        private final byte[] payload;
+        private final CompletableFuture<Void> logged = new CompletableFuture<>();
+
+        private LogRequest(QueuedWrite write, long ackSeq, byte[] payload) {
+            this.write = write;
+            this.ackSeq = ackSeq;
+            this.payload = payload;
+        }
+    }
+
+    private static class QueuedWrite {
+        private final long seq;
+        private final Firebase.FirebaseRestMethod method;
+        private final FirebasePath path;
+        private final String jsonData;
+        private final NameValuePair[] queries;
+
+        private QueuedWrite(long seq, Firebase.FirebaseRestMethod method, FirebasePath path, String jsonData, NameValuePair[] queries) {
+            this.seq = seq;
+            this.method = method;
+            this.path = path;
+            this.jsonData = jsonData;
+            this.queries = queries == null ? new NameValuePair[0] : queries;
+        }
+    }
+
+}
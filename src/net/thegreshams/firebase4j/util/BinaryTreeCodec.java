@@ -0,0 +1,174 @@
+package net.thegreshams.firebase4j.util;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact tagged binary encoding of the trees Jackson produces (maps, lists, strings, numbers, booleans and nulls).
+ * <p>
+ * Every value is a one-byte tag followed by its payload; strings are written as a length-prefixed UTF-8 sequence so
+ * there is no 64k limit as with {@link DataOutput#writeUTF(String)}. Decoding works directly on a {@link ByteBuffer},
+ * which lets callers decode from a memory-mapped file without copying it onto the heap first.
+ */
+public class BinaryTreeCodec {
+
+	private static final byte TAG_NULL 			= 0;
+	private static final byte TAG_FALSE 		= 1;
+	private static final byte TAG_TRUE 			= 2;
+	private static final byte TAG_INT 			= 3;
+	private static final byte TAG_LONG 			= 4;
+	private static final byte TAG_DOUBLE 		= 5;
+	private static final byte TAG_STRING 		= 6;
+	private static final byte TAG_MAP 			= 7;
+	private static final byte TAG_LIST 			= 8;
+	private static final byte TAG_BIG_INTEGER 	= 9;
+	private static final byte TAG_BIG_DECIMAL 	= 10;
+
+
+
+	/**
+	 * Writes the value (and, recursively, all of its children) to the output.
+	 *
+	 * @param out -- destination of the encoded bytes
+	 * @param value -- a Map, List, String, Number, Boolean or null
+	 * @throws IOException if the output could not be written to, or the value is of an unsupported type
+	 */
+	public static void encode( DataOutput out, Object value ) throws IOException {
+
+		if( value == null ) {
+			out.writeByte( TAG_NULL );
+		}
+		else if( value instanceof Boolean ) {
+			out.writeByte( (Boolean) value ? TAG_TRUE : TAG_FALSE );
+		}
+		else if( value instanceof Integer || value instanceof Short || value instanceof Byte ) {
+			out.writeByte( TAG_INT );
+			out.writeInt( ((Number) value).intValue() );
+		}
+		else if( value instanceof Long ) {
+			out.writeByte( TAG_LONG );
+			out.writeLong( (Long) value );
+		}
+		else if( value instanceof BigInteger || value instanceof BigDecimal ) {
+			out.writeByte( value instanceof BigInteger ? TAG_BIG_INTEGER : TAG_BIG_DECIMAL );
+			writeString( out, value.toString() );
+		}
+		else if( value instanceof Number ) {
+			out.writeByte( TAG_DOUBLE );
+			out.writeDouble( ((Number) value).doubleValue() );
+		}
+		else if( value instanceof CharSequence ) {
+			out.writeByte( TAG_STRING );
+			writeString( out, value.toString() );
+		}
+		else if( value instanceof Map ) {
+			Map<?, ?> map = (Map<?, ?>) value;
+			out.writeByte( TAG_MAP );
+			out.writeInt( map.size() );
+			for( Map.Entry<?, ?> e : map.entrySet() ) {
+				writeString( out, String.valueOf(e.getKey()) );
+				encode( out, e.getValue() );
+			}
+		}
+		else if( value instanceof List ) {
+			List<?> list = (List<?>) value;
+			out.writeByte( TAG_LIST );
+			out.writeInt( list.size() );
+			for( Object o : list ) {
+				encode( out, o );
+			}
+		}
+		else {
+			throw new IOException( "unable to encode value of type " + value.getClass().getName() );
+		}
+	}
+
+	/**
+	 * Reads one value (and, recursively, all of its children) from the buffer's current position.
+	 *
+	 * @param in -- the buffer to decode from; its position is advanced past the value
+	 * @return the decoded value; maps are returned as LinkedHashMaps and lists as ArrayLists
+	 * @throws IOException if the buffer is truncated or contains an unknown tag
+	 */
+	public static Object decode( ByteBuffer in ) throws IOException {
+
+		try {
+
+			byte tag = in.get();
+			switch( tag ) {
+				case TAG_NULL:
+					return null;
+				case TAG_FALSE:
+					return Boolean.FALSE;
+				case TAG_TRUE:
+					return Boolean.TRUE;
+				case TAG_INT:
+					return in.getInt();
+				case TAG_LONG:
+					return in.getLong();
+				case TAG_DOUBLE:
+					return in.getDouble();
+				case TAG_STRING:
+					return readString( in );
+				case TAG_BIG_INTEGER:
+					return new BigInteger( readString(in) );
+				case TAG_BIG_DECIMAL:
+					return new BigDecimal( readString(in) );
+				case TAG_MAP: {
+					int size = in.getInt();
+					Map<String, Object> map = new LinkedHashMap<String, Object>( Math.max(16, size * 4 / 3 + 1) );
+					for( int i = 0; i < size; i++ ) {
+						String key = readString( in );
+						map.put( key, decode(in) );
+					}
+					return map;
+				}
+				case TAG_LIST: {
+					int size = in.getInt();
+					List<Object> list = new ArrayList<Object>( size );
+					for( int i = 0; i < size; i++ ) {
+						list.add( decode(in) );
+					}
+					return list;
+				}
+				default:
+					throw new IOException( "unknown tag " + tag + " at offset " + (in.position() - 1) );
+			}
+
+		} catch( BufferUnderflowException e ) {
+			throw new IOException( "buffer ended in the middle of a value", e );
+		}
+	}
+
+	/**
+	 * Writes a String as a length-prefixed UTF-8 sequence.
+	 */
+	public static void writeString( DataOutput out, String s ) throws IOException {
+		byte[] bytes = s.getBytes( StandardCharsets.UTF_8 );
+		out.writeInt( bytes.length );
+		out.write( bytes );
+	}
+
+	/**
+	 * Reads a String written by {@link #writeString(DataOutput, String)}.
+	 */
+	public static String readString( ByteBuffer in ) throws IOException {
+		int length = in.getInt();
+		if( length < 0 || length > in.remaining() ) {
+			throw new IOException( "invalid string length " + length + " at offset " + (in.position() - 4) );
+		}
+		byte[] bytes = new byte[length];
+		in.get( bytes );
+		return new String( bytes, StandardCharsets.UTF_8 );
+	}
+
+}
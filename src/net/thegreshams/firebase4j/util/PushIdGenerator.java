@@ -0,0 +1,105 @@
+package net.thegreshams.firebase4j.util;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Generates child keys in the format of Firebase push IDs (the keys a POST creates): 20 characters, of which the
+ * first 8 encode the time in milliseconds and the last 12 are random. Keys sort chronologically, both as strings and
+ * in the order Firebase gives keys, so children pushed with them are kept in the order they were created.
+ * <p>
+ * Keys of one generator are strictly increasing: within a millisecond the random part of the previous key is
+ * incremented rather than drawn again, and a clock that goes backwards is ignored until it catches up.
+ * Thread-safe.
+ */
+public final class PushIdGenerator {
+
+	/**
+	 * the characters of push IDs, in ascending ASCII order
+	 */
+	private static final String PUSH_CHARS = "-0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZ_abcdefghijklmnopqrstuvwxyz";
+
+	private static final PushIdGenerator DEFAULT = new PushIdGenerator();
+
+
+
+///////////////////////////////////////////////////////////////////////////////
+//
+// PROPERTIES & CONSTRUCTORS
+//
+///////////////////////////////////////////////////////////////////////////////
+
+	private long lastTime = 0;
+	private final int[] lastRandom = new int[12];
+
+	public PushIdGenerator() {
+	}
+
+
+
+///////////////////////////////////////////////////////////////////////////////
+//
+// PUBLIC API
+//
+///////////////////////////////////////////////////////////////////////////////
+
+	/**
+	 * @return the generator shared by the whole JVM
+	 */
+	public static PushIdGenerator getDefault() {
+		return DEFAULT;
+	}
+
+	/**
+	 * @return a key that sorts after every key this generator returned before
+	 */
+	public synchronized String next() {
+		long now = Math.max( System.currentTimeMillis(), this.lastTime );
+		if( now == this.lastTime ) {
+			int i = 11;
+			while( i >= 0 && this.lastRandom[i] == 63 ) {
+				this.lastRandom[i--] = 0;
+			}
+			if( i >= 0 ) {
+				this.lastRandom[i]++;
+			} else {
+				// 64^12 keys in one millisecond; borrows the next one
+				now++;
+			}
+		} else {
+			for( int i = 0; i < 12; i++ ) {
+				this.lastRandom[i] = ThreadLocalRandom.current().nextInt( 64 );
+			}
+		}
+		this.lastTime = now;
+
+		char[] id = new char[20];
+		for( int i = 7; i >= 0; i-- ) {
+			id[i] = PUSH_CHARS.charAt( (int) (now % 64) );
+			now /= 64;
+		}
+		for( int i = 0; i < 12; i++ ) {
+			id[8 + i] = PUSH_CHARS.charAt( this.lastRandom[i] );
+		}
+		return new String( id );
+	}
+
+	/**
+	 * @return when the key was generated, in milliseconds since the epoch
+	 * @throws IllegalArgumentException if the key is not a push ID
+	 */
+	public static long getTimestamp( String pushId ) {
+		if( pushId == null || pushId.length() != 20 ) {
+			throw new IllegalArgumentException( "not a push id: " + pushId );
+		}
+		long time = 0;
+		for( int i = 0; i < 8; i++ ) {
+			int c = PUSH_CHARS.indexOf( pushId.charAt(i) );
+			if( c < 0 ) {
+				throw new IllegalArgumentException( "not a push id: " + pushId );
+			}
+			time = time * 64 + c;
+		}
+		return time;
+	}
+
+}
@@ -0,0 +1,207 @@
+package net.thegreshams.firebase4j.model;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CompactNodeTest {
+
+	@Test
+	public void behavesLikeAMap() {
+		CompactNode node = new CompactNode();
+		assertTrue( node.isEmpty() );
+		assertNull( node.put("b", "2") );
+		assertNull( node.put("a", "1") );
+		assertNull( node.put("c", "3") );
+		assertEquals( "2", node.put("b", "two") );
+		assertEquals( 3, node.size() );
+		assertEquals( "two", node.get("b") );
+		assertTrue( node.containsKey("a") );
+		assertFalse( node.containsKey("d") );
+		assertNull( node.get("d") );
+
+		assertEquals( "1", node.remove("a") );
+		assertNull( node.remove("a") );
+		assertEquals( 2, node.size() );
+		assertEquals( Arrays.asList("b", "c"), new ArrayList<>(node.keySet()) );
+
+		node.clear();
+		assertTrue( node.isEmpty() );
+		node.put( "z", "26" );
+		assertEquals( "26", node.get("z") );
+	}
+
+	@Test
+	public void iteratesInKeyOrder() {
+		CompactNode node = new CompactNode();
+		for( int i = 0; i < 50; i++ ) {
+			node.put( "k" + (i * 7 % 50), i );
+		}
+		for( int i = 0; i < 50; i += 2 ) {
+			node.remove( "k" + i );
+		}
+		assertEquals( 25, node.size() );
+		String previous = "";
+		for( String key : node.keySet() ) {
+			assertTrue( key + " after " + previous, key.compareTo(previous) > 0 );
+			previous = key;
+		}
+	}
+
+	@Test
+	public void unboxedValuesKeepTheirType() {
+		CompactNode node = new CompactNode();
+		node.put( "int", 7 );
+		node.put( "long", 1L << 40 );
+		node.put( "double", -1.5 );
+		node.put( "true", true );
+		node.put( "false", false );
+		node.put( "string", "s" );
+		node.put( "null", null );
+
+		assertEquals( Integer.valueOf(7), node.get("int") );
+		assertEquals( Long.valueOf(1L << 40), node.get("long") );
+		assertEquals( Double.valueOf(-1.5), node.get("double") );
+		assertEquals( Boolean.TRUE, node.get("true") );
+		assertEquals( Boolean.FALSE, node.get("false") );
+		assertEquals( "s", node.get("string") );
+		assertNull( node.get("null") );
+		assertTrue( node.containsKey("null") );
+
+		// an unboxed slot that is overwritten with an object doesn't keep its old type
+		node.put( "int", "seven" );
+		assertEquals( "seven", node.get("int") );
+	}
+
+	@Test
+	public void equalToTheMapItWasBuiltFrom() {
+		Map<String, Object> map = new HashMap<>();
+		map.put( "age", 36 );
+		map.put( "score", 2.5 );
+		map.put( "admin", true );
+		map.put( "name", "ada" );
+		map.put( "nothing", null );
+		Object node = CompactNode.compact( map );
+
+		assertTrue( node instanceof CompactNode );
+		assertEquals( map, node );
+		assertEquals( node, map );
+		assertEquals( map.hashCode(), node.hashCode() );
+	}
+
+	@Test
+	public void compactConvertsNestedMapsAndLists() {
+		Map<String, Object> inner = new LinkedHashMap<>();
+		inner.put( "x", 1 );
+		List<Object> list = new ArrayList<>( Arrays.asList("a", inner) );
+		Map<String, Object> map = new LinkedHashMap<>();
+		map.put( "inner", inner );
+		map.put( "list", list );
+
+		CompactNode node = (CompactNode) CompactNode.compact( map );
+		assertTrue( node.get("inner") instanceof CompactNode );
+		List<?> compactList = (List<?>) node.get( "list" );
+		assertNotSame( list, compactList );
+		assertTrue( compactList.get(1) instanceof CompactNode );
+		assertEquals( map, node );
+
+		assertEquals( "s", CompactNode.compact("s") );
+		assertNull( CompactNode.compact(null) );
+		assertTrue( node == CompactNode.compact(node) );
+	}
+
+	@Test
+	public void entriesAndIteratorsWriteThrough() {
+		CompactNode node = new CompactNode();
+		node.put( "a", 1 );
+		node.put( "b", "2" );
+		node.put( "c", 3L );
+
+		Iterator<Map.Entry<String, Object>> it = node.entrySet().iterator();
+		while( it.hasNext() ) {
+			Map.Entry<String, Object> entry = it.next();
+			if( entry.getKey().equals("a") ) {
+				assertEquals( 1, entry.setValue(false) );
+			} else if( entry.getKey().equals("b") ) {
+				it.remove();
+			}
+		}
+		Map<String, Object> expected = new HashMap<>();
+		expected.put( "a", false );
+		expected.put( "c", 3L );
+		assertEquals( expected, node );
+	}
+
+	@Test
+	public void nodesOfTheSameShapeDontSeeEachOthersChanges() {
+		Map<String, Object> record = new HashMap<>();
+		record.put( "age", 1 );
+		record.put( "name", "n" );
+		CompactNode first = (CompactNode) CompactNode.compact( record );
+		CompactNode second = (CompactNode) CompactNode.compact( record );
+
+		first.remove( "age" );
+		first.put( "zeta", "z" );
+		second.put( "name", "m" );
+
+		assertEquals( Arrays.asList("name", "zeta"), new ArrayList<>(first.keySet()) );
+		assertEquals( "n", first.get("name") );
+		assertEquals( Arrays.asList("age", "name"), new ArrayList<>(second.keySet()) );
+		assertEquals( 1, second.get("age") );
+		assertEquals( "m", second.get("name") );
+		assertEquals( record, CompactNode.compact(record) );
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void copyIsIndependent() {
+		Map<String, Object> inner = new HashMap<>();
+		inner.put( "x", 1 );
+		Map<String, Object> map = new HashMap<>();
+		map.put( "inner", inner );
+		map.put( "list", new ArrayList<>(Arrays.asList(1, 2)) );
+		map.put( "d", 0.5 );
+		CompactNode node = (CompactNode) CompactNode.compact( map );
+
+		CompactNode copy = node.copy();
+		assertEquals( node, copy );
+		assertNotSame( node.get("inner"), copy.get("inner") );
+		assertNotSame( node.get("list"), copy.get("list") );
+
+		((CompactNode) copy.get( "inner" )).put( "y", 2 );
+		((List<Object>) copy.get( "list" )).add( 3 );
+		copy.put( "d", 1.5 );
+		copy.remove( "list" );
+		assertEquals( map, node );
+		assertEquals( 0.5, (Double) node.get("d"), 0 );
+	}
+
+	@Test( expected = NullPointerException.class )
+	public void rejectsANullKey() {
+		new CompactNode().put( null, "x" );
+	}
+
+	@Test
+	public void lookupsWithOtherKeyTypesFindNothing() {
+		CompactNode node = new CompactNode();
+		node.put( "1", "one" );
+		assertNull( node.get(1) );
+		assertFalse( node.containsKey(1) );
+		assertNull( node.remove(1) );
+		assertNull( node.get(null) );
+		assertEquals( 1, node.size() );
+	}
+
+}
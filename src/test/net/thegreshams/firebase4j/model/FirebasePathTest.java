@@ -0,0 +1,114 @@
+package net.thegreshams.firebase4j.model;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class FirebasePathTest {
+
+	@Test
+	public void parsingIgnoresEmptySegments() {
+		FirebasePath path = FirebasePath.of( "a/b" );
+		assertEquals( path, FirebasePath.of("/a/b/") );
+		assertEquals( path, FirebasePath.of("a//b") );
+		assertEquals( path, FirebasePath.of(" /a/b ") );
+		assertEquals( path.hashCode(), FirebasePath.of("/a/b/").hashCode() );
+		assertNotEquals( path, FirebasePath.of("a/c") );
+		assertNotEquals( path, FirebasePath.of("a") );
+
+		assertSame( FirebasePath.ROOT, FirebasePath.of(null) );
+		assertSame( FirebasePath.ROOT, FirebasePath.of("") );
+		assertSame( FirebasePath.ROOT, FirebasePath.of("///") );
+	}
+
+	@Test
+	public void navigation() {
+		FirebasePath path = FirebasePath.of( "users/alice/name" );
+		assertEquals( 3, path.depth() );
+		assertEquals( "name", path.getKey() );
+		assertEquals( FirebasePath.of("users/alice"), path.parent() );
+		assertEquals( path, FirebasePath.of("users").child("alice/name") );
+		assertEquals( path, FirebasePath.of("users").child(FirebasePath.of("alice/name")) );
+		assertSame( path, path.child((String) null) );
+		assertSame( path, path.child(FirebasePath.ROOT) );
+		assertArrayEquals( new String[]{"users", "alice", "name"}, path.segments() );
+		assertEquals( FirebasePath.of("users"), path.ancestor(1) );
+		assertSame( FirebasePath.ROOT, path.ancestor(0) );
+
+		assertTrue( FirebasePath.ROOT.isRoot() );
+		assertEquals( 0, FirebasePath.ROOT.depth() );
+		assertNull( FirebasePath.ROOT.parent() );
+		assertNull( FirebasePath.ROOT.getKey() );
+	}
+
+	@Test
+	public void containsAndOverlaps() {
+		FirebasePath a = FirebasePath.of( "a" );
+		FirebasePath ab = FirebasePath.of( "a/b" );
+		FirebasePath ac = FirebasePath.of( "a/c" );
+		assertTrue( a.contains(a) );
+		assertTrue( a.contains(ab) );
+		assertFalse( ab.contains(a) );
+		assertFalse( ab.contains(ac) );
+		assertFalse( a.contains(null) );
+		assertTrue( FirebasePath.ROOT.contains(ab) );
+		// a segment that merely starts with the other one is not below it
+		assertFalse( a.contains(FirebasePath.of("ab")) );
+
+		assertTrue( ab.overlaps(a) );
+		assertTrue( a.overlaps(ab) );
+		assertFalse( ab.overlaps(ac) );
+	}
+
+	@Test
+	public void relativize() {
+		FirebasePath a = FirebasePath.of( "a" );
+		assertEquals( FirebasePath.of("b/c"), a.relativize(FirebasePath.of("a/b/c")) );
+		assertEquals( FirebasePath.of("a/b"), FirebasePath.ROOT.relativize(FirebasePath.of("a/b")) );
+		assertSame( FirebasePath.ROOT, a.relativize(a) );
+		assertEquals( FirebasePath.of("a/b/c"), a.child(a.relativize(FirebasePath.of("a/b/c"))) );
+	}
+
+	@Test( expected = IllegalArgumentException.class )
+	public void relativizeRejectsAPathOutsideThisOne() {
+		FirebasePath.of( "a/b" ).relativize( FirebasePath.of("a/c") );
+	}
+
+	@Test
+	public void urlPathEncodesEverySegment() {
+		assertEquals( "", FirebasePath.ROOT.toUrlPath() );
+		assertEquals( "/users/alice", FirebasePath.of("users/alice").toUrlPath() );
+		assertEquals( "/a%20b", FirebasePath.of("a b").toUrlPath() );
+		assertEquals( "/%C3%A9", FirebasePath.of("é").toUrlPath() );
+		assertEquals( "/a%3Fb%23c", FirebasePath.of("a?b#c").toUrlPath() );
+	}
+
+	@Test
+	public void urlPathKeepsEscapesButEncodesStrayPercents() {
+		assertEquals( "/a%20b", FirebasePath.of("a%20b").toUrlPath() );
+		assertEquals( "/100%25", FirebasePath.of("100%").toUrlPath() );
+		assertEquals( "/x%252", FirebasePath.of("x%2").toUrlPath() );
+		assertEquals( "/x%25zz", FirebasePath.of("x%zz").toUrlPath() );
+	}
+
+	@Test
+	public void toStringStartsWithASlash() {
+		assertEquals( "/", FirebasePath.ROOT.toString() );
+		assertEquals( "/a", FirebasePath.of("a").toString() );
+		assertEquals( "/a/b", FirebasePath.of("a/b/").toString() );
+	}
+
+	@Test
+	public void orderingComparesSegmentBySegment() {
+		assertTrue( FirebasePath.of("a").compareTo(FirebasePath.of("a/b")) < 0 );
+		assertTrue( FirebasePath.of("a/c").compareTo(FirebasePath.of("a/b/z")) > 0 );
+		assertEquals( 0, FirebasePath.of("a/b").compareTo(FirebasePath.of("/a/b/")) );
+	}
+
+}
@@ -0,0 +1,179 @@
+package net.thegreshams.firebase4j.service;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CachePersistenceTest {
+
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("cache-persistence").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) file.delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void snapshotAndJournalRoundTrip() throws Throwable {
+        Map<String, Object> tree = new LinkedHashMap<>();
+        Map<String, Object> users = new LinkedHashMap<>();
+        users.put("name", "ada");
+        users.put("age", 36L);
+        users.put("admin", true);
+        users.put("score", 1.5);
+        users.put("tags", new ArrayList<>(Arrays.asList("a", "b")));
+        tree.put("users", users);
+
+        CachePersistence persistence = new CachePersistence(directory);
+        persistence.load(restored -> assertTrue(restored.isEmpty()), (path, data) -> { throw new AssertionError(path); });
+        persistence.compact(tree);
+        persistence.append("users/name", "grace");
+        persistence.append("counter", 7L);
+        persistence.close();
+        assertTrue(new File(directory, CachePersistence.SNAPSHOT_FILE_NAME).isFile());
+        assertFalse(new File(directory, CachePersistence.PREVIOUS_JOURNAL_FILE_NAME).exists());
+
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        List<String> replayed = new ArrayList<>();
+        persistence = new CachePersistence(directory);
+        persistence.load(snapshot::putAll, (path, data) -> replayed.add(path + "=" + data));
+        persistence.close();
+
+        assertEquals(tree, snapshot);
+        assertEquals(Arrays.asList("users/name=grace", "counter=7"), replayed);
+    }
+
+    @Test
+    public void backgroundCompactionKeepsEveryAppend() throws Throwable {
+        Map<String, Object> tree = new LinkedHashMap<>();
+        CachePersistence persistence = new CachePersistence(directory, 5);
+        persistence.load(tree::putAll, tree::put);
+        for (int i = 0; i < 23; i++) {
+            tree.put("k" + i, (long) i);
+            persistence.append("k" + i, (long) i);
+            if (persistence.needsCompaction()) persistence.compactInBackground(new LinkedHashMap<>(tree));
+        }
+        persistence.close();
+        assertFalse(new File(directory, CachePersistence.PREVIOUS_JOURNAL_FILE_NAME).exists());
+
+        assertEquals(tree, reload());
+    }
+
+    @Test
+    public void replaysJournalLeftBehindByAnUnfinishedCompaction() throws Throwable {
+        CachePersistence persistence = new CachePersistence(directory);
+        persistence.load(tree -> { }, (path, data) -> { });
+        persistence.append("a", "1");
+        persistence.append("b", "2");
+        persistence.close();
+        // a crash after the journal was set aside, but before the snapshot was in place
+        Files.move(journal().toPath(), previousJournal().toPath());
+
+        persistence = new CachePersistence(directory);
+        List<String> replayed = new ArrayList<>();
+        persistence.load(tree -> { }, (path, data) -> replayed.add(path + "=" + data));
+        persistence.append("c", "3");
+        persistence.close();
+        assertEquals(Arrays.asList("a=1", "b=2"), replayed);
+        assertFalse(previousJournal().exists());
+
+        Map<String, Object> expected = new LinkedHashMap<>();
+        expected.put("a", "1");
+        expected.put("b", "2");
+        expected.put("c", "3");
+        assertEquals(expected, reload());
+    }
+
+    @Test
+    public void tornTailIsDroppedAndLaterAppendsSurvive() throws Throwable {
+        CachePersistence persistence = new CachePersistence(directory);
+        persistence.load(tree -> { }, (path, data) -> { });
+        persistence.append("a", "1");
+        persistence.append("b", "2");
+        persistence.close();
+        // a record cut short by a crash: its length says 9 bytes, only 2 made it
+        Files.write(journal().toPath(), new byte[]{0, 0, 0, 9, 1, 2}, StandardOpenOption.APPEND);
+
+        Map<String, Object> tree = new LinkedHashMap<>();
+        persistence = new CachePersistence(directory);
+        persistence.load(tree::putAll, tree::put);
+        persistence.append("c", "3");
+        persistence.close();
+
+        Map<String, Object> expected = new LinkedHashMap<>();
+        expected.put("a", "1");
+        expected.put("b", "2");
+        assertEquals(expected, tree);
+        expected.put("c", "3");
+        assertEquals(expected, reload());
+    }
+
+    @Test
+    public void undecodableRecordWithAValidChecksumEndsTheReplay() throws Throwable {
+        CachePersistence persistence = new CachePersistence(directory);
+        persistence.load(tree -> { }, (path, data) -> { });
+        persistence.append("a", "1");
+        persistence.close();
+        // a string header claiming more bytes than the record holds
+        byte[] payload = {0, 1, 'z'};
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer record = ByteBuffer.allocate(payload.length + 12);
+        record.putInt(payload.length).put(payload).putLong(crc.getValue());
+        Files.write(journal().toPath(), record.array(), StandardOpenOption.APPEND);
+
+        Map<String, Object> tree = new LinkedHashMap<>();
+        persistence = new CachePersistence(directory);
+        persistence.load(tree::putAll, tree::put);
+        persistence.append("b", "2");
+        persistence.close();
+
+        Map<String, Object> expected = new LinkedHashMap<>();
+        expected.put("a", "1");
+        assertEquals(expected, tree);
+        expected.put("b", "2");
+        assertEquals(expected, reload());
+    }
+
+    private File journal() {
+        return new File(directory, CachePersistence.JOURNAL_FILE_NAME);
+    }
+
+    private File previousJournal() {
+        return new File(directory, CachePersistence.PREVIOUS_JOURNAL_FILE_NAME);
+    }
+
+    private Map<String, Object> reload() throws Throwable {
+        Map<String, Object> tree = new LinkedHashMap<>();
+        CachePersistence persistence = new CachePersistence(directory);
+        persistence.load(tree::putAll, tree::put);
+        persistence.close();
+        return tree;
+    }
+
+}
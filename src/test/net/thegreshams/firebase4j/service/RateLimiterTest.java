@@ -0,0 +1,171 @@
+package net.thegreshams.firebase4j.service;
+
+import net.thegreshams.firebase4j.error.FirebaseException;
+import net.thegreshams.firebase4j.model.FirebasePath;
+import net.thegreshams.firebase4j.service.Firebase.FirebaseRestMethod;
+import net.thegreshams.firebase4j.service.RateLimiter.Priority;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RateLimiterTest {
+
+    private static final FirebasePath A = FirebasePath.of("a/x");
+    private static final FirebasePath B = FirebasePath.of("b/x");
+
+    @After
+    public void tearDown() {
+        RateLimiter.setThreadPriority(null);
+    }
+
+    @Test
+    public void burstIsSentAtOnceThenTheRateApplies() throws Throwable {
+        RateLimiter limiter = new RateLimiter();
+        limiter.setLimit(10, 5);
+        for (int i = 0; i < 5; i++) {
+            assertEquals("request " + i, 0, limiter.acquire(FirebaseRestMethod.GET, A, Priority.INTERACTIVE));
+        }
+        long waited = limiter.acquire(FirebaseRestMethod.GET, A, Priority.INTERACTIVE);
+        assertTrue("waited " + waited, waited >= TimeUnit.MILLISECONDS.toNanos(50));
+    }
+
+    @Test
+    public void noLimitMeansNoWait() throws Throwable {
+        RateLimiter limiter = new RateLimiter();
+        limiter.setLimit(10, 1);
+        limiter.setLimit(0, 1);
+        for (int i = 0; i < 100; i++) {
+            assertEquals(0, limiter.acquire(FirebaseRestMethod.GET, A, Priority.BULK));
+        }
+    }
+
+    @Test
+    public void bulkRequestsLeaveTheReserveToInteractiveOnes() throws Throwable {
+        RateLimiter limiter = new RateLimiter();
+        limiter.setLimit(1, 8);
+        assertEquals(RateLimiter.DEFAULT_BULK_RESERVE, limiter.getBulkReserve(), 0);
+
+        // 0.75 of the 7 permits beyond the first one, plus the first one
+        for (int i = 0; i < 6; i++) {
+            assertEquals("bulk request " + i, 0, limiter.acquire(FirebaseRestMethod.GET, A, Priority.BULK));
+        }
+        Acquirer bulk = acquireInBackground(limiter, FirebaseRestMethod.GET, A, Priority.BULK);
+        assertBlocked(bulk);
+        // the reserve is still there for interactive requests
+        assertEquals(0, limiter.acquire(FirebaseRestMethod.GET, A, Priority.INTERACTIVE));
+        assertEquals(0, limiter.acquire(FirebaseRestMethod.GET, A, Priority.INTERACTIVE));
+        assertInterruptedWhileWaiting(bulk);
+    }
+
+    @Test
+    public void blockedBulkRequestHoldsNoPermits() throws Throwable {
+        RateLimiter limiter = new RateLimiter();
+        limiter.setLimit(1, 4);
+        limiter.setLimit("a", 1, 1);
+        limiter.setBulkReserve(0);
+
+        assertEquals(0, limiter.acquire(FirebaseRestMethod.GET, A, Priority.INTERACTIVE));
+        Acquirer bulk = acquireInBackground(limiter, FirebaseRestMethod.GET, A, Priority.BULK);
+        assertBlocked(bulk);
+        // had the bulk request taken a global permit while waiting for 'a', one of these would wait
+        for (int i = 0; i < 3; i++) {
+            assertEquals("interactive request " + i, 0, limiter.acquire(FirebaseRestMethod.GET, B, Priority.INTERACTIVE));
+        }
+        assertInterruptedWhileWaiting(bulk);
+    }
+
+    @Test
+    public void methodAndPathLimitsOnlyApplyToTheirRequests() throws Throwable {
+        RateLimiter limiter = new RateLimiter();
+        limiter.setLimit(FirebaseRestMethod.PUT, 1, 1);
+        limiter.setLimit("a", 1, 2);
+
+        assertEquals(0, limiter.acquire(FirebaseRestMethod.PUT, B, Priority.INTERACTIVE));
+        assertEquals(0, limiter.acquire(FirebaseRestMethod.GET, A, Priority.INTERACTIVE));
+        assertEquals(0, limiter.acquire(FirebaseRestMethod.GET, A, Priority.INTERACTIVE));
+        for (int i = 0; i < 10; i++) {
+            assertEquals(0, limiter.acquire(FirebaseRestMethod.GET, B, Priority.INTERACTIVE));
+        }
+        assertBlocked(acquireInBackground(limiter, FirebaseRestMethod.PUT, B, Priority.BULK));
+        assertBlocked(acquireInBackground(limiter, FirebaseRestMethod.GET, A, Priority.BULK));
+    }
+
+    @Test
+    public void threadPriorityOverridesTheClients() throws Throwable {
+        RateLimiter limiter = new RateLimiter();
+        limiter.setLimit(1, 2);
+        limiter.setBulkReserve(1);
+        assertEquals(0, limiter.acquire(FirebaseRestMethod.GET, A, Priority.INTERACTIVE));
+
+        // the permit left is reserved for interactive requests, so a thread that overrides its priority waits
+        Acquirer bulk = new Acquirer(limiter, FirebaseRestMethod.GET, A, Priority.INTERACTIVE) {
+            @Override
+            public void run() {
+                RateLimiter.setThreadPriority(Priority.BULK);
+                super.run();
+            }
+        };
+        bulk.start();
+        assertBlocked(bulk);
+        assertInterruptedWhileWaiting(bulk);
+        assertEquals(0, limiter.acquire(FirebaseRestMethod.GET, A, Priority.INTERACTIVE));
+
+        assertNull(RateLimiter.setThreadPriority(Priority.BULK));
+        assertEquals(Priority.BULK, RateLimiter.setThreadPriority(Priority.INTERACTIVE));
+        assertEquals(Priority.INTERACTIVE, RateLimiter.setThreadPriority(null));
+        assertNull(RateLimiter.setThreadPriority(null));
+    }
+
+    private static Acquirer acquireInBackground(RateLimiter limiter, FirebaseRestMethod method, FirebasePath path, Priority priority) {
+        Acquirer acquirer = new Acquirer(limiter, method, path, priority);
+        acquirer.start();
+        return acquirer;
+    }
+
+    private static void assertBlocked(Thread thread) throws InterruptedException {
+        thread.join(300);
+        assertTrue("stopped waiting", thread.isAlive());
+    }
+
+    private static void assertInterruptedWhileWaiting(Acquirer acquirer) throws InterruptedException {
+        acquirer.interrupt();
+        acquirer.join(5000);
+        assertFalse(acquirer.isAlive());
+        assertTrue(String.valueOf(acquirer.failure), acquirer.failure instanceof FirebaseException);
+    }
+
+    /**
+     * Acquires a permit on a thread of its own, and keeps what it failed with.
+     */
+    private static class Acquirer extends Thread {
+        private final RateLimiter limiter;
+        private final FirebaseRestMethod method;
+        private final FirebasePath path;
+        private final Priority priority;
+        private volatile Throwable failure;
+
+        Acquirer(RateLimiter limiter, FirebaseRestMethod method, FirebasePath path, Priority priority) {
+            this.limiter = limiter;
+            this.method = method;
+            this.path = path;
+            this.priority = priority;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                limiter.acquire(method, path, priority);
+            } catch (Throwable e) {
+                failure = e;
+            }
+        }
+    }
+
+}
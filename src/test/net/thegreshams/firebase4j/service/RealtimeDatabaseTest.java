@@ -0,0 +1,95 @@
+package net.thegreshams.firebase4j.service;
+
+import net.thegreshams.firebase4j.model.CompactNode;
+import net.thegreshams.firebase4j.model.FirebasePath;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+public class RealtimeDatabaseTest {
+
+    private static final FirebasePath ROOT = FirebasePath.of("users");
+
+    @Test
+    public void identicalDataHasNoChanges() {
+        Map<String, Object> data = user("ada", 36L);
+        assertEquals(Collections.emptyList(), diff(data, user("ada", 36L)));
+    }
+
+    @Test
+    public void onlyTheChangedLeafIsWritten() {
+        Map<String, Object> current = tree("alice", user("ada", 36L), "bob", user("bob", 40L));
+        Map<String, Object> data = tree("alice", user("ada", 37L), "bob", user("bob", 40L));
+        assertEquals(Collections.singletonList("/users/alice/age=37"), diff(current, data));
+    }
+
+    @Test
+    public void removedKeysAreWrittenAsNullAndAddedOnesAsAWhole() {
+        Map<String, Object> current = tree("alice", user("ada", 36L), "bob", user("bob", 40L));
+        Map<String, Object> data = tree("alice", user("ada", 36L), "carol", user("carol", 50L));
+        assertEquals(Arrays.asList("/users/carol={age=50, name=carol}", "/users/bob=null"), diff(current, data));
+    }
+
+    @Test
+    public void missingOrEmptyCurrentDataIsReplacedAsAWhole() {
+        Map<String, Object> data = user("ada", 36L);
+        assertEquals(Collections.singletonList("/users={age=36, name=ada}"), diff(null, data));
+        assertEquals(Collections.singletonList("/users={age=36, name=ada}"), diff(new LinkedHashMap<>(), data));
+        assertEquals(Collections.singletonList("/users=null"), diff(data, null));
+    }
+
+    @Test
+    public void changesOfTypeReplaceTheSubtree() {
+        Map<String, Object> current = tree("alice", user("ada", 36L));
+        assertEquals(Collections.singletonList("/users/alice=gone"), diff(current, tree("alice", "gone")));
+        assertEquals(Collections.singletonList("/users/alice={age=36, name=ada}"), diff(tree("alice", "gone"), current));
+    }
+
+    @Test
+    public void listsAreComparedAsAWhole() {
+        Map<String, Object> current = tree("tags", new ArrayList<>(Arrays.asList("a", "b")));
+        assertEquals(Collections.emptyList(), diff(current, tree("tags", new ArrayList<>(Arrays.asList("a", "b")))));
+        assertEquals(Collections.singletonList("/users/tags=[a, c]"), diff(current, tree("tags", Arrays.asList("a", "c"))));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void compactCacheEqualToThePolledDataHasNoChanges() {
+        Map<String, Object> data = tree("alice", user("ada", 36L), "bob", user("bob", 40L));
+        Object current = CompactNode.compact(tree("alice", user("ada", 36L), "bob", user("bob", 40L)));
+        assertEquals(Collections.emptyList(), diff(current, data));
+        ((Map<String, Object>) current).remove("bob");
+        assertEquals(Collections.singletonList("/users/bob={age=40, name=bob}"), diff(current, data));
+    }
+
+    private static List<String> diff(Object current, Object data) {
+        List<FirebasePath> changedPaths = new ArrayList<>();
+        List<Object> changedData = new ArrayList<>();
+        RealtimeDatabase.diff(ROOT, current, data, changedPaths, changedData);
+        List<String> result = new ArrayList<>();
+        for (int i = 0; i < changedPaths.size(); i++) {
+            result.add(changedPaths.get(i) + "=" + changedData.get(i));
+        }
+        return result;
+    }
+
+    private static Map<String, Object> user(String name, long age) {
+        return tree("age", age, "name", name);
+    }
+
+    private static Map<String, Object> tree(Object... keysAndValues) {
+        Map<String, Object> result = new LinkedHashMap<>();
+        for (int i = 0; i < keysAndValues.length; i += 2) {
+            result.put((String) keysAndValues[i], keysAndValues[i + 1]);
+        }
+        return result;
+    }
+
+}
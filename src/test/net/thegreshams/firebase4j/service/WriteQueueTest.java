@@ -0,0 +1,452 @@
+package net.thegreshams.firebase4j.service;
+
+import net.thegreshams.firebase4j.error.FirebaseException;
+import net.thegreshams.firebase4j.model.FirebasePath;
+import net.thegreshams.firebase4j.model.FirebaseResponse;
+import org.apache.http.NameValuePair;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class WriteQueueTest {
+
+    private File directory;
+    private final List<AutoCloseable> toClose = new ArrayList<>();
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("write-queue").toFile();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (AutoCloseable closeable : toClose) {
+            closeable.close();
+        }
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) file.delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void coalescesOverwrittenWritesAndMergesPatches() throws Throwable {
+        RecordingFirebase firebase = new RecordingFirebase();
+        firebase.holdAt = FirebasePath.of("gate");
+        WriteQueue queue = open(firebase);
+        queue.put("gate", "0");
+        assertTrue(firebase.held.await(5, TimeUnit.SECONDS));
+
+        queue.put("a", "{\"x\":1}");
+        queue.put("a", "{\"x\":2}");
+        queue.patch("b", "{\"p\":1}");
+        queue.patch("b", "{\"q\":2}");
+        queue.put("c/d", "1");
+        queue.delete("c");
+        queue.post("e", "{\"v\":1}");
+        firebase.release.countDown();
+
+        assertTrue(queue.awaitDrained(5000));
+        assertEquals(Arrays.asList(
+                "PUT /gate 0",
+                "PUT /a {\"x\":2}",
+                "PATCH /b {\"p\":1,\"q\":2}",
+                "DELETE /c",
+                "POST /e {\"v\":1}"), firebase.sent());
+    }
+
+    @Test
+    public void sendsASkippedWriteOnceItsSupersederIsRejected() throws Throwable {
+        RecordingFirebase firebase = new RecordingFirebase();
+        firebase.holdAt = FirebasePath.of("gate");
+        WriteQueue queue = open(firebase);
+        queue.put("gate", "0");
+        assertTrue(firebase.held.await(5, TimeUnit.SECONDS));
+
+        queue.put("p", "{\"v\":1}");
+        queue.put("p", "{\"reject\":1}");
+        firebase.release.countDown();
+
+        assertTrue(queue.awaitDrained(5000));
+        assertEquals(Arrays.asList(
+                "PUT /gate 0",
+                "PUT /p {\"reject\":1}",
+                "PUT /p {\"v\":1}"), firebase.sent());
+    }
+
+    @Test
+    public void retriesServerErrorsAndAuthFailuresButDropsRejectedWrites() throws Throwable {
+        RecordingFirebase firebase = new RecordingFirebase();
+        firebase.status = 503;
+        WriteQueue queue = open(firebase);
+        queue.put("a", "1");
+        firebase.awaitSent(2);
+        assertEquals(1, queue.size());
+
+        firebase.status = 401;
+        int attempts = firebase.sent().size();
+        firebase.awaitSent(attempts + 1);
+        assertEquals(1, queue.size());
+
+        firebase.status = 200;
+        assertTrue(queue.awaitDrained(10_000));
+
+        queue.put("b", "{\"reject\":1}");
+        queue.put("c", "1");
+        assertTrue(queue.awaitDrained(5000));
+        List<String> sent = firebase.sent();
+        assertEquals(Arrays.asList("PUT /b {\"reject\":1}", "PUT /c 1"), sent.subList(sent.size() - 2, sent.size()));
+    }
+
+    @Test
+    public void recoversTheUnacknowledgedWritesAfterACrashMidBatch() throws Throwable {
+        RecordingFirebase first = new RecordingFirebase();
+        first.holdAt = FirebasePath.of("b");
+        WriteQueue queue = new WriteQueue(first, directory);
+        queue.put("a", "1");
+        queue.put("b", "2");
+        queue.put("c", "3");
+        assertTrue(first.held.await(5, TimeUnit.SECONDS));
+        // the request for b never comes back: the log is closed under it, as if the process died
+        queue.close(100);
+        first.release.countDown();
+        // and the last record was only partly written
+        Files.write(new File(directory, WriteQueue.LOG_FILE_NAME).toPath(), new byte[]{0, 0, 0, 40, 0, 0, 0},
+                StandardOpenOption.APPEND);
+
+        RecordingFirebase second = new RecordingFirebase();
+        second.status = 503;
+        queue = new WriteQueue(second, directory);
+        assertEquals(2, queue.size());
+        queue.put("d", "4");
+        queue.close();
+
+        RecordingFirebase third = new RecordingFirebase();
+        queue = open(third);
+        assertTrue(queue.awaitDrained(5000));
+        assertEquals(Arrays.asList("PUT /b 2", "PUT /c 3", "PUT /d 4"), third.sent());
+    }
+
+    @Test
+    public void groupCommitsConcurrentWritesAndKeepsTheirOrder() throws Throwable {
+        RecordingFirebase firebase = new RecordingFirebase();
+        firebase.status = 503;
+        WriteQueue queue = open(firebase);
+        FaultyChannel log = FaultyChannel.install(queue);
+        int threads = 8;
+        int writes = 100;
+        List<Thread> writers = new ArrayList<>();
+        List<Throwable> failures = Collections.synchronizedList(new ArrayList<>());
+        for (int t = 0; t < threads; t++) {
+            int writer = t;
+            writers.add(new Thread(() -> {
+                try {
+                    for (int n = 0; n < writes; n++) {
+                        queue.put("t" + writer + "/" + n, Integer.toString(n));
+                    }
+                } catch (Throwable e) {
+                    failures.add(e);
+                }
+            }));
+        }
+        writers.forEach(Thread::start);
+        for (Thread writer : writers) writer.join();
+        assertEquals(Collections.emptyList(), failures);
+        assertEquals(threads * writes, queue.size());
+        assertTrue("expected fewer syncs than writes, was " + log.forces.get(), log.forces.get() < threads * writes);
+
+        firebase.status = 200;
+        assertTrue(queue.awaitDrained(10_000));
+        int[] next = new int[threads];
+        for (String request : firebase.delivered()) {
+            // ie: 'PUT /t3/17 17'
+            String[] parts = request.split("[ /]");
+            int writer = Integer.parseInt(parts[2].substring(1));
+            assertEquals(request, next[writer]++, Integer.parseInt(parts[3]));
+        }
+        for (int t = 0; t < threads; t++) {
+            assertEquals(writes, next[t]);
+        }
+    }
+
+    @Test
+    public void rollsBackABatchThatFailsToBeLogged() throws Throwable {
+        RecordingFirebase firebase = new RecordingFirebase();
+        firebase.status = 503;
+        WriteQueue queue = new WriteQueue(firebase, directory);
+        FaultyChannel log = FaultyChannel.install(queue);
+        queue.put("a", "1");
+        log.failWrites = true;
+        try {
+            queue.put("b", "2");
+            fail("the write was logged");
+        } catch (FirebaseException expected) {
+        }
+        log.failWrites = false;
+        queue.put("c", "3");
+        assertEquals(2, queue.size());
+        queue.close();
+
+        RecordingFirebase next = new RecordingFirebase();
+        queue = open(next);
+        assertTrue(queue.awaitDrained(5000));
+        assertEquals(Arrays.asList("PUT /a 1", "PUT /c 3"), next.sent());
+    }
+
+    @Test
+    public void keepsUndeliveredWritesOnClose() throws Throwable {
+        RecordingFirebase firebase = new RecordingFirebase();
+        firebase.status = 503;
+        WriteQueue queue = new WriteQueue(firebase, directory);
+        queue.put("a", "1");
+        queue.close();
+        try {
+            queue.put("b", "2");
+            fail("a closed queue took a write");
+        } catch (FirebaseException expected) {
+        }
+
+        RecordingFirebase next = new RecordingFirebase();
+        WriteQueue reopened = new WriteQueue(next, directory);
+        assertTrue(reopened.awaitDrained(5000));
+        reopened.close();
+        assertEquals(Collections.singletonList("PUT /a 1"), next.sent());
+        assertEquals(0, open(new RecordingFirebase()).size());
+    }
+
+    private WriteQueue open(Firebase firebase) throws FirebaseException {
+        WriteQueue queue = new WriteQueue(firebase, directory);
+        toClose.add(queue);
+        return queue;
+    }
+
+
+///////////////////////////////////////////////////////////////////////////////
+//
+// INTERNAL CLASSES
+//
+///////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Records the writes it is asked to send instead of sending them, and answers them with the status it is told
+     * to; writes whose data contains 'reject' are answered with 400.
+     */
+    private static class RecordingFirebase extends Firebase {
+
+        private final List<String> sent = Collections.synchronizedList(new ArrayList<>());
+        private final List<String> delivered = Collections.synchronizedList(new ArrayList<>());
+        private volatile int status = 200;
+        /**
+         * the first write to this path waits for the release
+         */
+        private volatile FirebasePath holdAt = null;
+        private final CountDownLatch held = new CountDownLatch(1);
+        private final CountDownLatch release = new CountDownLatch(1);
+
+        RecordingFirebase() throws FirebaseException {
+            super("http://localhost:1", 0);
+        }
+
+        @Override
+        public FirebaseResponse putAt(FirebasePath path, String jsonData, NameValuePair... queries) {
+            return answer("PUT", path, jsonData);
+        }
+
+        @Override
+        public FirebaseResponse patchAt(FirebasePath path, String jsonData, NameValuePair... queries) {
+            return answer("PATCH", path, jsonData);
+        }
+
+        @Override
+        public FirebaseResponse postAt(FirebasePath path, String jsonData, NameValuePair... queries) {
+            return answer("POST", path, jsonData);
+        }
+
+        @Override
+        public FirebaseResponse deleteAt(FirebasePath path, NameValuePair... queries) {
+            return answer("DELETE", path, null);
+        }
+
+        List<String> sent() {
+            synchronized (sent) {
+                return new ArrayList<>(sent);
+            }
+        }
+
+        /**
+         * @return the writes answered with 200, in the order they were sent
+         */
+        List<String> delivered() {
+            synchronized (delivered) {
+                return new ArrayList<>(delivered);
+            }
+        }
+
+        void awaitSent(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 10_000;
+            while (sent.size() < count) {
+                if (System.currentTimeMillis() > deadline) fail("only " + sent.size() + " of " + count + " requests were sent");
+                Thread.sleep(10);
+            }
+        }
+
+        private FirebaseResponse answer(String method, FirebasePath path, String jsonData) {
+            if (path.equals(holdAt) && held.getCount() > 0) {
+                held.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            String request = method + " " + path + (jsonData == null ? "" : " " + jsonData);
+            int code = jsonData != null && jsonData.contains("reject") ? 400 : status;
+            if (code == 200) delivered.add(request);
+            sent.add(request);
+            return new FirebaseResponse(code == 200, code, new LinkedHashMap<>(), "");
+        }
+    }
+
+    /**
+     * Stands in for the log of a queue: counts its syncs, and fails writes (after writing half of what it was given)
+     * while told to.
+     */
+    private static class FaultyChannel extends FileChannel {
+
+        private final FileChannel log;
+        private final AtomicInteger forces = new AtomicInteger();
+        private volatile boolean failWrites = false;
+
+        private FaultyChannel(FileChannel log) {
+            this.log = log;
+        }
+
+        static FaultyChannel install(WriteQueue queue) throws ReflectiveOperationException {
+            Field field = WriteQueue.class.getDeclaredField("log");
+            field.setAccessible(true);
+            FaultyChannel channel = new FaultyChannel((FileChannel) field.get(queue));
+            field.set(queue, channel);
+            return channel;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            if (failWrites) {
+                ByteBuffer half = src.duplicate();
+                half.limit(half.position() + half.remaining() / 2);
+                log.write(half);
+                throw new IOException("injected write failure");
+            }
+            return log.write(src);
+        }
+
+        @Override
+        public void force(boolean metaData) throws IOException {
+            forces.incrementAndGet();
+            log.force(metaData);
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            return log.read(dst);
+        }
+
+        @Override
+        public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+            return log.read(dsts, offset, length);
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+            return log.write(srcs, offset, length);
+        }
+
+        @Override
+        public long position() throws IOException {
+            return log.position();
+        }
+
+        @Override
+        public FileChannel position(long newPosition) throws IOException {
+            log.position(newPosition);
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            return log.size();
+        }
+
+        @Override
+        public FileChannel truncate(long size) throws IOException {
+            log.truncate(size);
+            return this;
+        }
+
+        @Override
+        public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+            return log.transferTo(position, count, target);
+        }
+
+        @Override
+        public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+            return log.transferFrom(src, position, count);
+        }
+
+        @Override
+        public int read(ByteBuffer dst, long position) throws IOException {
+            return log.read(dst, position);
+        }
+
+        @Override
+        public int write(ByteBuffer src, long position) throws IOException {
+            return log.write(src, position);
+        }
+
+        @Override
+        public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+            return log.map(mode, position, size);
+        }
+
+        @Override
+        public FileLock lock(long position, long size, boolean shared) throws IOException {
+            return log.lock(position, size, shared);
+        }
+
+        @Override
+        public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+            return log.tryLock(position, size, shared);
+        }
+
+        @Override
+        protected void implCloseChannel() throws IOException {
+            log.close();
+        }
+    }
+
+}